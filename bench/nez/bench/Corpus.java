@@ -0,0 +1,165 @@
+package nez.bench;
+
+import java.util.Random;
+
+/**
+ * Corpus generates benchmark inputs from a fixed seed, so the same sizes
+ * and shapes are parsed on every run and results compare across commits.
+ */
+
+public class Corpus {
+	public static final long Seed = 20160501L;
+	public static final int DefaultSize = 256 * 1024;
+
+	public static String generate(String grammar, int size) {
+		Random r = new Random(Seed);
+		StringBuilder sb = new StringBuilder(size + 256);
+		switch (grammar) {
+		case "json":
+			json(sb, r, size);
+			break;
+		case "csv":
+			csv(sb, r, size);
+			break;
+		case "xml":
+			xml(sb, r, size);
+			break;
+		case "math":
+			math(sb, r, size);
+			break;
+		default:
+			throw new IllegalArgumentException("no corpus for " + grammar);
+		}
+		return sb.toString();
+	}
+
+	private static String word(Random r) {
+		StringBuilder sb = new StringBuilder();
+		int len = 3 + r.nextInt(8);
+		for (int i = 0; i < len; i++) {
+			sb.append((char) ('a' + r.nextInt(26)));
+		}
+		return sb.toString();
+	}
+
+	/* json */
+
+	private static void json(StringBuilder sb, Random r, int size) {
+		sb.append("[\n");
+		int n = 0;
+		while (sb.length() < size) {
+			if (n++ > 0) {
+				sb.append(",\n");
+			}
+			jsonValue(sb, r, 0);
+		}
+		sb.append("\n]\n");
+	}
+
+	private static void jsonValue(StringBuilder sb, Random r, int depth) {
+		int k = depth < 3 ? r.nextInt(6) : 2 + r.nextInt(4);
+		switch (k) {
+		case 0:
+			sb.append("{");
+			for (int i = 0, n = 1 + r.nextInt(5); i < n; i++) {
+				if (i > 0) {
+					sb.append(", ");
+				}
+				sb.append('"').append(word(r)).append("\": ");
+				jsonValue(sb, r, depth + 1);
+			}
+			sb.append("}");
+			break;
+		case 1:
+			sb.append("[");
+			for (int i = 0, n = r.nextInt(6); i < n; i++) {
+				if (i > 0) {
+					sb.append(", ");
+				}
+				jsonValue(sb, r, depth + 1);
+			}
+			sb.append("]");
+			break;
+		case 2:
+			sb.append('"').append(word(r)).append(' ').append(word(r)).append('"');
+			break;
+		case 3:
+			sb.append(r.nextInt(100000));
+			break;
+		case 4:
+			sb.append(r.nextInt(1000)).append('.').append(r.nextInt(100));
+			break;
+		default:
+			sb.append(r.nextBoolean() ? "true" : "null");
+		}
+	}
+
+	/* csv */
+
+	private static void csv(StringBuilder sb, Random r, int size) {
+		while (sb.length() < size) {
+			sb.append(r.nextInt(100000)).append(',').append(word(r)).append(',');
+			sb.append('"').append(word(r)).append(", ").append(word(r)).append('"').append(',');
+			sb.append(r.nextInt(10000)).append('.').append(r.nextInt(100)).append('\n');
+		}
+	}
+
+	/* xml */
+
+	private static void xml(StringBuilder sb, Random r, int size) {
+		sb.append("<?xml version=\"1.0\"?>\n<root>\n");
+		while (sb.length() < size) {
+			xmlElement(sb, r, 1);
+		}
+		sb.append("</root>\n");
+	}
+
+	private static void xmlElement(StringBuilder sb, Random r, int depth) {
+		String name = word(r);
+		sb.append("<").append(name);
+		for (int i = 0, n = r.nextInt(3); i < n; i++) {
+			sb.append(' ').append(word(r)).append("=\"").append(word(r)).append('"');
+		}
+		if (depth > 3 || r.nextInt(3) == 0) {
+			sb.append(">").append(word(r)).append("</").append(name).append(">\n");
+			return;
+		}
+		sb.append(">\n");
+		for (int i = 0, n = 1 + r.nextInt(4); i < n; i++) {
+			xmlElement(sb, r, depth + 1);
+		}
+		sb.append("</").append(name).append(">\n");
+	}
+
+	/* math */
+
+	private static final String[] Operators = { "+", "-", "*", "/", "%" };
+
+	private static void math(StringBuilder sb, Random r, int size) {
+		mathTerm(sb, r, 0);
+		while (sb.length() < size) {
+			sb.append(' ').append(Operators[r.nextInt(Operators.length)]).append(' ');
+			mathTerm(sb, r, 0);
+		}
+		sb.append('\n');
+	}
+
+	private static void mathTerm(StringBuilder sb, Random r, int depth) {
+		if (depth < 4 && r.nextInt(4) == 0) {
+			sb.append('(');
+			mathTerm(sb, r, depth + 1);
+			for (int i = 0, n = 1 + r.nextInt(3); i < n; i++) {
+				sb.append(Operators[r.nextInt(Operators.length)]);
+				mathTerm(sb, r, depth + 1);
+			}
+			sb.append(')');
+			return;
+		}
+		if (r.nextBoolean()) {
+			sb.append(r.nextInt(1000));
+		} else {
+			sb.append(word(r));
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package nez.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import nez.ParserGenerator;
+import nez.ast.Source;
+import nez.parser.Parser;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parser throughput over generated corpora (see Corpus). Each strategy is a
+ * ParserStrategy option applied on top of the defaults; "match" parses with
+ * -TreeConstruction. Allocation rates come from JMH's gc profiler:
+ *
+ * <pre>
+ * ant bench
+ * java -jar nez-bench.jar -prof gc
+ * java -jar nez-bench.jar -p grammar=json -p strategy=default,+Moz
+ * </pre>
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+	@Param({ "json", "csv", "xml", "math" })
+	public String grammar;
+
+	@Param({ "default", "+Moz", "-PackratParsing", "+Odfa", "-Oinline" })
+	public String strategy;
+
+	@Param({ "262144" })
+	public int size;
+
+	private Parser treeParser;
+	private Parser matchParser;
+	private Source input;
+
+	@Setup
+	public void setup() throws IOException {
+		treeParser = newParser(true);
+		matchParser = newParser(false);
+		input = CommonSource.newStringSource(grammar, 1, Corpus.generate(grammar, size));
+		if (treeParser.parse(input) == null || !matchParser.match(input)) {
+			throw new IllegalStateException("corpus does not parse: " + grammar);
+		}
+	}
+
+	private Parser newParser(boolean tree) throws IOException {
+		ParserStrategy s = new ParserStrategy();
+		if (!strategy.equals("default") && !s.setOption(strategy)) {
+			throw new IllegalArgumentException("undefined option: " + strategy);
+		}
+		s.TreeConstruction = tree;
+		Parser p = new ParserGenerator().newParser(grammar + ".nez", s);
+		p.setDisabledUnconsumed(true);
+		return p;
+	}
+
+	@Benchmark
+	public Object parse() {
+		return treeParser.parse(input);
+	}
+
+	@Benchmark
+	public boolean match() {
+		return matchParser.match(input);
+	}
+
+}
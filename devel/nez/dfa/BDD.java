@@ -1,56 +1,166 @@
 package nez.dfa;
 
-import java.util.TreeMap;
+import java.util.Arrays;
 
 //Reference : http://www-erato.ist.hokudai.ac.jp/html/php/seminar5_docs/minato_alg2010-5.pdf
 //変数の展開は論理変数のIDを昇順に行う
 //!,&,| のみ対応 ( 論理記号の追加は容易だがAFAにおいてこれ以上必要ない )
+//
+// Nodes are kept in parallel int arrays. The unique table and the operator
+// cache are open-addressed tables of node addresses, so a lookup allocates
+// nothing. Every BDD owns its tables, and addresses from different BDDs
+// must not be mixed.
 public class BDD {
-	public static int MAX_TABLE_SIZE = 10000000;
-	private static int topOfNodeTable;
-	public static BDDNode[] nodeTable; // 0番地は0定数節点,1番地は1定数節点
-	public static TreeMap<BDDNode, Integer> nodeTableCache;
-	public static TreeMap<BinaryOperatorMemoState, Integer> binaryOperatorCache;
+	private static final int InitialSize = 1024;
+	private static final int NoVariable = -1;
 
-	public int addressOfNodeTable; // BooleanExpression の nodeTable 内のアドレス
+	private int[] variables; // 0番地は0定数節点,1番地は1定数節点
+	private int[] zeros;
+	private int[] ones;
+	private int topOfNodeTable;
+
+	private int[] uniqueTable; // address + 1, or 0 if empty
+	private int uniqueSize;
+
+	private int[] cacheKeys; // op, F, G in three slots
+	private int[] cacheValues; // result + 1, or 0 if empty
+	private int cacheSize;
 
 	public BDD() {
-		if (nodeTable == null) {
-			nodeTable = new BDDNode[MAX_TABLE_SIZE];
-			nodeTable[0] = new BDDNode(-1, -1, -1);
-			nodeTable[1] = new BDDNode(-1, -1, -1);
-			topOfNodeTable = 2;
-			nodeTableCache = new TreeMap<>();
-			binaryOperatorCache = new TreeMap<>();
-		}
+		variables = new int[InitialSize];
+		zeros = new int[InitialSize];
+		ones = new int[InitialSize];
+		variables[0] = variables[1] = NoVariable;
+		zeros[0] = ones[0] = zeros[1] = ones[1] = -1;
+		topOfNodeTable = 2;
+		uniqueTable = new int[InitialSize * 2];
+		cacheKeys = new int[InitialSize * 2 * 3];
+		cacheValues = new int[InitialSize * 2];
 	}
 
 	public int build(BooleanExpression be) {
-		return be.traverse();
+		return be.traverse(this);
+	}
+
+	public int variable(int address) {
+		return variables[address];
+	}
+
+	public int zero(int address) {
+		return zeros[address];
+	}
+
+	public int one(int address) {
+		return ones[address];
+	}
+
+	/* unique table */
+
+	private static int hash(int a, int b, int c) {
+		int h = a * 0x9e3779b9 + b;
+		h = h * 0x9e3779b9 + c;
+		return h ^ (h >>> 16);
+	}
+
+	public int getNode(int variableID, int zeroID, int oneID) {
+		if (zeroID == oneID) {
+			return zeroID;
+		}
+		int mask = uniqueTable.length - 1;
+		int i = hash(variableID, zeroID, oneID) & mask;
+		while (uniqueTable[i] != 0) {
+			int address = uniqueTable[i] - 1;
+			if (variables[address] == variableID && zeros[address] == zeroID && ones[address] == oneID) {
+				return address;
+			}
+			i = (i + 1) & mask;
+		}
+		if (topOfNodeTable == variables.length) {
+			int size = variables.length * 2;
+			variables = Arrays.copyOf(variables, size);
+			zeros = Arrays.copyOf(zeros, size);
+			ones = Arrays.copyOf(ones, size);
+		}
+		int address = topOfNodeTable++;
+		variables[address] = variableID;
+		zeros[address] = zeroID;
+		ones[address] = oneID;
+		uniqueTable[i] = address + 1;
+		if (++uniqueSize * 2 > uniqueTable.length) {
+			rehashUniqueTable();
+		}
+		return address;
+	}
+
+	private void rehashUniqueTable() {
+		int[] table = new int[uniqueTable.length * 2];
+		int mask = table.length - 1;
+		for (int entry : uniqueTable) {
+			if (entry != 0) {
+				int address = entry - 1;
+				int i = hash(variables[address], zeros[address], ones[address]) & mask;
+				while (table[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				table[i] = entry;
+			}
+		}
+		uniqueTable = table;
 	}
 
-	public static int getNode(BDDNode bn) {
-		if (bn.zeroID == bn.oneID) {
-			return bn.zeroID;
+	/* operator cache */
+
+	private int lookup(int op, int F, int G) {
+		int mask = cacheValues.length - 1;
+		int i = hash(op, F, G) & mask;
+		while (cacheValues[i] != 0) {
+			if (cacheKeys[i * 3] == op && cacheKeys[i * 3 + 1] == F && cacheKeys[i * 3 + 2] == G) {
+				return cacheValues[i] - 1;
+			}
+			i = (i + 1) & mask;
 		}
+		return -1;
+	}
 
-		if (nodeTableCache.containsKey(bn.deepCopy())) {
-			return nodeTableCache.get(bn.deepCopy());
+	private int memo(int op, int F, int G, int result) {
+		int mask = cacheValues.length - 1;
+		int i = hash(op, F, G) & mask;
+		while (cacheValues[i] != 0) {
+			i = (i + 1) & mask;
 		}
-		if (topOfNodeTable >= MAX_TABLE_SIZE) {
-			System.out.println("FATAL ERROR : NODE TABLE => OVERFLOW : size : " + topOfNodeTable + " capacity : " + MAX_TABLE_SIZE);
+		cacheKeys[i * 3] = op;
+		cacheKeys[i * 3 + 1] = F;
+		cacheKeys[i * 3 + 2] = G;
+		cacheValues[i] = result + 1;
+		if (++cacheSize * 2 > cacheValues.length) {
+			rehashCache();
 		}
+		return result;
+	}
 
-		nodeTable[topOfNodeTable] = bn.deepCopy();
-		nodeTableCache.put(bn.deepCopy(), topOfNodeTable);
-		return topOfNodeTable++;
+	private void rehashCache() {
+		int[] keys = cacheKeys;
+		int[] values = cacheValues;
+		cacheKeys = new int[keys.length * 2];
+		cacheValues = new int[values.length * 2];
+		int mask = cacheValues.length - 1;
+		for (int j = 0; j < values.length; j++) {
+			if (values[j] != 0) {
+				int i = hash(keys[j * 3], keys[j * 3 + 1], keys[j * 3 + 2]) & mask;
+				while (cacheValues[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				System.arraycopy(keys, j * 3, cacheKeys, i * 3, 3);
+				cacheValues[i] = values[j];
+			}
+		}
 	}
 
 	public static boolean isConst(int address) {
 		return address == 0 || address == 1;
 	}
 
-	public static int apply(char op, int F, int G) {
+	public int apply(char op, int F, int G) {
 		// 1. F,Gのいずれかが定数のとき、およびF=Gのとき
 		if (isConst(F) || isConst(G) || F == G) {
 			if (F == G) {
@@ -86,63 +196,62 @@ public class BDD {
 				System.out.println("INVALID OPERATOR : WHAT IS " + op + "?");
 			}
 		}
-
-		BinaryOperatorMemoState boms = new BinaryOperatorMemoState(op, F, G);
-		if (binaryOperatorCache.containsKey(boms)) {
-			return binaryOperatorCache.get(boms);
+		if (F > G) { // & and | are commutative
+			int tmp = F;
+			F = G;
+			G = tmp;
+		}
+		int result = lookup(op, F, G);
+		if (result != -1) {
+			return result;
 		}
 
 		// 2.両者の最上位変数F.vとG.vが同じとき
-		BDDNode bnF = nodeTable[F].deepCopy(); // deepCopyでないと手順４を実行した場合にnodeTableの値が書きかわるので注意
-		BDDNode bnG = nodeTable[G].deepCopy();
-		if (bnF.variableID == bnG.variableID) {
-			int H0 = apply(op, bnF.zeroID, bnG.zeroID);
-			int H1 = apply(op, bnF.oneID, bnG.oneID);
-			if (H0 == H1) {
-				binaryOperatorCache.put(boms, H0);
-				return H0;
-			}
-			int address = getNode(new BDDNode(bnF.variableID, H0, H1));
-			binaryOperatorCache.put(boms, address);
-			return address;
+		int vF = variables[F];
+		int vG = variables[G];
+		if (vF == vG) {
+			int H0 = apply(op, zeros[F], zeros[G]);
+			int H1 = apply(op, ones[F], ones[G]);
+			return memo(op, F, G, getNode(vF, H0, H1));
 		}
 		// 変数の番号が大きいほど下位であることに注意
 		// 4.F.vがG.vよりも下位のとき
-		// FとGを入れ替えて、3.と同様に処理
-		if (bnF.variableID > bnG.variableID) {
-			int tmp = F;
-			F = G;
-			G = tmp;
-			bnF = nodeTable[F].deepCopy();
-			nodeTable[G].deepCopy();
+		// Gを展開して、3.と同様に処理
+		if (vF > vG) {
+			int H0 = apply(op, F, zeros[G]);
+			int H1 = apply(op, F, ones[G]);
+			return memo(op, F, G, getNode(vG, H0, H1));
 		}
 
 		// 3.F.vがG.vよりも上位のとき
-		int H0 = apply(op, bnF.zeroID, G);
-		int H1 = apply(op, bnF.oneID, G);
-		if (H0 == H1) {
-			binaryOperatorCache.put(boms, H0);
-			return H0;
-		}
-		int address = getNode(new BDDNode(bnF.variableID, H0, H1));
-		binaryOperatorCache.put(boms, address);
-		return address;
+		int H0 = apply(op, zeros[F], G);
+		int H1 = apply(op, ones[F], G);
+		return memo(op, F, G, getNode(vF, H0, H1));
 	}
 
-	public static void printNodeTable() {
-		System.out.println("table size = " + topOfNodeTable);
-		for (int i = 0; i < topOfNodeTable; i++) {
-			BDDNode bn = nodeTable[i];
-			System.out.println(i + "-th : " + bn);
+	// 定数節点を反転する
+	public int not(int F) {
+		if (isConst(F)) {
+			return (F == 0) ? 1 : 0;
+		}
+		int result = lookup('!', F, 0);
+		if (result != -1) {
+			return result;
 		}
+		int H0 = not(zeros[F]);
+		int H1 = not(ones[F]);
+		return memo('!', F, 0, getNode(variables[F], H0, H1));
 	}
 
-	public boolean equals(BDD bdd) {
-		return addressOfNodeTable == bdd.addressOfNodeTable;
+	public void printNodeTable() {
+		System.out.println("table size = " + topOfNodeTable);
+		for (int i = 0; i < topOfNodeTable; i++) {
+			System.out.println(i + "-th : (" + variables[i] + "," + zeros[i] + "," + ones[i] + ")");
+		}
 	}
 
-	public static int getNodeTableSize() {
+	public int getNodeTableSize() {
 		return topOfNodeTable;
 	}
 
-}
\ No newline at end of file
+}
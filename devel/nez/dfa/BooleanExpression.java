@@ -18,7 +18,7 @@ public class BooleanExpression {
 		return assignBooleanValueToLogicVariable(booleanValue, logicVariable);
 	}
 
-	public int traverse() {
+	public int traverse(BDD bdd) {
 		System.out.println("WARNING");
 		return -1;
 	}
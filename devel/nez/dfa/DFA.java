@@ -1,7 +1,11 @@
 package nez.dfa;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.TreeSet;
 
 import nez.parser.io.StringSource;
@@ -86,9 +90,13 @@ public class DFA {
 		return new NFA(allStates, stateTransitionFunction, initialStates, acceptingStates);
 	}
 
+	public DFA minimize() {
+		return minimize_Hopcroft();
+	}
+
 	// Brzozowski's algorithm
 	// min(A) = det(rev(det(rev(A))))
-	public DFA minimize() {
+	public DFA minimize_Brzozowski() {
 		return rev(rev(new DFA(S, tau, f, F)).det()).det();
 	}
 
@@ -116,8 +124,229 @@ public class DFA {
 		return null;
 	}
 
+	/*
+	 * Hopcroft's algorithm, O(n log n) in the number of states. The result
+	 * is complete over the 256 bytes; missing transitions go to a dead state.
+	 * States are numbered breadth-first from the initial state 0.
+	 */
 	public DFA minimize_Hopcroft() {
-		return null;
+		int[] ids = reachableStates();
+		int n = ids.length;
+		int dead = n; // for missing transitions
+		int size = n + 1;
+		int[] index = new int[maxID() + 1];
+		Arrays.fill(index, -1);
+		for (int q = 0; q < n; q++) {
+			index[ids[q]] = q;
+		}
+		int[] delta = new int[size * 256];
+		Arrays.fill(delta, dead);
+		for (Transition t : tau) {
+			int src = t.getSrc() < index.length ? index[t.getSrc()] : -1;
+			if (src == -1) {
+				continue;
+			}
+			int dst = index[t.getDst()];
+			int label = t.getLabel();
+			if (label >= 0 && label < 256) {
+				delta[src * 256 + label] = dst;
+			} else if (label == AFA.anyCharacter) {
+				Arrays.fill(delta, src * 256, src * 256 + 256, dst);
+			}
+		}
+		for (Transition t : tau) { // the others are the bytes without transitions
+			if (t.getLabel() == AFA.theOthers && t.getSrc() < index.length && index[t.getSrc()] != -1) {
+				int src = index[t.getSrc()];
+				for (int c = 0; c < 256; c++) {
+					if (delta[src * 256 + c] == dead) {
+						delta[src * 256 + c] = index[t.getDst()];
+					}
+				}
+			}
+		}
+
+		/* predecessors by byte: inverse[inverseStart[c * (size + 1) + q] ...] */
+		int[] inverseStart = new int[256 * (size + 1) + 1];
+		for (int q = 0; q < size; q++) {
+			for (int c = 0; c < 256; c++) {
+				inverseStart[c * (size + 1) + delta[q * 256 + c] + 1]++;
+			}
+		}
+		for (int i = 1; i < inverseStart.length; i++) {
+			inverseStart[i] += inverseStart[i - 1];
+		}
+		int[] inverse = new int[size * 256];
+		int[] fill = Arrays.copyOf(inverseStart, inverseStart.length);
+		for (int q = 0; q < size; q++) {
+			for (int c = 0; c < 256; c++) {
+				inverse[fill[c * (size + 1) + delta[q * 256 + c]]++] = q;
+			}
+		}
+
+		/* partition: the states of a block b are elements[first[b]..last[b]) */
+		int[] elements = new int[size];
+		int[] location = new int[size];
+		int[] blockOf = new int[size];
+		int[] first = new int[size];
+		int[] last = new int[size];
+		int[] marked = new int[size];
+		int blocks = 0;
+		int accepting = 0;
+		for (int q = 0; q < n; q++) {
+			if (F.contains(new State(ids[q]))) {
+				accepting++;
+			}
+		}
+		int front = 0;
+		int back = size;
+		for (int q = 0; q < size; q++) {
+			int i = (q < n && F.contains(new State(ids[q]))) ? front++ : --back;
+			elements[i] = q;
+			location[q] = i;
+		}
+		if (accepting > 0) {
+			first[blocks] = 0;
+			last[blocks] = accepting;
+			blocks++;
+		}
+		first[blocks] = accepting;
+		last[blocks] = size;
+		blocks++;
+		for (int b = 0; b < blocks; b++) {
+			for (int i = first[b]; i < last[b]; i++) {
+				blockOf[elements[i]] = b;
+			}
+		}
+
+		/* splitters as (block, byte) pairs */
+		boolean[] waiting = new boolean[size * 256];
+		int[] worklist = new int[size * 256];
+		int top = 0;
+		int smaller = (blocks == 2 && last[0] - first[0] > last[1] - first[1]) ? 1 : 0;
+		for (int c = 0; c < 256; c++) {
+			worklist[top++] = smaller * 256 + c;
+			waiting[smaller * 256 + c] = true;
+		}
+		int[] splitter = new int[size];
+		int[] touched = new int[size];
+		while (top > 0) {
+			int w = worklist[--top];
+			waiting[w] = false;
+			int a = w / 256;
+			int c = w % 256;
+			int count = last[a] - first[a];
+			System.arraycopy(elements, first[a], splitter, 0, count);
+			int touchedSize = 0;
+			for (int k = 0; k < count; k++) {
+				int base = c * (size + 1) + splitter[k];
+				for (int j = inverseStart[base]; j < inverseStart[base + 1]; j++) {
+					int p = inverse[j];
+					int b = blockOf[p];
+					int m = first[b] + marked[b];
+					if (location[p] < m) {
+						continue; // already marked
+					}
+					if (marked[b] == 0) {
+						touched[touchedSize++] = b;
+					}
+					int other = elements[m]; // moves p to the marked front of b
+					elements[location[p]] = other;
+					location[other] = location[p];
+					elements[m] = p;
+					location[p] = m;
+					marked[b]++;
+				}
+			}
+			for (int t = 0; t < touchedSize; t++) {
+				int b = touched[t];
+				int m = first[b] + marked[b];
+				marked[b] = 0;
+				if (m == last[b]) {
+					continue;
+				}
+				int nb = blocks++;
+				first[nb] = first[b];
+				last[nb] = m;
+				first[b] = m;
+				for (int i = first[nb]; i < last[nb]; i++) {
+					blockOf[elements[i]] = nb;
+				}
+				int small = (last[nb] - first[nb] <= last[b] - first[b]) ? nb : b;
+				for (int d = 0; d < 256; d++) {
+					if (waiting[b * 256 + d]) {
+						waiting[nb * 256 + d] = true;
+						worklist[top++] = nb * 256 + d;
+					} else {
+						waiting[small * 256 + d] = true;
+						worklist[top++] = small * 256 + d;
+					}
+				}
+			}
+		}
+
+		/* numbers the blocks breadth-first from the initial state */
+		int[] number = new int[blocks];
+		Arrays.fill(number, -1);
+		int[] queue = new int[blocks];
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = blockOf[index[f.getID()]];
+		number[queue[0]] = 0;
+		HashSet<State> minS = new HashSet<>();
+		TreeSet<Transition> minTau = new TreeSet<>();
+		HashSet<State> minF = new HashSet<>();
+		while (head < tail) {
+			int b = queue[head++];
+			int q = elements[first[b]];
+			minS.add(new State(number[b]));
+			if (q < n && F.contains(new State(ids[q]))) {
+				minF.add(new State(number[b]));
+			}
+			for (int c = 0; c < 256; c++) {
+				int next = blockOf[delta[q * 256 + c]];
+				if (number[next] == -1) {
+					number[next] = tail;
+					queue[tail++] = next;
+				}
+				minTau.add(new Transition(number[b], number[next], c, -1));
+			}
+		}
+		return new DFA(minS, minTau, new State(0), minF);
+	}
+
+	private int maxID() {
+		int max = f.getID();
+		for (State s : S) {
+			max = Math.max(max, s.getID());
+		}
+		for (Transition t : tau) {
+			max = Math.max(max, Math.max(t.getSrc(), t.getDst()));
+		}
+		return max;
+	}
+
+	private int[] reachableStates() {
+		HashMap<Integer, ArrayList<Integer>> next = new HashMap<>();
+		for (Transition t : tau) {
+			next.computeIfAbsent(t.getSrc(), k -> new ArrayList<>()).add(t.getDst());
+		}
+		LinkedHashSet<Integer> visited = new LinkedHashSet<>();
+		ArrayDeque<Integer> queue = new ArrayDeque<>();
+		visited.add(f.getID());
+		queue.add(f.getID());
+		while (!queue.isEmpty()) {
+			for (int dst : next.getOrDefault(queue.poll(), new ArrayList<>())) {
+				if (visited.add(dst)) {
+					queue.add(dst);
+				}
+			}
+		}
+		int[] ids = new int[visited.size()];
+		int i = 0;
+		for (int id : visited) {
+			ids[i++] = id;
+		}
+		return ids;
 	}
 
 }
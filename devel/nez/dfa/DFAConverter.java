@@ -313,9 +313,10 @@ public class DFAConverter {
 					System.out.println("epsilon Expansion time : " + (t2 - t));
 				}
 
-				if (cacheVertexID.containsKey(epsilonExpansionTransitBe.toString())) {
-					int dst = cacheVertexID.get(epsilonExpansionTransitBe.toString());
-					tau.add(new Transition(src, dst, c, -1));
+				String key = epsilonExpansionTransitBe.toString();
+				Integer cached = cacheVertexID.get(key);
+				if (cached != null) {
+					tau.add(new Transition(src, cached, c, -1));
 					continue;
 				}
 
@@ -354,7 +355,7 @@ public class DFAConverter {
 
 					// System.out.println("epsilonExpansionTransitBe.eval --END");
 					dst = vertexID;
-					cacheVertexID.put(epsilonExpansionTransitBe.toString(), vertexID);
+					cacheVertexID.put(key, vertexID);
 					BDDIDtoVertexID.put(bddID, vertexID++);
 					deq.addLast(epsilonExpansionTransitBe);
 				} else {
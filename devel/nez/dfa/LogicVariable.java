@@ -26,11 +26,11 @@ public class LogicVariable extends BooleanExpression {
 	}
 
 	@Override
-	public int traverse() {
+	public int traverse(BDD bdd) {
 		if (hasValue()) {
 			return getValue() ? 1 : 0;
 		}
-		return BDD.getNode(new BDDNode(ID, 0, 1));
+		return bdd.getNode(ID, 0, 1);
 	}
 
 	@Override
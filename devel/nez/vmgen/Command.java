@@ -149,12 +149,12 @@ public class Command extends nez.main.Command {
 			super(Symbol.Null, null, 0, 0, null, null);
 		}
 
-		public MyTree(Symbol tag, Source source, long pos, int len, int size, Object value) {
+		public MyTree(Symbol tag, Source source, long pos, long len, int size, Object value) {
 			super(tag, source, pos, len, size > 0 ? new MyTree[size] : null, value);
 		}
 
 		@Override
-		public MyTree newInstance(Symbol tag, Source source, long pos, int len, int size, Object value) {
+		public MyTree newInstance(Symbol tag, Source source, long pos, long len, int size, Object value) {
 			return new MyTree(tag, source, pos, len, size, value);
 		}
 
@@ -6,12 +6,12 @@ public class CommonTree extends Tree<CommonTree> {
 		super(Symbol.unique("prototype"), null, 0, 0, null, null);
 	}
 
-	public CommonTree(Symbol tag, Source source, long pos, int len, int size, Object value) {
+	public CommonTree(Symbol tag, Source source, long pos, long len, int size, Object value) {
 		super(tag, source, pos, len, size > 0 ? new CommonTree[size] : null, value);
 	}
 
 	@Override
-	public CommonTree newInstance(Symbol tag, Source source, long pos, int len, int size, Object value) {
+	public CommonTree newInstance(Symbol tag, Source source, long pos, long len, int size, Object value) {
 		return new CommonTree(tag, source, pos, len, size, value);
 	}
 
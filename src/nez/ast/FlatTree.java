@@ -0,0 +1,250 @@
+package nez.ast;
+
+import java.util.Arrays;
+
+/**
+ * FlatTree is a compact tree built directly from the parser's tree log. All
+ * nodes of a parse live in one shared table of int rows (tag id, position,
+ * length, child count, offset of the first edge) and one edge table (child
+ * row, label id), so no child or label arrays are allocated per node and no
+ * text is copied out of the source.
+ *
+ * A FlatTree object is only a handle to a row. It implements the Tree API
+ * for existing tools, while {@link #cursor()} walks the table without any
+ * allocation. The structure is read-only once parsed.
+ *
+ * A prototype made with new FlatTree(true) keeps its table and handles
+ * across parses, so a steady stream of parses allocates nothing per node.
+ * Each parse then invalidates the previous tree, and the prototype must not
+ * be shared among threads.
+ *
+ * <pre>
+ * FlatTree root = parser.parse(source, new FlatTree());
+ * TreeCursor c = root.cursor();
+ * </pre>
+ */
+
+public class FlatTree extends Tree<FlatTree> {
+	final Table table;
+	final int index;
+
+	public FlatTree() {
+		this(false);
+	}
+
+	public FlatTree(boolean reuse) {
+		this(new Table(reuse), 0);
+		table.handles[0] = this;
+	}
+
+	FlatTree(Table table, int index) {
+		super(Symbol.tag(table.tagAt(index)), table.sourceAt(index), table.posAt(index), table.lengthAt(index), null, table.valueAt(index));
+		this.table = table;
+		this.index = index;
+	}
+
+	@Override
+	public FlatTree newPrototype() {
+		if (table.reuse) {
+			table.clear();
+			return this;
+		}
+		return new FlatTree(false);
+	}
+
+	@Override
+	public FlatTree newInstance(Symbol tag, Source source, long pos, long len, int size, Object value) {
+		return table.newNode(tag, source, checkRange(pos), checkRange(len), size, value);
+	}
+
+	@Override
+	public FlatTree newInstance(Symbol tag, int size, Object value) {
+		return table.newNode(tag, getSource(), checkRange(getSourcePosition()), 0, size, value);
+	}
+
+	/* the table is int-addressed */
+
+	private static int checkRange(long n) {
+		if (n > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("FlatTree cannot hold position " + n + "; use CommonTree for sources over 2 GiB");
+		}
+		return (int) n;
+	}
+
+	@Override
+	public void link(int n, Symbol label, Object child) {
+		table.link(index, n, label, child == null ? -1 : ((FlatTree) child).index);
+	}
+
+	@Override
+	protected FlatTree dupImpl() {
+		return table.handle(index);
+	}
+
+	@Override
+	public int size() {
+		return table.sizeAt(index);
+	}
+
+	@Override
+	public FlatTree get(int index) {
+		int child = table.childAt(this.index, index);
+		return child == -1 ? null : table.handle(child);
+	}
+
+	@Override
+	public Symbol getLabel(int index) {
+		int label = table.labelAt(this.index, index);
+		return label == -1 ? null : Symbol.tag(label);
+	}
+
+	public final int getNodeSize() {
+		return table.nodes();
+	}
+
+	public final TreeCursor cursor() {
+		return new TreeCursor(table, index);
+	}
+
+	/* Table */
+
+	static final class Table {
+		static final int Tag = 0;
+		static final int Pos = 1;
+		static final int Len = 2;
+		static final int Size = 3;
+		static final int Edge = 4;
+		static final int Stride = 5;
+
+		final boolean reuse;
+		Source source;
+		private int[] rows = new int[Stride * 256];
+		private int nodes = 0;
+		private int[] edgeNodes = new int[256];
+		private int[] edgeLabels = new int[256];
+		private int edges = 0;
+		private Object[] values; // sparse; allocated on the first value
+		private Source[] sources; // sparse; allocated on the first row of another source
+		private FlatTree[] handles = new FlatTree[256];
+
+		Table(boolean reuse) {
+			this.reuse = reuse;
+			add(Symbol.unique("prototype"), null, 0, 0, 0, null);
+		}
+
+		final void clear() {
+			this.source = null;
+			this.nodes = 1; // keeps the prototype
+			this.edges = 0;
+		}
+
+		final FlatTree newNode(Symbol tag, Source source, int pos, int len, int size, Object value) {
+			int node = add(tag, source, pos, len, size, value);
+			FlatTree t = handles[node];
+			if (t == null) {
+				t = new FlatTree(this, node);
+				handles[node] = t;
+			} else {
+				t.tag = tag;
+				t.source = source;
+				t.pos = pos;
+				t.length = len;
+				t.value = value;
+			}
+			return t;
+		}
+
+		private int add(Symbol tag, Source source, int pos, int len, int size, Object value) {
+			if (this.source == null) {
+				this.source = source;
+			}
+			int row = nodes * Stride;
+			if (row + Stride > rows.length) {
+				rows = Arrays.copyOf(rows, rows.length * 2);
+				handles = Arrays.copyOf(handles, rows.length / Stride);
+			}
+			if (edges + size > edgeNodes.length) {
+				int newsize = Math.max(edgeNodes.length * 2, edges + size);
+				edgeNodes = Arrays.copyOf(edgeNodes, newsize);
+				edgeLabels = Arrays.copyOf(edgeLabels, newsize);
+			}
+			rows[row + Tag] = tag.id();
+			rows[row + Pos] = pos;
+			rows[row + Len] = len;
+			rows[row + Size] = size;
+			rows[row + Edge] = edges;
+			Arrays.fill(edgeNodes, edges, edges + size, -1);
+			Arrays.fill(edgeLabels, edges, edges + size, -1);
+			edges += size;
+			if (value != null) {
+				if (values == null || values.length < handles.length) {
+					values = Arrays.copyOf(values == null ? new Object[0] : values, handles.length);
+				}
+				values[nodes] = value;
+			} else if (values != null && nodes < values.length) {
+				values[nodes] = null;
+			}
+			if (source != this.source) {
+				if (sources == null || sources.length < handles.length) {
+					sources = Arrays.copyOf(sources == null ? new Source[0] : sources, handles.length);
+				}
+				sources[nodes] = source;
+			} else if (sources != null && nodes < sources.length) {
+				sources[nodes] = null;
+			}
+			return nodes++;
+		}
+
+		final void link(int parent, int n, Symbol label, int child) {
+			int edge = rows[parent * Stride + Edge] + n;
+			edgeNodes[edge] = child;
+			edgeLabels[edge] = label == null ? -1 : label.id();
+		}
+
+		final int nodes() {
+			return nodes;
+		}
+
+		final int tagAt(int node) {
+			return rows[node * Stride + Tag];
+		}
+
+		final int posAt(int node) {
+			return rows[node * Stride + Pos];
+		}
+
+		final int lengthAt(int node) {
+			return rows[node * Stride + Len];
+		}
+
+		final int sizeAt(int node) {
+			return rows[node * Stride + Size];
+		}
+
+		final int childAt(int node, int n) {
+			return edgeNodes[rows[node * Stride + Edge] + n];
+		}
+
+		final int labelAt(int node, int n) {
+			return edgeLabels[rows[node * Stride + Edge] + n];
+		}
+
+		final Object valueAt(int node) {
+			return values != null && node < values.length ? values[node] : null;
+		}
+
+		/* rows relocated by a reparse read the edited source */
+
+		final Source sourceAt(int node) {
+			if (sources != null && node < sources.length && sources[node] != null) {
+				return sources[node];
+			}
+			return source;
+		}
+
+		final FlatTree handle(int node) {
+			return handles[node];
+		}
+	}
+
+}
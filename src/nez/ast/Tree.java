@@ -12,8 +12,8 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 
 	protected Symbol tag;
 	protected Source source;
-	protected int pos;
-	protected int length;
+	protected long pos;
+	protected long length;
 	protected Symbol[] labels;
 	protected E[] subTree;
 	protected Object value;
@@ -28,22 +28,32 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 		this.labels = EmptyLabels;
 	}
 
-	protected Tree(Symbol tag, Source source, long pos, int len, E[] subTree, Object value) {
+	protected Tree(Symbol tag, Source source, long pos, long len, E[] subTree, Object value) {
 		this.tag = tag;
 		this.source = source;
-		this.pos = (int) pos;
+		this.pos = pos;
 		this.length = len;
 		this.subTree = subTree;
 		this.value = value;
 		this.labels = (this.subTree != null) ? new Symbol[this.subTree.length] : EmptyLabels;
 	}
 
-	public abstract E newInstance(Symbol tag, Source source, long pos, int len, int objectsize, Object value);
+	public abstract E newInstance(Symbol tag, Source source, long pos, long len, int objectsize, Object value);
 
 	public abstract void link(int n, Symbol label, Object child);
 
 	public abstract E newInstance(Symbol tag, int objectsize, Object value);
 
+	/**
+	 * Returns the prototype that starts a new parse. Trees whose nodes share
+	 * state, such as FlatTree, return a fresh one so that parses never mix.
+	 */
+
+	@SuppressWarnings("unchecked")
+	public E newPrototype() {
+		return (E) this;
+	}
+
 	protected abstract E dupImpl();
 
 	public final E dup() {
@@ -71,7 +81,7 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 		return pos;
 	}
 
-	public final void setPosition(int pos, int len) {
+	public final void setPosition(long pos, long len) {
 		this.pos = pos;
 		this.length = len;
 	}
@@ -86,7 +96,7 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 		return source.column(pos);
 	}
 
-	public final int getLength() {
+	public final long getLength() {
 		return length;
 	}
 
@@ -114,13 +124,13 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 		return size() == 0;
 	}
 
-	public final Symbol getLabel(int index) {
+	public Symbol getLabel(int index) {
 		return labels[index];
 	}
 
 	public final boolean isAllLabeled() {
-		for (Symbol label : labels) {
-			if (label == null) {
+		for (int i = 0; i < size(); i++) {
+			if (getLabel(i) == null) {
 				return false;
 			}
 		}
@@ -144,7 +154,7 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 
 	public final E get(int index, E defaultValue) {
 		if (index < size()) {
-			return subTree[index];
+			return get(index);
 		}
 		return defaultValue;
 	}
@@ -162,8 +172,8 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final int indexOf(Symbol label) {
-		for (int i = 0; i < labels.length; i++) {
-			if (labels[i] == label) {
+		for (int i = 0; i < size(); i++) {
+			if (getLabel(i) == label) {
 				return i;
 			}
 		}
@@ -171,19 +181,13 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final boolean has(Symbol label) {
-		for (Symbol symbol : labels) {
-			if (symbol == label) {
-				return true;
-			}
-		}
-		return false;
+		return indexOf(label) != -1;
 	}
 
 	public final E get(Symbol label) {
-		for (int i = 0; i < labels.length; i++) {
-			if (labels[i] == label) {
-				return subTree[i];
-			}
+		int index = indexOf(label);
+		if (index != -1) {
+			return get(index);
 		}
 		throw newNoSuchLabel(label);
 	}
@@ -193,12 +197,8 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final E get(Symbol label, E defval) {
-		for (int i = 0; i < labels.length; i++) {
-			if (labels[i] == label) {
-				return subTree[i];
-			}
-		}
-		return defval;
+		int index = indexOf(label);
+		return index != -1 ? get(index) : defval;
 	}
 
 	public final void set(Symbol label, E defval) {
@@ -268,12 +268,8 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final boolean is(Symbol label, Symbol tag) {
-		for (int i = 0; i < labels.length; i++) {
-			if (labels[i] == label) {
-				return subTree[i].is(tag);
-			}
-		}
-		return false;
+		int index = indexOf(label);
+		return index != -1 && get(index).is(tag);
 	}
 
 	public final String getText(int index, String defval) {
@@ -284,12 +280,8 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final String getText(Symbol label, String defval) {
-		for (int i = 0; i < labels.length; i++) {
-			if (labels[i] == label) {
-				return getText(i, defval);
-			}
-		}
-		return defval;
+		int index = indexOf(label);
+		return index != -1 ? getText(index, defval) : defval;
 	}
 
 	public final int toInt(int defvalue) {
@@ -316,12 +308,8 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final int getInt(Symbol label, int defvalue) {
-		for (int i = 0; i < labels.length; i++) {
-			if (labels[i] == label) {
-				return getInt(i, defvalue);
-			}
-		}
-		return defvalue;
+		int index = indexOf(label);
+		return index != -1 ? getInt(index, defvalue) : defvalue;
 	}
 
 	@Override
@@ -363,21 +351,23 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 		if (getTag() != null) {
 			sb.append(getTag().getSymbol());
 		}
-		if (subTree == null) {
+		if (size() == 0) {
 			sb.append(" ");
 			StringUtils.formatStringLiteral(sb, '\'', toText(), '\'');
 		} else {
 			for (int i = 0; i < size(); i++) {
 				sb.append(" ");
-				if (labels[i] != null) {
+				Symbol label = getLabel(i);
+				if (label != null) {
 					sb.append("$");
-					sb.append(labels[i].getSymbol());
+					sb.append(label.getSymbol());
 					sb.append("=");
 				}
-				if (subTree[i] == null) {
+				E sub = get(i);
+				if (sub == null) {
 					sb.append("null");
 				} else {
-					subTree[i].appendStringified(sb, indent + 1, this.labels[i] == null);
+					sub.appendStringified(sb, indent + 1, label == null);
 				}
 			}
 		}
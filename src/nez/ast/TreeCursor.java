@@ -0,0 +1,165 @@
+package nez.ast;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * TreeCursor walks a FlatTree without allocating. The cursor keeps the path
+ * from its root as a stack of (node, child index) pairs, so parent() and
+ * next() need no back links in the table. Text is decoded from the source
+ * only when toText() is called; textEquals() compares in place.
+ */
+
+public final class TreeCursor {
+	private final FlatTree.Table table;
+	private int[] nodes = new int[16];
+	private int[] indexes = new int[16];
+	private int depth;
+
+	TreeCursor(FlatTree.Table table, int root) {
+		this.table = table;
+		this.nodes[0] = root;
+		this.indexes[0] = -1;
+		this.depth = 0;
+	}
+
+	private int node() {
+		return nodes[depth];
+	}
+
+	/* Node */
+
+	public final int getTagId() {
+		return table.tagAt(node());
+	}
+
+	public final Symbol getTag() {
+		return Symbol.tag(table.tagAt(node()));
+	}
+
+	public final boolean is(Symbol tag) {
+		return table.tagAt(node()) == tag.id();
+	}
+
+	public final Symbol getLabel() {
+		if (depth == 0) {
+			return null;
+		}
+		int label = table.labelAt(nodes[depth - 1], indexes[depth]);
+		return label == -1 ? null : Symbol.tag(label);
+	}
+
+	public final long getSourcePosition() {
+		return table.posAt(node());
+	}
+
+	public final int getLength() {
+		return table.lengthAt(node());
+	}
+
+	public final int size() {
+		return table.sizeAt(node());
+	}
+
+	public final int getDepth() {
+		return depth;
+	}
+
+	public final Object getValue() {
+		return table.valueAt(node());
+	}
+
+	public final String toText() {
+		Object value = table.valueAt(node());
+		if (value != null) {
+			return value.toString();
+		}
+		long pos = table.posAt(node());
+		return table.sourceAt(node()).subString(pos, pos + table.lengthAt(node()));
+	}
+
+	public final boolean textEquals(byte[] text) {
+		Object value = table.valueAt(node());
+		if (value != null) {
+			return Arrays.equals(value.toString().getBytes(StandardCharsets.UTF_8), text);
+		}
+		return table.lengthAt(node()) == text.length && table.sourceAt(node()).match(table.posAt(node()), text);
+	}
+
+	public final boolean textEquals(String text) {
+		return textEquals(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public final FlatTree toTree() {
+		return table.handle(node());
+	}
+
+	/* Move */
+
+	public final boolean child(int index) {
+		int node = node();
+		if (index < 0 || index >= table.sizeAt(node)) {
+			return false;
+		}
+		int child = table.childAt(node, index);
+		if (child == -1) {
+			return false;
+		}
+		push(child, index);
+		return true;
+	}
+
+	public final boolean child(Symbol label) {
+		int node = node();
+		int id = label.id();
+		for (int i = 0; i < table.sizeAt(node); i++) {
+			if (table.labelAt(node, i) == id) {
+				return child(i);
+			}
+		}
+		return false;
+	}
+
+	public final boolean firstChild() {
+		return child(0);
+	}
+
+	public final boolean next() {
+		if (depth == 0) {
+			return false;
+		}
+		int parent = nodes[depth - 1];
+		for (int i = indexes[depth] + 1; i < table.sizeAt(parent); i++) {
+			int sibling = table.childAt(parent, i);
+			if (sibling != -1) {
+				nodes[depth] = sibling;
+				indexes[depth] = i;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public final boolean parent() {
+		if (depth == 0) {
+			return false;
+		}
+		depth--;
+		return true;
+	}
+
+	public final void reset() {
+		depth = 0;
+	}
+
+	private void push(int node, int index) {
+		depth++;
+		if (depth == nodes.length) {
+			nodes = Arrays.copyOf(nodes, depth * 2);
+			indexes = Arrays.copyOf(indexes, depth * 2);
+		}
+		nodes[depth] = node;
+		indexes[depth] = index;
+	}
+
+}
@@ -0,0 +1,40 @@
+package nez.ast;
+
+/**
+ * TreeEventHandler receives a parse result as a sequence of events instead
+ * of a tree. Nodes are reported in document order: startNode before the
+ * children, endNode after them. Each reported node is already committed, so
+ * a handler can write it out and forget it, keeping only what it needs per
+ * open node.
+ *
+ * Events are replayed from trees that are already built: Parser.parseEvents()
+ * builds one record of the start production at a time, so memory grows with
+ * the largest record rather than with the nesting depth. An input that is a
+ * single record, such as one JSON document, is built as a whole.
+ */
+
+public interface TreeEventHandler {
+
+	public void startTree(Source source);
+
+	/**
+	 * @param label
+	 *            the label linking the node to its parent, or null
+	 * @param size
+	 *            the number of children
+	 * @param labeled
+	 *            whether all children are labeled
+	 */
+
+	public void startNode(Symbol label, Symbol tag, long pos, int size, boolean labeled);
+
+	/**
+	 * @param text
+	 *            the text of a leaf node; null for a node with children
+	 */
+
+	public void endNode(Symbol label, Symbol tag, long pos, long length, String text);
+
+	public void endTree();
+
+}
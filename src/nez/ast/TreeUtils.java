@@ -48,4 +48,21 @@ public class TreeUtils {
 		}
 	}
 
+	/**
+	 * Reports the tree to the handler as events, in the order a streaming
+	 * parse would.
+	 */
+
+	public static void fireEvents(Symbol label, Tree<?> node, TreeEventHandler handler) {
+		int size = node.size();
+		handler.startNode(label, node.getTag(), node.getSourcePosition(), size, size > 0 && node.isAllLabeled());
+		for (int i = 0; i < size; i++) {
+			Tree<?> sub = node.get(i);
+			if (sub != null) {
+				fireEvents(node.getLabel(i), sub, handler);
+			}
+		}
+		handler.endNode(label, node.getTag(), node.getSourcePosition(), node.getLength(), size == 0 ? node.toText() : null);
+	}
+
 }
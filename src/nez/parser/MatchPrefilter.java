@@ -0,0 +1,129 @@
+package nez.parser;
+
+import java.io.ByteArrayOutputStream;
+
+import nez.ast.Source;
+import nez.lang.ByteAcceptance;
+import nez.lang.Expression;
+import nez.lang.Nez;
+import nez.lang.NonTerminal;
+import nez.lang.Production;
+import nez.parser.io.ByteScanner;
+import nez.parser.io.CommonSource;
+import nez.util.StringUtils;
+
+/**
+ * MatchPrefilter finds the positions where a production may start a
+ * nonempty match. A candidate starts with a byte the production does not
+ * reject, and with the literal prefix that every match of the production
+ * begins with, if any. Bytes that cannot start a match are skipped by a
+ * ByteScanner when the source supports it.
+ */
+
+public final class MatchPrefilter {
+	private static final int MaxDepth = 16;
+
+	private final boolean[] firstBytes = new boolean[256];
+	private final byte[] prefix;
+	private final ByteScanner scanner;
+
+	public MatchPrefilter(Production p) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (p != null) {
+			Expression e = p.getExpression();
+			appendPrefix(e, out, 0);
+			for (int ch = 0; ch < 256; ch++) {
+				firstBytes[ch] = ByteAcceptance.acc(e, ch) != ByteAcceptance.Reject;
+			}
+		} else {
+			for (int ch = 0; ch < 256; ch++) {
+				firstBytes[ch] = true;
+			}
+		}
+		this.prefix = out.toByteArray();
+		if (prefix.length > 0) {
+			int first = prefix[0] & 0xff;
+			for (int ch = 0; ch < 256; ch++) {
+				firstBytes[ch] = firstBytes[ch] && ch == first;
+			}
+		}
+		boolean[] skipped = new boolean[256];
+		for (int ch = 0; ch < 256; ch++) {
+			skipped[ch] = !firstBytes[ch];
+		}
+		this.scanner = ByteScanner.newScanner(skipped);
+	}
+
+	/* appends the literal bytes that every match starts with */
+
+	private static boolean appendPrefix(Expression e, ByteArrayOutputStream out, int depth) {
+		if (e instanceof Nez.Byte) {
+			int ch = ((Nez.Byte) e).byteChar;
+			if (ch > 255) {
+				return false; // EOF in binary grammars
+			}
+			out.write(ch);
+			return true;
+		}
+		if (e instanceof Nez.MultiByte) {
+			byte[] b = ((Nez.MultiByte) e).byteseq;
+			out.write(b, 0, b.length);
+			return true;
+		}
+		if (e instanceof Nez.Pair || e instanceof Nez.Sequence) {
+			for (Expression sub : e) {
+				if (!appendPrefix(sub, out, depth)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (e instanceof Nez.LinkTree || e instanceof Nez.Detree) {
+			return appendPrefix(e.get(0), out, depth);
+		}
+		if (e instanceof NonTerminal && depth < MaxDepth) {
+			return appendPrefix(((NonTerminal) e).deReference(), out, depth + 1);
+		}
+		return e instanceof Nez.Empty || e instanceof Nez.BeginTree || e instanceof Nez.EndTree || e instanceof Nez.FoldTree || e instanceof Nez.Tag || e instanceof Nez.Replace;
+	}
+
+	public final byte[] getPrefix() {
+		return prefix;
+	}
+
+	public final boolean isFirstByte(int ch) {
+		return firstBytes[ch];
+	}
+
+	/**
+	 * Returns the first candidate at or after pos, or -1 if none is left
+	 * before the end of the source.
+	 */
+
+	public final long next(Source s, long pos) {
+		while (true) {
+			if (scanner != null && s instanceof CommonSource) {
+				pos = ((CommonSource) s).skip(pos, scanner);
+			}
+			if (s.eof(pos)) {
+				return -1;
+			}
+			if (firstBytes[s.byteAt(pos)] && s.match(pos, prefix)) {
+				return pos;
+			}
+			pos++;
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("first=");
+		sb.append(StringUtils.stringfyByteSet(firstBytes));
+		if (prefix.length > 0) {
+			sb.append(" prefix=");
+			StringUtils.formatUTF8(sb, prefix);
+		}
+		return sb.toString();
+	}
+}
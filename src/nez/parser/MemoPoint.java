@@ -70,20 +70,46 @@ public final class MemoPoint {
 		return memoMiss + memoFailHit + memoHit;
 	}
 
-	protected final boolean checkDeactivation() {
-		if (memoMiss == 32) {
-			if (memoHit < 2) {
-				return true;
-			}
-		}
-		if (memoMiss % 64 == 0) {
-			if (memoHit == 0) {
-				return true;
-			}
+	/* Adaptive memoization; decided per context by MemoStats */
+
+	private double threshold = -1; // negative: always memoize
+	int retry; // skipped lookups before retrying, 0: never
+	private int windowHit;
+	private int windowMiss;
+	private int skipped;
+	private volatile boolean disabled;
+
+	public final void setAdaptive(double threshold, int retry) {
+		this.threshold = threshold;
+		this.retry = retry;
+	}
 
-			return memoMiss / memoHit > 10;
-		}
-		return false;
+	public final boolean isAdaptive() {
+		return threshold >= 0;
+	}
+
+	final boolean checkDeactivation(int windowHit, int windowMiss) {
+		return threshold >= 0 && windowHit < windowMiss * threshold;
+	}
+
+	final synchronized void load(MemoStats stats, int id) {
+		stats.load(id, windowHit, windowMiss, skipped, disabled);
+	}
+
+	final synchronized void merge(int hit, int failHit, long length, int max, int miss, int windowHit, int windowMiss, int skipped, boolean disabled) {
+		this.memoHit += hit;
+		this.memoFailHit += failHit;
+		this.hitLength += length;
+		this.maxLength = Math.max(maxLength, max);
+		this.memoMiss += miss;
+		this.windowHit = windowHit;
+		this.windowMiss = windowMiss;
+		this.skipped = skipped;
+		this.disabled = disabled;
+	}
+
+	public final boolean isActive() {
+		return !disabled;
 	}
 
 	@Override
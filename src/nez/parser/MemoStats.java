@@ -0,0 +1,115 @@
+package nez.parser;
+
+import java.util.Arrays;
+
+/**
+ * MemoStats counts the memo lookups of a single context. A parser and its
+ * memo points are shared among threads, so lookups are counted here and
+ * merged into the memo points when a parse ends. Adaptive memoization
+ * decides on the counts of a context, starting from the state the memo
+ * points had when the parse started.
+ */
+
+public final class MemoStats {
+	static final int Window = 64; // misses between decisions
+
+	private final MemoPoint[] points; // indexed by id
+	private final int[] hits;
+	private final int[] failHits;
+	private final long[] hitLengths;
+	private final int[] maxLengths;
+	private final int[] misses;
+	private final int[] windowHits;
+	private final int[] windowMisses;
+	private final int[] skipped;
+	private final boolean[] disabled;
+
+	public MemoStats(MemoPoint[] points) {
+		int n = points.length;
+		this.points = points;
+		this.hits = new int[n];
+		this.failHits = new int[n];
+		this.hitLengths = new long[n];
+		this.maxLengths = new int[n];
+		this.misses = new int[n];
+		this.windowHits = new int[n];
+		this.windowMisses = new int[n];
+		this.skipped = new int[n];
+		this.disabled = new boolean[n];
+	}
+
+	public final boolean isFor(MemoPoint[] points) {
+		return this.points == points;
+	}
+
+	public final void start() {
+		Arrays.fill(hits, 0);
+		Arrays.fill(failHits, 0);
+		Arrays.fill(hitLengths, 0);
+		Arrays.fill(maxLengths, 0);
+		Arrays.fill(misses, 0);
+		for (int id = 0; id < points.length; id++) {
+			points[id].load(this, id);
+		}
+	}
+
+	void load(int id, int windowHit, int windowMiss, int skipped, boolean disabled) {
+		this.windowHits[id] = windowHit;
+		this.windowMisses[id] = windowMiss;
+		this.skipped[id] = skipped;
+		this.disabled[id] = disabled;
+	}
+
+	public final void merge() {
+		for (int id = 0; id < points.length; id++) {
+			points[id].merge(hits[id], failHits[id], hitLengths[id], maxLengths[id], misses[id], windowHits[id], windowMisses[id], skipped[id], disabled[id]);
+		}
+	}
+
+	/**
+	 * Returns true if lookups and stores are skipped because the recent hit
+	 * ratio fell below the threshold. Each call counts as a skipped lookup
+	 * toward re-enabling the memo point.
+	 */
+
+	public final boolean isDisabled(int id) {
+		if (disabled[id] && points[id].retry > 0 && ++skipped[id] >= points[id].retry) {
+			this.disabled[id] = false;
+			this.skipped[id] = 0;
+			this.windowHits[id] = 0;
+			this.windowMisses[id] = 0;
+		}
+		return disabled[id];
+	}
+
+	public final boolean isActive(int id) {
+		return !disabled[id];
+	}
+
+	public final void memoHit(int id, int consumed) {
+		hits[id]++;
+		windowHits[id]++;
+		hitLengths[id] += consumed;
+		if (maxLengths[id] < consumed) {
+			maxLengths[id] = consumed;
+		}
+	}
+
+	public final void failHit(int id) {
+		failHits[id]++;
+		windowHits[id]++;
+	}
+
+	public final void miss(int id) {
+		misses[id]++;
+		if (++windowMisses[id] == Window) {
+			if (points[id].checkDeactivation(windowHits[id], windowMisses[id])) {
+				this.disabled[id] = true;
+				this.skipped[id] = 0;
+			}
+			this.windowHits[id] = 0;
+			this.windowMisses[id] = 0;
+		}
+	}
+
+}
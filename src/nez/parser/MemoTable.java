@@ -1,5 +1,8 @@
 package nez.parser;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.HashMap;
 
 public abstract class MemoTable {
@@ -21,12 +24,26 @@ public abstract class MemoTable {
 	}
 
 	public static MemoTable newTable(int windowSize, int memoPointSize) {
+		return newTable(windowSize, memoPointSize, true);
+	}
+
+	public static MemoTable newTable(int windowSize, int memoPointSize, boolean primitive) {
+		return newTable(windowSize, memoPointSize, primitive, false);
+	}
+
+	public static MemoTable newTable(int windowSize, int memoPointSize, boolean primitive, boolean offHeap) {
 		if (memoPointSize == 0 || windowSize == 0) {
 			return new NullTable(windowSize, memoPointSize);
 		}
 		if (windowSize < -1) {
 			return new PackratHashTable(windowSize, memoPointSize);
 		}
+		if (offHeap) {
+			return new OffHeapTable(windowSize, memoPointSize);
+		}
+		if (primitive) {
+			return new PrimitiveTable(windowSize, memoPointSize);
+		}
 		return new ElasticTable(windowSize, memoPointSize);
 	}
 
@@ -121,6 +138,196 @@ class ElasticTable extends MemoTable {
 
 }
 
+/**
+ * PrimitiveTable keeps entries in parallel arrays indexed by key & mask. The
+ * returned MemoEntry is reused and only valid until the next lookup.
+ */
+
+class PrimitiveTable extends MemoTable {
+	private final long[] keys;
+	private final int[] consumed;
+	private final int[] stateValues;
+	private final boolean[] failed;
+	private final Object[] results;
+	private final int mask;
+	private final int shift;
+	private final MemoEntry entry = new MemoEntry();
+
+	PrimitiveTable(int w, int n) {
+		this.shift = (int) (Math.log(n) / Math.log(2.0)) + 1;
+		int size = Integer.highestOneBit(Math.max(1, w * 2 - 1)) << shift;
+		this.keys = new long[size];
+		this.consumed = new int[size];
+		this.stateValues = new int[size];
+		this.failed = new boolean[size];
+		this.results = new Object[size];
+		this.mask = size - 1;
+		Arrays.fill(keys, -1);
+		initStat();
+	}
+
+	final long longkey(long pos, int memoPoint, int shift) {
+		return ((pos << shift) | memoPoint) & Long.MAX_VALUE;
+	}
+
+	@Override
+	public void setMemo(long pos, int memoPoint, boolean failed, Object result, int consumed, int stateValue) {
+		long key = longkey(pos, memoPoint, shift);
+		int slot = (int) (key & mask);
+		this.keys[slot] = key;
+		this.failed[slot] = failed;
+		this.results[slot] = result;
+		this.consumed[slot] = consumed;
+		this.stateValues[slot] = stateValue;
+		this.CountStored += 1;
+	}
+
+	private MemoEntry entry(int slot) {
+		entry.failed = failed[slot];
+		entry.result = results[slot];
+		entry.consumed = consumed[slot];
+		entry.stateValue = stateValues[slot];
+		return entry;
+	}
+
+	@Override
+	public final MemoEntry getMemo(long pos, int memoPoint) {
+		long key = longkey(pos, memoPoint, shift);
+		int slot = (int) (key & mask);
+		if (keys[slot] == key) {
+			this.CountUsed += 1;
+			return entry(slot);
+		}
+		return null;
+	}
+
+	@Override
+	public final MemoEntry getStateMemo(long pos, int memoPoint, int stateValue) {
+		long key = longkey(pos, memoPoint, shift);
+		int slot = (int) (key & mask);
+		if (keys[slot] == key) {
+			if (stateValues[slot] == stateValue) {
+				this.CountUsed += 1;
+				return entry(slot);
+			}
+			this.CountInvalidated += 1;
+		}
+		return null;
+	}
+
+}
+
+/**
+ * OffHeapTable keeps the keys, consumed lengths, states and flags of entries
+ * in a direct buffer, which the garbage collector never scans. Trees are kept
+ * in a smaller ring of objects and an entry refers to its tree by ring
+ * index; once the ring overwrites the tree, the entry turns into a miss. The
+ * returned MemoEntry is reused and only valid until the next lookup.
+ */
+
+class OffHeapTable extends MemoTable {
+	private static final int EntrySize = 24; // key, consumed, state, tree, failed
+	private static final int MaxSize = Integer.highestOneBit((1 << 30) / EntrySize); // slots within 1 GiB of buffer
+	private final ByteBuffer entries;
+	private final Object[] trees;
+	private final int[] owners; // the slot that refers to each tree
+	private final int treeMask;
+	private int unused;
+	private final int mask;
+	private final int shift;
+	private final MemoEntry entry = new MemoEntry();
+
+	OffHeapTable(int w, int n) {
+		this.shift = (int) (Math.log(n) / Math.log(2.0)) + 1;
+		int size = (int) Math.min((long) Integer.highestOneBit(Math.max(1, w * 2 - 1)) << shift, MaxSize);
+		this.entries = ByteBuffer.allocateDirect(size * EntrySize).order(ByteOrder.nativeOrder());
+		this.mask = size - 1;
+		int ring = Math.max(64, size >> 2);
+		this.trees = new Object[ring];
+		this.owners = new int[ring];
+		this.treeMask = ring - 1;
+		Arrays.fill(owners, -1);
+		for (int slot = 0; slot < size; slot++) {
+			entries.putLong(slot * EntrySize, -1);
+		}
+		initStat();
+	}
+
+	final long longkey(long pos, int memoPoint, int shift) {
+		return ((pos << shift) | memoPoint) & Long.MAX_VALUE;
+	}
+
+	@Override
+	public void setMemo(long pos, int memoPoint, boolean failed, Object result, int consumed, int stateValue) {
+		long key = longkey(pos, memoPoint, shift);
+		int slot = (int) (key & mask);
+		int offset = slot * EntrySize;
+		int tree = 0;
+		if (result != null) {
+			tree = unused;
+			this.unused = (unused + 1) & treeMask;
+			trees[tree] = result;
+			owners[tree] = slot;
+			tree++;
+		}
+		entries.putLong(offset, key);
+		entries.putInt(offset + 8, consumed);
+		entries.putInt(offset + 12, stateValue);
+		entries.putInt(offset + 16, tree);
+		entries.putInt(offset + 20, failed ? 1 : 0);
+		this.CountStored += 1;
+	}
+
+	private MemoEntry entry(int slot, int offset) {
+		int tree = entries.getInt(offset + 16);
+		if (tree == 0) {
+			entry.result = null;
+		} else if (owners[tree - 1] == slot) {
+			entry.result = trees[tree - 1];
+		} else {
+			return null; // the tree has been overwritten
+		}
+		entry.failed = entries.getInt(offset + 20) != 0;
+		entry.consumed = entries.getInt(offset + 8);
+		entry.stateValue = entries.getInt(offset + 12);
+		return entry;
+	}
+
+	@Override
+	public final MemoEntry getMemo(long pos, int memoPoint) {
+		long key = longkey(pos, memoPoint, shift);
+		int slot = (int) (key & mask);
+		int offset = slot * EntrySize;
+		if (entries.getLong(offset) == key) {
+			MemoEntry m = entry(slot, offset);
+			if (m != null) {
+				this.CountUsed += 1;
+			}
+			return m;
+		}
+		return null;
+	}
+
+	@Override
+	public final MemoEntry getStateMemo(long pos, int memoPoint, int stateValue) {
+		long key = longkey(pos, memoPoint, shift);
+		int slot = (int) (key & mask);
+		int offset = slot * EntrySize;
+		if (entries.getLong(offset) == key) {
+			if (entries.getInt(offset + 12) == stateValue) {
+				MemoEntry m = entry(slot, offset);
+				if (m != null) {
+					this.CountUsed += 1;
+				}
+				return m;
+			}
+			this.CountInvalidated += 1;
+		}
+		return null;
+	}
+
+}
+
 class PackratHashTable extends MemoTable {
 	HashMap<Long, MemoEntryList> memoMap;
 	private MemoEntryList UnusedMemo;
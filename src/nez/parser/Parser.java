@@ -1,27 +1,66 @@
 package nez.parser;
 
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 import nez.ast.CommonTree;
 import nez.ast.Source;
+import nez.ast.Symbol;
 import nez.ast.SourceError;
 import nez.ast.Tree;
+import nez.ast.TreeEventHandler;
+import nez.ast.TreeUtils;
+import nez.lang.Expression;
 import nez.lang.Grammar;
+import nez.lang.Nez;
+import nez.lang.NonTerminal;
+import nez.lang.Production;
+import nez.lang.SymbolMutation;
 import nez.parser.io.CommonSource;
+import nez.parser.io.MappedFileSource;
+import nez.parser.io.StreamSource;
+import nez.parser.io.StringSource;
 import nez.parser.vm.ParserMachineContext;
+import nez.parser.vm.ParserMachineProfiler;
 import nez.util.ConsoleUtils;
+import nez.util.StringUtils;
 import nez.util.UList;
+import nez.util.Verbose;
 
 public final class Parser {
 	private final Grammar grammar;
 	private final ParserStrategy strategy;
 	private final String start;
+	private final TreeProjection projection;
 
 	public Parser(Grammar grammar, String start, ParserStrategy strategy) {
 		this.grammar = grammar;
 		this.start = start;
 		this.strategy = strategy;
+		this.projection = TreeProjection.newProjection(strategy);
+	}
+
+	/**
+	 * Creates a parser from a code that is already compiled, such as one
+	 * loaded from a parser image. Such a parser has no grammar; it cannot be
+	 * recompiled, and parseStream() parses its input as a whole.
+	 */
+
+	public Parser(ParserCode<?> code, ParserStrategy strategy) {
+		this.grammar = null;
+		this.start = null;
+		this.strategy = strategy;
+		this.projection = TreeProjection.newProjection(strategy);
+		this.pcode = code;
 	}
 
 	public final Grammar getGrammar() {
@@ -32,24 +71,44 @@ public final class Parser {
 		return strategy;
 	}
 
-	private Grammar compiledGrammar;
-	private ParserCode<?> pcode;
+	private volatile Grammar compiledGrammar;
+	private volatile ParserCode<?> pcode;
 
 	public final Grammar getCompiledGrammar() {
-		if (compiledGrammar == null) {
-			compiledGrammar = new ParserOptimizer().optimize(grammar.getProduction(start), strategy, null);
+		Grammar g = compiledGrammar;
+		if (g == null) {
+			synchronized (this) {
+				g = compiledGrammar;
+				if (g == null) {
+					if (grammar == null) {
+						return pcode.getCompiledGrammar();
+					}
+					g = new ParserOptimizer().optimize(grammar.getProduction(start), strategy, null);
+					compiledGrammar = g;
+				}
+			}
 		}
-		return compiledGrammar;
+		return g;
 	}
 
 	public final ParserCode<?> getParserCode() {
-		if (pcode == null) {
-			pcode = strategy.newParserCode(getCompiledGrammar());
+		ParserCode<?> code = pcode;
+		if (code == null) {
+			synchronized (this) {
+				code = pcode;
+				if (code == null) {
+					code = strategy.newParserCode(getCompiledGrammar());
+					pcode = code;
+				}
+			}
 		}
-		return pcode;
+		return code;
 	}
 
-	public final ParserCode<?> compile() {
+	public final synchronized ParserCode<?> compile() {
+		if (grammar == null) {
+			return pcode;
+		}
 		this.pcode = strategy.newParserCode(getCompiledGrammar());
 		return pcode;
 	}
@@ -59,9 +118,49 @@ public final class Parser {
 		return strategy.newParserContext(source, pcode.getMemoPointSize(), prototype);
 	}
 
+	/* Context pool */
+
+	private final ThreadLocal<ParserMachineContext<?>> contextPool = new ThreadLocal<>();
+
+	@SuppressWarnings("unchecked")
+	private <T extends Tree<T>> ParserMachineContext<T> acquireContext(ParserCode<?> code, Source s, T proto) {
+		if (strategy.Profiling) {
+			ParserMachineContext<T> ctx = new ParserMachineProfiler<>(s, proto, getProductionProfiler());
+			ctx.initMemoTable(strategy.SlidingWindow, code.getMemoPointSize(), strategy.OffHeapMemo);
+			ctx.memoStats = new MemoStats(code.getMemoPoints()); // the report shows memo hits
+			return ctx;
+		}
+		ParserMachineContext<T> ctx = (ParserMachineContext<T>) contextPool.get();
+		if (ctx == null) {
+			ctx = new ParserMachineContext<>(s, proto);
+			ctx.initMemoTable(strategy.SlidingWindow, code.getMemoPointSize(), strategy.OffHeapMemo);
+			return ctx;
+		}
+		contextPool.set(null); // taken while in use, so reentrant calls get their own
+		ctx.reset(s, proto);
+		return ctx;
+	}
+
+	private void releaseContext(ParserMachineContext<?> ctx) {
+		if (ctx instanceof ParserMachineProfiler) {
+			((ParserMachineProfiler<?>) ctx).flush();
+			return;
+		}
+		ctx.clearMemoTable();
+		ctx.reset(null, null);
+		contextPool.set(ctx);
+	}
+
 	/* -------------------------------------------------------------------- */
 
 	public final Object perform(ParserInstance context) {
+		ParserResult<?> result = new ParserResult<>(context.getSource());
+		Object matched = perform(context, result);
+		addErrors(result);
+		return matched;
+	}
+
+	private Object perform(ParserInstance context, ParserResult<?> result) {
 		ParserCode<?> code = getParserCode();
 		// context.init(newMemoTable(context), prototype);
 		if (prof != null) {
@@ -72,35 +171,128 @@ public final class Parser {
 			context.doneProfiling(prof);
 		}
 		if (matched == null) {
-			perror(context.getSource(), context.getMaximumPosition(), "syntax error");
+			result.perror(context.getMaximumPosition(), "syntax error");
 			return null;
 		}
 		if (disabledUncosumed && context.hasUnconsumed()) {
-			perror(context.getSource(), context.getPosition(), "unconsumed");
+			result.perror(context.getPosition(), "unconsumed");
 		}
 		return matched;
 	}
 
-	@SuppressWarnings("unchecked")
 	public final <T extends Tree<T>> T perform(Source s, T proto) {
+		ParserResult<T> result = parseResult(s, proto);
+		addErrors(result);
+		return result.getTree();
+	}
+
+	/**
+	 * Parses the source and returns the tree together with the errors of this
+	 * parse only. Unlike parse(), it leaves the errors of the parser untouched
+	 * and is safe to call on a parser shared among threads.
+	 */
+
+	@SuppressWarnings("unchecked")
+	public final <T extends Tree<T>> ParserResult<T> parseResult(Source s, T proto) {
+		ParserResult<T> result = new ParserResult<>(s);
+		proto = proto.newPrototype();
+		result.prototype = proto;
 		if (strategy.Moz) {
-			return (T) perform(newParserContext(s, proto));
+			ParserInstance context = newParserContext(s, proto);
+			T matched = project((T) perform(context, result));
+			result.set(matched, context.getPosition(), context.getMaximumPosition());
+			return result;
 		}
 
-		ParserMachineContext<T> ctx = new ParserMachineContext<>(s, proto);
 		ParserCode<?> code = getParserCode();
-		ctx.initMemoTable(strategy.SlidingWindow, code.getMemoPointSize());
-
-		T matched = code.exec(ctx);
+		ParserMachineContext<T> ctx = acquireContext(code, s, proto);
+		try {
+			exec(code, ctx, result);
+		} finally {
+			releaseContext(ctx);
+		}
+		return result;
+	}
 
+	private <T extends Tree<T>> void exec(ParserCode<?> code, ParserMachineContext<T> ctx, ParserResult<T> result) {
+		T matched = project(code.exec(ctx));
+		result.set(matched, ctx.getPosition(), ctx.getMaximumPosition());
 		if (matched == null) {
-			perror(s, ctx.getMaximumPosition(), "syntax error");
-			return null;
+			result.perror(ctx.getMaximumPosition(), "syntax error");
+		} else if (disabledUncosumed && !ctx.eof()) {
+			result.perror(ctx.getPosition(), "unconsumed");
 		}
-		if (disabledUncosumed && !ctx.eof()) {
-			perror(s, ctx.getPosition(), "unconsumed");
+	}
+
+	/**
+	 * Keeps the projected nodes only (see ParserStrategy.Projection). The
+	 * optimizer has already dropped the links that cannot reach them.
+	 */
+
+	private <T extends Tree<T>> T project(T node) {
+		return node == null || projection == null ? node : projection.project(node);
+	}
+
+	public final ParserResult<CommonTree> parseResult(Source s) {
+		return parseResult(s, new CommonTree());
+	}
+
+	/* Incremental */
+
+	private static final int IncrementalMemoSize = 1 << 20; // at most, in slots
+
+	/**
+	 * Parses the source like parseResult(), and keeps the memo table in the
+	 * result so that reparse() can follow edits of the source.
+	 */
+
+	public final <T extends Tree<T>> ParserResult<T> parseIncremental(Source s, T proto) {
+		ParserCode<?> code = getParserCode();
+		proto = proto.newPrototype();
+		ParserMachineContext<T> ctx = new ParserMachineContext<>(s, proto);
+		ctx.initRetainedMemoTable((int) Math.min(s.length() + 1, IncrementalMemoSize), code.getMemoPointSize());
+		ParserResult<T> result = new ParserResult<>(s);
+		result.prototype = proto;
+		exec(code, ctx, result);
+		result.context = ctx;
+		return result;
+	}
+
+	/**
+	 * Parses the source of a previous result after removed bytes at offset
+	 * are replaced with inserted bytes. Memo entries that never examined the
+	 * edited bytes are reused at their shifted positions. Subtrees before the
+	 * edit are shared with the previous tree and keep its source; those after
+	 * it are copied. The memo table moves to the new result, so a previous
+	 * result can be reparsed only once; its tree stays valid.
+	 */
+
+	public final <T extends Tree<T>> ParserResult<T> reparse(ParserResult<T> previous, long offset, int removed, byte[] inserted) {
+		Source s = splice(previous.getSource(), offset, removed, inserted);
+		ParserMachineContext<T> ctx = previous.context;
+		if (ctx == null || strategy.Moz) {
+			return strategy.Moz ? parseResult(s, previous.prototype) : parseIncremental(s, previous.prototype);
 		}
-		return matched;
+		previous.context = null;
+		ParserCode<?> code = getParserCode();
+		ctx.relocateMemoTable(offset, removed, inserted.length, code.getLookahead());
+		ctx.reset(s, previous.prototype);
+		ParserResult<T> result = new ParserResult<>(s);
+		result.prototype = previous.prototype;
+		exec(code, ctx, result);
+		result.context = ctx;
+		return result;
+	}
+
+	private static Source splice(Source s, long offset, int removed, byte[] inserted) {
+		long length = s.length();
+		byte[] buf = new byte[(int) (length - removed) + inserted.length + 1];
+		byte[] head = s.subByte(0, offset);
+		byte[] tail = s.subByte(offset + removed, length);
+		System.arraycopy(head, 0, buf, 0, head.length);
+		System.arraycopy(inserted, 0, buf, head.length, inserted.length);
+		System.arraycopy(tail, 0, buf, head.length + inserted.length, tail.length);
+		return new StringSource(s.getResourceName(), s.linenum(0), buf, true);
 	}
 
 	protected ParserProfiler prof;
@@ -110,7 +302,10 @@ public final class Parser {
 		if (prof != null) {
 			compile();
 			// prof.setFile("G.File", this.start.getGrammarFile().getURN());
-			prof.setCount("G.Production", grammar.size());
+			if (grammar != null) {
+				prof.setCount("G.Production", grammar.size());
+			}
+			prof.setCount("G.UnfusedInstruction", pcode.getUnfusedInstructionSize());
 			prof.setCount("G.Instruction", pcode.getInstructionSize());
 			prof.setCount("G.MemoPoint", pcode.getMemoPointSize());
 		}
@@ -120,6 +315,20 @@ public final class Parser {
 		return prof;
 	}
 
+	private ProductionProfiler productionProfiler;
+
+	/**
+	 * Returns the profile of production calls, which is recorded while
+	 * ParserStrategy.Profiling is enabled.
+	 */
+
+	public final synchronized ProductionProfiler getProductionProfiler() {
+		if (productionProfiler == null) {
+			productionProfiler = new ProductionProfiler(start != null ? start : "Start");
+		}
+		return productionProfiler;
+	}
+
 	public void logProfiler() {
 		if (prof != null) {
 			prof.log();
@@ -129,7 +338,10 @@ public final class Parser {
 	/* --------------------------------------------------------------------- */
 
 	public final boolean match(Source s) {
-		return perform(newParserContext(s, null)) != null;
+		if (strategy.Moz) {
+			return perform(newParserContext(s, new CommonTree())) != null;
+		}
+		return perform(s, new CommonTree()) != null;
 	}
 
 	public final boolean match(String str) {
@@ -149,6 +361,572 @@ public final class Parser {
 		return parse(sc, new CommonTree());
 	}
 
+	/* Batch */
+
+	public final List<ParserResult<CommonTree>> parseAll(List<Source> sources, int parallelism) {
+		return parseAll(sources, new CommonTree(), parallelism);
+	}
+
+	public final List<ParserResult<CommonTree>> parseAll(List<Source> sources, ForkJoinPool pool) {
+		return parseAll(sources, new CommonTree(), pool);
+	}
+
+	/**
+	 * Parses the sources on a fork-join pool of the given parallelism and
+	 * returns their results in input order. Workers share the compiled code
+	 * and each uses its own pooled context.
+	 */
+
+	public final <T extends Tree<T>> List<ParserResult<T>> parseAll(List<Source> sources, T proto, int parallelism) {
+		if (parallelism <= 1) {
+			List<ParserResult<T>> results = new ArrayList<>(sources.size());
+			for (Source s : sources) {
+				results.add(parseResult(s, proto));
+			}
+			return results;
+		}
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			return parseAll(sources, proto, pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Parses the sources on the given pool. Callers that parse batch after
+	 * batch should pass the same pool, so that its workers keep their pooled
+	 * contexts. If the calling thread is interrupted, a
+	 * CancellationException is thrown rather than returning fewer results.
+	 */
+
+	public final <T extends Tree<T>> List<ParserResult<T>> parseAll(List<Source> sources, T proto, ForkJoinPool pool) {
+		List<ParserResult<T>> results = new ArrayList<>(sources.size());
+		if (pool.getParallelism() <= 1 || sources.isEmpty()) {
+			for (Source s : sources) {
+				results.add(parseResult(s, proto));
+			}
+			return results;
+		}
+		getParserCode(); // compile once before forking
+		List<Callable<ParserResult<T>>> tasks = new ArrayList<>(sources.size());
+		for (Source s : sources) {
+			tasks.add(() -> parseResult(s, proto));
+		}
+		try {
+			for (Future<ParserResult<T>> f : pool.invokeAll(tasks)) {
+				results.add(f.get());
+			}
+		} catch (InterruptedException e) {
+			throw cancelled(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return results;
+	}
+
+	private static CancellationException cancelled(InterruptedException e) {
+		Thread.currentThread().interrupt();
+		CancellationException c = new CancellationException("interrupted");
+		c.initCause(e);
+		return c;
+	}
+
+	/* Chunked */
+
+	private static final int MinChunkSize = 64 * 1024;
+
+	/**
+	 * Parses a single source on a fork-join pool. The source is split into
+	 * chunks after occurrences of ParserStrategy.RecordSeparator, or of the
+	 * byte that every record (see parseStream) ends with. Each chunk is
+	 * parsed record by record with its own context, and the records are
+	 * linked into a root as the start production does. A boundary counts
+	 * only if the records of the previous chunk end there exactly, so the
+	 * tree is the same as that of parseResult(); if any chunk fails, the
+	 * source is parsed sequentially. Trees other than CommonTree keep a parse
+	 * in one table, so their records are parsed as CommonTree and copied.
+	 */
+
+	public final <T extends Tree<T>> ParserResult<T> parseChunked(Source s, T proto, int parallelism) {
+		if (parallelism <= 1) {
+			return parseResult(s, proto);
+		}
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			return parseChunked(s, proto, pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public final <T extends Tree<T>> ParserResult<T> parseChunked(Source s, T proto, ForkJoinPool pool) {
+		int parallelism = pool.getParallelism();
+		Parser record = getRecordParser();
+		RecordRoot root = record == null ? null : getRecordRoot();
+		if (root == null || parallelism <= 1 || s.length() < MinChunkSize * 2 || !(s instanceof StringSource || s instanceof MappedFileSource)) {
+			return parseResult(s, proto);
+		}
+		long[] bounds = splitChunks(s, root.separator, (int) Math.min(parallelism * 4L, s.length() / MinChunkSize));
+		if (bounds.length <= 2) {
+			return parseResult(s, proto);
+		}
+		T top = proto.newPrototype();
+		List<T> records;
+		if (proto instanceof CommonTree) {
+			records = record.parseChunks(s, proto, bounds, pool);
+		} else {
+			// nodes of a table-backed tree, such as FlatTree, link only within
+			// their table; chunks are parsed apart and copied into one table
+			List<CommonTree> chunks = record.parseChunks(s, new CommonTree(), bounds, pool);
+			records = null;
+			if (chunks != null) {
+				records = new ArrayList<>(chunks.size());
+				for (CommonTree t : chunks) {
+					records.add(copy(top, t));
+				}
+			}
+		}
+		if (records == null) {
+			return parseResult(s, proto);
+		}
+		T node = top.newInstance(root.tag, s, 0, s.length(), records.size(), root.value);
+		for (int i = 0; i < records.size(); i++) {
+			node.link(i, root.label, records.get(i));
+		}
+		ParserResult<T> result = new ParserResult<>(s);
+		result.prototype = top;
+		result.set(project(node), s.length(), s.length());
+		return result;
+	}
+
+	/* parses the chunks between bounds; null if the records do not cover s */
+
+	private <T extends Tree<T>> List<T> parseChunks(Source s, T proto, long[] bounds, ForkJoinPool pool) {
+		getParserCode();
+		List<Callable<List<T>>> tasks = new ArrayList<>(bounds.length - 1);
+		for (int i = 0; i < bounds.length - 1; i++) {
+			long start = bounds[i];
+			long end = bounds[i + 1];
+			tasks.add(() -> parseRecords(s, proto, start, end));
+		}
+		List<T> records = new ArrayList<>();
+		try {
+			List<Future<List<T>>> chunks = pool.invokeAll(tasks);
+			for (int i = 0; i < chunks.size(); i++) {
+				List<T> l = chunks.get(i).get();
+				if (l == null) {
+					// bounds[i] is where the records so far end; go on from there
+					Verbose.println("chunk %d/%d failed; parsing sequentially from %d", i, chunks.size(), bounds[i]);
+					l = parseRecords(s, proto, bounds[i], s.length());
+					if (l == null) {
+						return null;
+					}
+					records.addAll(l);
+					break;
+				}
+				records.addAll(l);
+			}
+		} catch (InterruptedException e) {
+			throw cancelled(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return records;
+	}
+
+	/* copies a record into the tree of proto */
+
+	private static <T extends Tree<T>> T copy(T proto, CommonTree t) {
+		T c = proto.newInstance(t.getTag(), t.getSource(), t.getSourcePosition(), t.getLength(), t.size(), t.getValue());
+		for (int i = 0; i < t.size(); i++) {
+			CommonTree sub = t.get(i);
+			c.link(i, t.getLabel(i), sub == null ? null : copy(proto, sub));
+		}
+		return c;
+	}
+
+	/* parses records from pos; null unless they end exactly at end */
+
+	private <T extends Tree<T>> List<T> parseRecords(Source s, T proto, long pos, long end) {
+		ParserCode<?> code = getParserCode();
+		ParserMachineContext<T> ctx = acquireContext(code, s, proto);
+		try {
+			List<T> records = new ArrayList<>();
+			while (pos < end) {
+				ctx.setPosition(pos);
+				ctx.backLog(0);
+				ctx.initVM();
+				T node = code.exec(ctx);
+				if (node == null || ctx.getPosition() == pos) {
+					return null;
+				}
+				records.add(node);
+				pos = ctx.getPosition();
+			}
+			return pos == end ? records : null;
+		} finally {
+			releaseContext(ctx);
+		}
+	}
+
+	private static long[] splitChunks(Source s, byte[] separator, int n) {
+		long length = s.length();
+		long[] bounds = new long[n + 1];
+		int size = 1;
+		for (int i = 1; i < n; i++) {
+			long pos = Math.max(length * i / n, bounds[size - 1] + 1);
+			long limit = length * (i + 1) / n;
+			while (pos < limit && !s.match(pos, separator)) {
+				pos++;
+			}
+			if (pos < limit) {
+				bounds[size++] = pos + separator.length;
+			}
+		}
+		bounds[size++] = length;
+		return Arrays.copyOf(bounds, size);
+	}
+
+	/* the root that the start production builds around its records */
+
+	private static class RecordRoot {
+		Symbol tag = Symbol.Null;
+		Symbol label;
+		String value;
+		byte[] separator;
+		int begins;
+		int ends;
+		boolean linked;
+	}
+
+	private RecordRoot recordRoot;
+	private boolean checkedRecordRoot;
+
+	private synchronized RecordRoot getRecordRoot() {
+		if (!checkedRecordRoot) {
+			checkedRecordRoot = true;
+			RecordRoot root = new RecordRoot();
+			Production p = recordParser.grammar.getProduction(recordParser.start);
+			if (SymbolMutation.newAnalyzer().isMutated(p.getExpression())) {
+				return null; // records depend on each other
+			}
+			if (strategy.RecordSeparator != null) {
+				root.separator = StringUtils.utf8(StringUtils.unquoteString(strategy.RecordSeparator));
+			} else {
+				int ch = lastByte(p.getExpression(), 0);
+				root.separator = ch < 0 ? null : new byte[] { (byte) ch };
+			}
+			if (root.separator != null && root.separator.length > 0 && checkRecordRoot(grammar.getProduction(start).getExpression(), root, 0)) {
+				if (root.begins == 1 && root.ends == 1 && root.linked) {
+					recordRoot = root;
+				}
+			}
+		}
+		return recordRoot;
+	}
+
+	private static boolean checkRecordRoot(Expression e, RecordRoot root, int depth) {
+		if (e instanceof Nez.Repetition) {
+			Expression inner = e.get(0);
+			if (inner instanceof Nez.LinkTree && inner.get(0) instanceof NonTerminal && !root.linked) {
+				root.label = ((Nez.LinkTree) inner).label;
+				root.linked = true;
+				return true;
+			}
+			return false;
+		}
+		if (e instanceof NonTerminal) {
+			return depth < 8 && checkRecordRoot(((NonTerminal) e).deReference(), root, depth + 1);
+		}
+		if (e instanceof Nez.Pair || e instanceof Nez.Sequence) {
+			for (Expression sub : e) {
+				if (!checkRecordRoot(sub, root, depth)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (e instanceof Nez.BeginTree) {
+			root.begins++;
+			return ((Nez.BeginTree) e).shift == 0 && !root.linked;
+		}
+		if (e instanceof Nez.EndTree) {
+			Nez.EndTree end = (Nez.EndTree) e;
+			root.ends++;
+			if (end.tag != null) {
+				root.tag = end.tag;
+			}
+			if (end.value != null) {
+				root.value = end.value;
+			}
+			return end.shift == 0 && root.linked;
+		}
+		if (e instanceof Nez.Tag) {
+			root.tag = ((Nez.Tag) e).tag;
+			return true;
+		}
+		if (e instanceof Nez.Replace) {
+			root.value = ((Nez.Replace) e).value;
+			return true;
+		}
+		if (e instanceof Nez.Not) {
+			return root.linked && e.get(0) instanceof Nez.Any; // only !. after the records
+		}
+		return e instanceof Nez.Empty;
+	}
+
+	/* the byte that every consuming alternative of e ends with, or -1 */
+
+	private static int lastByte(Expression e, int depth) {
+		if (e instanceof Nez.Byte) {
+			return ((Nez.Byte) e).byteChar < 256 ? ((Nez.Byte) e).byteChar : -1;
+		}
+		if (e instanceof Nez.MultiByte) {
+			byte[] b = ((Nez.MultiByte) e).byteseq;
+			return b[b.length - 1] & 0xff;
+		}
+		if (e instanceof Nez.Pair || e instanceof Nez.Sequence) {
+			for (int i = e.size() - 1; i >= 0; i--) {
+				if (!isUnconsumed(e.get(i))) {
+					return lastByte(e.get(i), depth);
+				}
+			}
+			return -1;
+		}
+		if (e instanceof Nez.Choice) {
+			int ch = -1;
+			for (Expression sub : e) {
+				if (isUnconsumed(sub)) {
+					continue; // such as !. at the end of input
+				}
+				int c = lastByte(sub, depth);
+				if (c < 0 || (ch >= 0 && c != ch)) {
+					return -1;
+				}
+				ch = c;
+			}
+			return ch;
+		}
+		if (e instanceof Nez.LinkTree || e instanceof Nez.Detree) {
+			return lastByte(e.get(0), depth);
+		}
+		if (e instanceof NonTerminal) {
+			return depth < 8 ? lastByte(((NonTerminal) e).deReference(), depth + 1) : -1;
+		}
+		return -1;
+	}
+
+	/* Streaming */
+
+	private volatile Parser recordParser;
+
+	public final boolean parseStream(InputStream in, Consumer<CommonTree> callback) {
+		return parseStream(new StreamSource(in), new CommonTree(), callback);
+	}
+
+	/**
+	 * Parses the source one record at a time and passes each record tree to
+	 * the callback. A record is the nonterminal repeated by the start
+	 * production, e.g. Line in { ($(Line))* #CSV }. Input before the next
+	 * record is discarded from a StreamSource once the callback returns, so
+	 * record trees must be consumed within the callback. If the start
+	 * production is not such a repetition, the whole input is parsed and
+	 * emitted as a single tree.
+	 */
+
+	public final <T extends Tree<T>> boolean parseStream(Source source, T proto, Consumer<T> callback) {
+		Parser record = getRecordParser();
+		if (record == null) {
+			T node = perform(source, proto);
+			if (node != null) {
+				callback.accept(node);
+			}
+			return node != null;
+		}
+		ParserCode<?> code = record.getParserCode();
+		ParserMachineContext<T> ctx = record.acquireContext(code, source, proto.newPrototype());
+		try {
+			long pos = 0;
+			while (!source.eof(pos)) {
+				ctx.setPosition(pos);
+				ctx.backLog(0);
+				ctx.initVM();
+				T node = code.exec(ctx);
+				if (node == null) {
+					perror(source, ctx.getMaximumPosition(), "syntax error");
+					return false;
+				}
+				if (ctx.getPosition() == pos) {
+					perror(source, pos, "unconsumed");
+					return false;
+				}
+				callback.accept(project(node));
+				pos = ctx.getPosition();
+				if (source instanceof StreamSource) {
+					((StreamSource) source).discard(pos);
+				}
+			}
+			return true;
+		} finally {
+			record.releaseContext(ctx);
+		}
+	}
+
+	/**
+	 * Parses the source and reports the result as events. Each record (see
+	 * parseStream) is reported as soon as its production returns, since no
+	 * later failure can undo it, and is dropped afterwards; memory is bounded
+	 * by the largest record rather than by the whole input. Each record is
+	 * built as a tree before its events are fired, so a grammar whose start
+	 * production is not a repetition of records builds the whole tree.
+	 */
+
+	public final boolean parseEvents(Source source, TreeEventHandler handler) {
+		handler.startTree(source);
+		boolean matched = parseStream(source, new CommonTree(), (node) -> TreeUtils.fireEvents(null, node, handler));
+		handler.endTree();
+		return matched;
+	}
+
+	private synchronized Parser getRecordParser() {
+		if (recordParser == null && grammar != null) {
+			NonTerminal n = findRecord(grammar.getProduction(start).getExpression(), 0);
+			if (n != null) {
+				ParserStrategy s = strategy.clone();
+				s.Moz = false;
+				recordParser = new Parser(n.getGrammar(), n.getLocalName(), s);
+			}
+		}
+		return recordParser;
+	}
+
+	private static NonTerminal findRecord(Expression e, int depth) {
+		if (e instanceof Nez.Repetition) {
+			Expression inner = e.get(0);
+			if (inner instanceof Nez.LinkTree) {
+				inner = inner.get(0);
+			}
+			return inner instanceof NonTerminal ? (NonTerminal) inner : null;
+		}
+		if (e instanceof NonTerminal) {
+			return depth < 8 ? findRecord(((NonTerminal) e).deReference(), depth + 1) : null;
+		}
+		if (e instanceof Nez.Pair || e instanceof Nez.Sequence) {
+			NonTerminal found = null;
+			for (Expression sub : e) {
+				if (isUnconsumed(sub)) {
+					continue;
+				}
+				if (found != null) {
+					return null;
+				}
+				found = findRecord(sub, depth);
+				if (found == null) {
+					return null;
+				}
+			}
+			return found;
+		}
+		return null;
+	}
+
+	private static boolean isUnconsumed(Expression e) {
+		if (e instanceof Nez.Pair || e instanceof Nez.Sequence) {
+			for (Expression sub : e) {
+				if (!isUnconsumed(sub)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return e instanceof Nez.TreeConstruction && !(e instanceof Nez.Unary) || e instanceof Nez.Empty || e instanceof Nez.Not;
+	}
+
+	/* Find */
+
+	private final HashMap<String, Parser> findParsers = new HashMap<>();
+	private volatile MatchPrefilter prefilter;
+
+	public final List<CommonTree> findAll(Source source, String production) {
+		List<CommonTree> l = new ArrayList<>();
+		findAll(source, production, new CommonTree(), l::add);
+		return l;
+	}
+
+	/**
+	 * Reports every nonempty match of the production (or the start
+	 * production if null) in the source, from left to right and without
+	 * overlaps. The parser runs only at the candidates of a MatchPrefilter.
+	 * As in parseStream(), a StreamSource is discarded up to each match, so
+	 * a tree must be consumed within the callback. Returns the number of
+	 * matches.
+	 */
+
+	public final <T extends Tree<T>> long findAll(Source source, String production, T proto, Consumer<T> callback) {
+		Parser p = getFindParser(production);
+		ParserCode<?> code = p.getParserCode();
+		MatchPrefilter filter = p.getPrefilter();
+		ParserMachineContext<T> ctx = p.acquireContext(code, source, proto.newPrototype());
+		long count = 0;
+		try {
+			long pos = filter.next(source, 0);
+			while (pos >= 0) {
+				ctx.setPosition(pos);
+				ctx.backLog(0);
+				ctx.initVM();
+				T node = code.exec(ctx);
+				if (node != null && ctx.getPosition() > pos) {
+					callback.accept(project(node));
+					count++;
+					pos = ctx.getPosition();
+				} else {
+					pos++;
+				}
+				if (source instanceof StreamSource) {
+					((StreamSource) source).discard(pos);
+				}
+				pos = filter.next(source, pos);
+			}
+		} finally {
+			p.releaseContext(ctx);
+		}
+		return count;
+	}
+
+	private synchronized Parser getFindParser(String production) {
+		if ((production == null || production.equals(start)) && !strategy.Moz) {
+			return this;
+		}
+		if (grammar == null) {
+			throw new IllegalArgumentException("no grammar to find " + production);
+		}
+		if (production == null) {
+			production = start;
+		}
+		Parser p = findParsers.get(production);
+		if (p == null) {
+			if (!grammar.hasProduction(production)) {
+				throw new IllegalArgumentException("undefined production: " + production);
+			}
+			ParserStrategy s = strategy.clone();
+			s.Moz = false;
+			p = new Parser(grammar, production, s);
+			findParsers.put(production, p);
+		}
+		return p;
+	}
+
+	public final MatchPrefilter getPrefilter() {
+		MatchPrefilter f = prefilter;
+		if (f == null) {
+			Grammar g = getCompiledGrammar();
+			f = new MatchPrefilter(g == null ? null : g.getStartProduction());
+			prefilter = f;
+		}
+		return f;
+	}
+
 	/* Errors */
 
 	private boolean disabledUncosumed;
@@ -158,26 +936,37 @@ public final class Parser {
 		this.disabledUncosumed = disabled;
 	}
 
-	private void perror(Source source, long pos, String message) {
+	private synchronized void perror(Source source, long pos, String message) {
 		if (errors == null) {
 			this.errors = new UList<>(new SourceError[4]);
 		}
 		errors.add(new SourceError(source, pos, message));
 	}
 
-	public final boolean hasErrors() {
+	private synchronized void addErrors(ParserResult<?> result) {
+		if (result.hasErrors()) {
+			if (errors == null) {
+				this.errors = new UList<>(new SourceError[4]);
+			}
+			for (SourceError e : result.getErrors()) {
+				errors.add(e);
+			}
+		}
+	}
+
+	public final synchronized boolean hasErrors() {
 		return errors != null;
 	}
 
-	public final void clearErrors() {
+	public final synchronized void clearErrors() {
 		errors = null;
 	}
 
-	public final List<SourceError> getErrors() {
-		return errors == null ? new ArrayList<>() : errors;
+	public final synchronized List<SourceError> getErrors() {
+		return errors == null ? new ArrayList<>() : new ArrayList<>(errors);
 	}
 
-	public final boolean showErrors() {
+	public final synchronized boolean showErrors() {
 		if (errors != null) {
 			for (SourceError e : errors) {
 				ConsoleUtils.println(e.toString());
@@ -188,7 +977,7 @@ public final class Parser {
 		return false;
 	}
 
-	public final void ensureNoErrors() throws ParserException {
+	public final synchronized void ensureNoErrors() throws ParserException {
 		if (errors != null) {
 			throw new ParserException(errors.ArrayValues[0].toString());
 		}
@@ -11,6 +11,7 @@ import nez.lang.Productions;
 import nez.lang.Productions.NonterminalReference;
 import nez.lang.Typestate;
 import nez.lang.Typestate.TypestateAnalyzer;
+import nez.parser.vm.CompiledParser;
 import nez.parser.vm.Moz86;
 import nez.parser.vm.MozInst;
 import nez.parser.vm.ParserMachineContext;
@@ -31,6 +32,13 @@ public abstract class ParserCode<T extends Instruction> {
 		this.RecognitionMode = typestate.inferTypestate(grammar.getStartProduction()) == Typestate.Unit;
 	}
 
+	protected ParserCode(T[] initArray, boolean recognitionMode) {
+		this.grammar = null;
+		this.funcMap = new HashMap<>();
+		this.codeList = new UList<>(initArray);
+		this.RecognitionMode = recognitionMode;
+	}
+
 	public final Grammar getCompiledGrammar() {
 		return grammar;
 	}
@@ -45,6 +53,24 @@ public abstract class ParserCode<T extends Instruction> {
 		return codeList.size();
 	}
 
+	/* the size before superinstructions are fused, see MozPeephole */
+
+	protected int unfusedSize;
+
+	public final int getUnfusedInstructionSize() {
+		return unfusedSize > 0 ? unfusedSize : getInstructionSize();
+	}
+
+	/* the farthest any instruction looks past the position it leaves */
+
+	public final int getLookahead() {
+		int lookahead = 1;
+		for (T inst : codeList) {
+			lookahead = Math.max(lookahead, Moz86.lookahead((MozInst) inst));
+		}
+		return lookahead;
+	}
+
 	/* dump */
 
 	public void dump() {
@@ -64,16 +90,58 @@ public abstract class ParserCode<T extends Instruction> {
 		}
 	}
 
+	/* Compiled */
+
+	private CompiledParser compiled;
+
+	public final void setCompiledParser(CompiledParser compiled) {
+		this.compiled = compiled;
+	}
+
+	public final CompiledParser getCompiledParser() {
+		return compiled;
+	}
+
 	public final <E extends Tree<E>> E exec(ParserMachineContext<E> ctx) {
-		int ppos = (int) ctx.getPosition();
+		long ppos = ctx.getPosition();
 		MozInst code = (MozInst) getStartInstruction();
-		boolean result = exec(ctx, code);
+		MemoStats stats = startMemoStats(ctx.memoStats);
+		ctx.memoStats = stats;
+		ctx.startParse();
+		boolean result = compiled != null ? execCompiled(ctx, code) : exec(ctx, code);
+		ctx.endParse(result);
+		if (stats != null) {
+			stats.merge();
+		}
 		if (RecognitionMode && result) {
-			ctx.left = ctx.newTree(null, ppos, (int) ctx.getPosition(), 0, null);
+			ctx.left = ctx.newTree(null, ppos, ctx.getPosition(), 0, null);
 		}
 		return result ? ctx.left : null;
 	}
 
+	private <E extends Tree<E>> boolean execCompiled(ParserMachineContext<E> ctx, MozInst inst) {
+		long ppos = ctx.pos;
+		int log = ctx.saveLog();
+		int symbolPoint = ctx.saveSymbolPoint();
+		E proto = ctx.left;
+		try {
+			if (compiled.parse(ctx)) {
+				return true;
+			}
+			ctx.backtrack(ppos, log, symbolPoint);
+			return false;
+		} catch (StackOverflowError e) {
+			// too deeply nested for the Java stack; the interpreter keeps its
+			// own stack, and memo entries stay valid
+			ctx.back(ppos);
+			ctx.backLog(log);
+			ctx.backSymbolPoint(symbolPoint);
+			ctx.left = proto;
+			ctx.initVM();
+			return exec(ctx, inst);
+		}
+	}
+
 	private <E extends Tree<E>> boolean exec(ParserMachineContext<E> ctx, MozInst inst) {
 		MozInst cur = inst;
 		try {
@@ -138,6 +206,7 @@ public abstract class ParserCode<T extends Instruction> {
 	public void initMemoPoint(ParserStrategy strategy) {
 		TypestateAnalyzer typestate = Typestate.newAnalyzer();
 		memoPointMap = new HashMap<>();
+		memoPoints = null;
 		NonterminalReference refs = Productions.countNonterminalReference(grammar);
 		ArrayList<Score> l = new ArrayList<>();
 		for (Production p : grammar) {
@@ -156,6 +225,9 @@ public abstract class ParserCode<T extends Instruction> {
 				Production p = s.p;
 				String uname = p.getUniqueName();
 				MemoPoint memoPoint = new MemoPoint(memoPointMap.size(), uname, p.getExpression(), s.ts, false);
+				if (strategy.AdaptiveMemo) {
+					memoPoint.setAdaptive(strategy.MemoThreshold, strategy.MemoRetry);
+				}
 				memoPointMap.put(uname, memoPoint);
 				Verbose.println("MomoPoint(%d): %s score=%f", memoPoint.id, uname, s.score);
 			}
@@ -163,6 +235,42 @@ public abstract class ParserCode<T extends Instruction> {
 
 	}
 
+	private volatile MemoPoint[] memoPoints;
+
+	/* memo points indexed by id */
+
+	public final MemoPoint[] getMemoPoints() {
+		MemoPoint[] points = memoPoints;
+		if (points == null) {
+			points = new MemoPoint[getMemoPointSize()];
+			if (memoPointMap != null) {
+				for (MemoPoint m : memoPointMap.values()) {
+					points[m.id] = m;
+				}
+			}
+			this.memoPoints = points;
+		}
+		return points;
+	}
+
+	/**
+	 * Returns the counts of the next parse. Lookups are only counted for
+	 * adaptive memoization, or if the context already counts them (e.g., for
+	 * profiling).
+	 */
+
+	public final MemoStats startMemoStats(MemoStats stats) {
+		MemoPoint[] points = getMemoPoints();
+		if (stats == null || !stats.isFor(points)) {
+			if (stats == null && (points.length == 0 || !points[0].isAdaptive())) {
+				return null;
+			}
+			stats = new MemoStats(points);
+		}
+		stats.start();
+		return stats;
+	}
+
 	public final MemoPoint getMemoPoint(String uname) {
 		if (memoPointMap != null) {
 			return memoPointMap.get(uname);
@@ -176,10 +284,10 @@ public abstract class ParserCode<T extends Instruction> {
 
 	public final void dumpMemoPoints() {
 		if (memoPointMap != null) {
-			Verbose.println("ID\tPEG\tCount\tHit\tFail\tMean");
+			Verbose.println("ID\tPEG\tCount\tHit\tFail\tMean\tActive");
 			for (String key : memoPointMap.keySet()) {
 				MemoPoint p = memoPointMap.get(key);
-				String s = String.format("%d\t%s\t%d\t%f\t%f\t%f", p.id, p.label, p.count(), p.hitRatio(), p.failHitRatio(), p.meanLength());
+				String s = String.format("%d\t%s\t%d\t%f\t%f\t%f\t%s", p.id, p.label, p.count(), p.hitRatio(), p.failHitRatio(), p.meanLength(), p.isActive());
 				Verbose.println(s);
 			}
 			Verbose.println("");
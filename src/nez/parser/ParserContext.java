@@ -1,5 +1,9 @@
 package nez.parser;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 import nez.ast.Source;
 import nez.ast.Symbol;
 import nez.ast.Tree;
@@ -8,7 +12,7 @@ import nez.util.StringUtils;
 import nez.util.Verbose;
 
 public class ParserContext<T extends Tree<T>> {
-	public int pos;
+	public long pos;
 	public T left;
 
 	public ParserContext(String s, T proto) {
@@ -32,23 +36,35 @@ public class ParserContext<T extends Tree<T>> {
 	private final byte[] inputs;
 	private final int length;
 
+	protected void reset(Source source, T proto) {
+		this.source = source;
+		this.pos = 0;
+		this.left = proto;
+		this.unused_log = 0;
+		this.openSize = 0;
+		clearSymbols();
+		this.stateValue = 0;
+		this.count = 0;
+		this.reach = 0;
+	}
+
 	public boolean eof() {
 		return !(pos < length);
 	}
 
 	public int read() {
-		return inputs[pos++] & 0xff;
+		return inputs[(int) pos++] & 0xff;
 	}
 
 	public int prefetch() {
-		return inputs[pos] & 0xff;
+		return inputs[(int) pos] & 0xff;
 	}
 
 	public final void move(int shift) {
 		pos += shift;
 	}
 
-	public void back(int pos) {
+	public void back(long pos) {
 		this.pos = pos;
 	}
 
@@ -57,8 +73,9 @@ public class ParserContext<T extends Tree<T>> {
 		if (pos + len > length) {
 			return false;
 		}
+		int p = (int) pos;
 		for (int i = 0; i < len; i++) {
-			if (text[i] != inputs[pos + i]) {
+			if (text[i] != inputs[p + i]) {
 				return false;
 			}
 		}
@@ -66,111 +83,118 @@ public class ParserContext<T extends Tree<T>> {
 		return true;
 	}
 
-	public byte[] subByte(int startIndex, int endIndex) {
-		byte[] b = new byte[endIndex - startIndex];
-		System.arraycopy(inputs, (startIndex), b, 0, b.length);
+	public byte[] subByte(long startIndex, long endIndex) {
+		byte[] b = new byte[(int) (endIndex - startIndex)];
+		System.arraycopy(inputs, (int) startIndex, b, 0, b.length);
 		return b;
 	}
 
-	protected byte byteAt(int n) {
-		return inputs[n];
+	protected byte byteAt(long n) {
+		return inputs[(int) n];
 	}
 
 	// AST
 
-	private enum Operation {
-		Link, Tag, Replace, New
-	}
+	private static final byte Link = 0;
+	private static final byte Tag = 1;
+	private static final byte Replace = 2;
+	private static final byte New = 3;
 
-	static class TreeLog {
-		Operation op;
-		int pos;
-		Object value;
-		Object tree;
-	}
-
-	private TreeLog[] logs = new TreeLog[0];
+	/* struct-of-arrays; opens is the stack of New entries not yet ended */
+	private byte[] logOps = new byte[0];
+	private long[] logPositions = new long[0];
+	private Object[] logValues = new Object[0];
+	private Object[] logTrees = new Object[0];
 	private int unused_log;
-
-	private void log2(Operation op, int pos, Object value, T tree) {
-		if (!(unused_log < logs.length)) {
-			TreeLog[] newlogs = new TreeLog[logs.length + 1024];
-			System.arraycopy(logs, 0, newlogs, 0, logs.length);
-			for (int i = logs.length; i < newlogs.length; i++) {
-				newlogs[i] = new TreeLog();
-			}
-			logs = newlogs;
+	private int[] opens = new int[16];
+	private int openSize;
+
+	private void log2(byte op, long pos, Object value, T tree) {
+		if (!(unused_log < logOps.length)) {
+			int size = Math.max(1024, logOps.length * 2);
+			logOps = Arrays.copyOf(logOps, size);
+			logPositions = Arrays.copyOf(logPositions, size);
+			logValues = Arrays.copyOf(logValues, size);
+			logTrees = Arrays.copyOf(logTrees, size);
 		}
-		TreeLog l = logs[unused_log];
-		l.op = op;
-		l.pos = pos;
-		l.value = value;
-		l.tree = tree;
+		logOps[unused_log] = op;
+		logPositions[unused_log] = pos;
+		logValues[unused_log] = value;
+		logTrees[unused_log] = tree;
 		this.unused_log++;
 	}
 
+	private void open(long pos) {
+		if (openSize == opens.length) {
+			opens = Arrays.copyOf(opens, openSize * 2);
+		}
+		opens[openSize++] = unused_log;
+		log2(New, pos, null, null);
+	}
+
 	public final void beginTree(int shift) {
-		log2(Operation.New, pos + shift, null, null);
+		open(pos + shift);
 	}
 
 	public final void linkTree(T parent, Symbol label) {
-		log2(Operation.Link, 0, label, left);
+		log2(Link, 0, label, left);
 	}
 
 	public final void tagTree(Symbol tag) {
-		log2(Operation.Tag, 0, tag, null);
+		log2(Tag, 0, tag, null);
 	}
 
 	public final void valueTree(String value) {
-		log2(Operation.Replace, 0, value, null);
+		log2(Replace, 0, value, null);
 	}
 
 	public final void foldTree(int shift, Symbol label) {
-		log2(Operation.New, pos + shift, null, null);
-		log2(Operation.Link, 0, label, left);
+		open(pos + shift);
+		log2(Link, 0, label, left);
 	}
 
 	public final void endTree(int shift, Symbol tag, String value) {
+		int start = opens[--openSize];
 		int objectSize = 0;
-		TreeLog start = null;
-		int start_index = 0;
-		for (int i = unused_log - 1; i >= 0; i--) {
-			TreeLog l = logs[i];
-			if (l.op == Operation.Link) {
+		Symbol t = null;
+		String v = null;
+		for (int i = start + 1; i < unused_log; i++) {
+			switch (logOps[i]) {
+			case Link:
 				objectSize++;
-				continue;
-			}
-			if (l.op == Operation.New) {
-				start = l;
-				start_index = i;
 				break;
-			}
-			if (l.op == Operation.Tag && tag == null) {
-				tag = (Symbol) l.value;
-			}
-			if (l.op == Operation.Replace && value == null) {
-				value = (String) l.value;
+			case Tag:
+				t = (Symbol) logValues[i];
+				break;
+			case Replace:
+				v = (String) logValues[i];
+				break;
 			}
 		}
-		left = newTree(tag, start.pos, (pos + shift), objectSize, value);
+		left = newTree(tag != null ? tag : t, logPositions[start], (pos + shift), objectSize, value != null ? value : v);
 		if (objectSize > 0) {
 			int n = 0;
-			for (int j = start_index; j < unused_log; j++) {
-				TreeLog l = logs[j];
-				if (l.op == Operation.Link) {
-					left.link(n++, (Symbol) l.value, l.tree);
-					l.tree = null;
+			for (int i = start + 1; i < unused_log; i++) {
+				if (logOps[i] == Link) {
+					left.link(n++, (Symbol) logValues[i], logTrees[i]);
+					logTrees[i] = null;
 				}
 			}
 		}
-		backLog(start_index);
+		this.unused_log = start;
 	}
 
-	public final T newTree(Symbol tag, int start, int end, int n, String value) {
+	/* ends a node with no children begun at start, without the tree log */
+
+	public final void endLeafTree(long start, int shift, Symbol tag, String value) {
+		left = newTree(tag, start, pos + shift, 0, value);
+	}
+
+	public final T newTree(Symbol tag, long start, long end, int n, String value) {
 		if (tag == null) {
 			tag = Symbol.Null;
 		}
-		return left.newInstance(tag, source, start, (end - start), n, value);
+		return left.newInstance(tag, source, start, end - start, n, value);
 	}
 
 	public final int saveLog() {
@@ -180,6 +204,9 @@ public class ParserContext<T extends Tree<T>> {
 	public final void backLog(int log) {
 		if (unused_log > log) {
 			this.unused_log = log;
+			while (openSize > 0 && opens[openSize - 1] >= log) {
+				openSize--;
+			}
 		}
 	}
 
@@ -198,6 +225,8 @@ public class ParserContext<T extends Tree<T>> {
 	// others
 	private SymbolTableEntry[] tables = new SymbolTableEntry[0];
 	private int tableSize;
+	private int[] tops = new int[0]; // by table id, the top entry or -1
+	private int[] buckets = new int[0]; // by table and code, the top entry or -1
 
 	private int stateValue;
 	private int stateCount;
@@ -207,6 +236,9 @@ public class ParserContext<T extends Tree<T>> {
 		Symbol table;
 		long code;
 		byte[] symbol; // if uft8 is null, hidden
+		int below; // the entry of the same table below, or -1
+		int masked; // the top mask of the table up to this entry, or -1
+		int chain; // the entry below in the same bucket, or -1
 	}
 
 	private static long hash(byte[] utf8, int ppos, int pos) {
@@ -237,9 +269,9 @@ public class ParserContext<T extends Tree<T>> {
 				newtable[i] = new SymbolTableEntry();
 			}
 			this.tables = newtable;
+			rehashSymbols();
 		}
 		SymbolTableEntry entry = tables[tableSize];
-		tableSize++;
 		if (entry.table == table && equalsBytes(entry.symbol, utf8)) {
 			// reuse state value
 			entry.code = code;
@@ -253,6 +285,63 @@ public class ParserContext<T extends Tree<T>> {
 			this.stateValue = stateCount;
 			entry.stateValue = stateCount;
 		}
+		link(entry, tableSize);
+		tableSize++;
+	}
+
+	/* Index */
+
+	private int top(Symbol table) {
+		int id = table.id();
+		return id < tops.length ? tops[id] : -1;
+	}
+
+	private int bucket(Symbol table, long code) {
+		int h = (int) (code ^ code >>> 32) * 31 + table.id();
+		return (h ^ h >>> 16) & (buckets.length - 1);
+	}
+
+	private void link(SymbolTableEntry entry, int index) {
+		int id = entry.table.id();
+		if (!(id < tops.length)) {
+			int size = tops.length;
+			this.tops = Arrays.copyOf(tops, Math.max(id + 1, size * 2));
+			Arrays.fill(tops, size, tops.length, -1);
+		}
+		entry.below = tops[id];
+		if (entry.symbol == NullSymbol) {
+			entry.masked = index;
+		} else {
+			entry.masked = entry.below == -1 ? -1 : tables[entry.below].masked;
+			int b = bucket(entry.table, entry.code);
+			entry.chain = buckets[b];
+			buckets[b] = index;
+		}
+		tops[id] = index;
+	}
+
+	private void unlink(SymbolTableEntry entry) {
+		tops[entry.table.id()] = entry.below;
+		if (entry.symbol != NullSymbol) {
+			buckets[bucket(entry.table, entry.code)] = entry.chain;
+		}
+	}
+
+	/* buckets grow with the entries, and are relinked in push order */
+
+	private void rehashSymbols() {
+		this.buckets = new int[Integer.highestOneBit(tables.length * 2 - 1)];
+		Arrays.fill(buckets, -1);
+		Arrays.fill(tops, -1);
+		for (int i = 0; i < tableSize; i++) {
+			link(tables[i], i);
+		}
+	}
+
+	private void clearSymbols() {
+		Arrays.fill(tops, -1);
+		Arrays.fill(buckets, -1);
+		this.tableSize = 0;
 	}
 
 	public final int saveSymbolPoint() {
@@ -261,6 +350,9 @@ public class ParserContext<T extends Tree<T>> {
 
 	public final void backSymbolPoint(int savePoint) {
 		if (tableSize != savePoint) {
+			for (int i = tableSize - 1; i >= savePoint; i--) {
+				unlink(tables[i]);
+			}
 			this.tableSize = savePoint;
 			if (tableSize == 0) {
 				this.stateValue = 0;
@@ -270,7 +362,7 @@ public class ParserContext<T extends Tree<T>> {
 		}
 	}
 
-	public final void addSymbol(Symbol table, int ppos) {
+	public final void addSymbol(Symbol table, long ppos) {
 		byte[] b = subByte(ppos, pos);
 		push(table, hash(b, 0, b.length), b);
 	}
@@ -280,53 +372,42 @@ public class ParserContext<T extends Tree<T>> {
 	}
 
 	public final boolean exists(Symbol table) {
-		for (int i = tableSize - 1; i >= 0; i--) {
-			SymbolTableEntry entry = tables[i];
-			if (entry.table == table) {
-				return entry.symbol != NullSymbol;
-			}
-		}
-		return false;
+		int top = top(table);
+		return top != -1 && tables[top].symbol != NullSymbol;
 	}
 
 	public final boolean existsSymbol(Symbol table, byte[] symbol) {
+		int top = top(table);
+		if (top == -1) {
+			return false;
+		}
 		long code = hash(symbol, 0, symbol.length);
-		for (int i = tableSize - 1; i >= 0; i--) {
+		for (int i = buckets[bucket(table, code)]; i > tables[top].masked; i = tables[i].chain) {
 			SymbolTableEntry entry = tables[i];
-			if (entry.table == table) {
-				if (entry.symbol == NullSymbol) {
-					return false; // masked
-				}
-				if (entry.code == code && equalsBytes(entry.symbol, symbol)) {
-					return true;
-				}
+			if (entry.table == table && entry.code == code && equalsBytes(entry.symbol, symbol)) {
+				return true;
 			}
 		}
 		return false;
 	}
 
 	public final boolean matchSymbol(Symbol table) {
-		for (int i = tableSize - 1; i >= 0; i--) {
-			SymbolTableEntry entry = tables[i];
-			if (entry.table == table) {
-				if (entry.symbol == NullSymbol) {
-					return false; // masked
-				}
-				return match(entry.symbol);
-			}
+		int top = top(table);
+		if (top == -1 || tables[top].symbol == NullSymbol) {
+			return false; // masked
 		}
-		return false;
+		return match(tables[top].symbol);
 	}
 
-	private long hashInputs(int ppos, int pos) {
+	private long hashInputs(long ppos, long pos) {
 		long hashCode = 1;
-		for (int i = ppos; i < pos; i++) {
+		for (long i = ppos; i < pos; i++) {
 			hashCode = hashCode * 31 + (byteAt(i) & 0xff);
 		}
 		return hashCode;
 	}
 
-	private boolean equalsInputs(int ppos, int pos, byte[] b2) {
+	private boolean equalsInputs(long ppos, long pos, byte[] b2) {
 		if ((pos - ppos) == b2.length) {
 			for (int i = 0; i < b2.length; i++) {
 				if (byteAt(ppos + i) != b2[i]) {
@@ -338,30 +419,24 @@ public class ParserContext<T extends Tree<T>> {
 		return false;
 	}
 
-	public final boolean equals(Symbol table, int ppos) {
-		for (int i = tableSize - 1; i >= 0; i--) {
-			SymbolTableEntry entry = tables[i];
-			if (entry.table == table) {
-				if (entry.symbol == NullSymbol) {
-					return false; // masked
-				}
-				return equalsInputs(ppos, pos, entry.symbol);
-			}
+	public final boolean equals(Symbol table, long ppos) {
+		int top = top(table);
+		if (top == -1 || tables[top].symbol == NullSymbol) {
+			return false; // masked
 		}
-		return false;
+		return equalsInputs(ppos, pos, tables[top].symbol);
 	}
 
-	public boolean contains(Symbol table, int ppos) {
+	public boolean contains(Symbol table, long ppos) {
+		int top = top(table);
+		if (top == -1) {
+			return false;
+		}
 		long code = hashInputs(ppos, pos);
-		for (int i = tableSize - 1; i >= 0; i--) {
+		for (int i = buckets[bucket(table, code)]; i > tables[top].masked; i = tables[i].chain) {
 			SymbolTableEntry entry = tables[i];
-			if (entry.table == table) {
-				if (entry.symbol == NullSymbol) {
-					return false; // masked
-				}
-				if (code == entry.code && equalsInputs(ppos, pos, entry.symbol)) {
-					return true;
-				}
+			if (entry.table == table && entry.code == code && equalsInputs(ppos, pos, entry.symbol)) {
+				return true;
 			}
 		}
 		return false;
@@ -371,13 +446,13 @@ public class ParserContext<T extends Tree<T>> {
 
 	private int count;
 
-	public final void scanCount(int ppos, long mask, int shift) {
+	public final void scanCount(long ppos, long mask, int shift) {
 		if (mask == 0) {
 			String num = StringUtils.newString(subByte(ppos, pos));
 			count = (int) Long.parseLong(num);
 		} else {
 			long v = 0;
-			for (int i = ppos; i < pos; i++) {
+			for (long i = ppos; i < pos; i++) {
 				int n = byteAt(i) & 0xff;
 				v <<= 8;
 				v |= n;
@@ -398,149 +473,414 @@ public class ParserContext<T extends Tree<T>> {
 	public static final int SuccFound = 1;
 	public static final int FailFound = 2;
 
-	private static class MemoEntry<E extends Tree<E>> {
-		long key = -1;
-		public int consumed;
-		public E memoTree;
-		public int result;
-		public int stateValue;
+	public MemoStats memoStats; // null unless lookups are counted, see ParserCode.exec()
+
+	public final boolean isMemoDisabled(int memoPoint) {
+		return memoStats != null && memoStats.isDisabled(memoPoint);
 	}
 
-	private MemoEntry<T>[] memoArray;
+	public final boolean isMemoActive(int memoPoint) {
+		return memoStats == null || memoStats.isActive(memoPoint);
+	}
+
+	/* counts the result of a lookup that started at ppos */
+
+	public final int countMemo(int memoPoint, long ppos, int result) {
+		MemoStats stats = memoStats;
+		if (stats != null) {
+			if (result == NotFound) {
+				stats.miss(memoPoint);
+			} else if (result == SuccFound) {
+				stats.memoHit(memoPoint, (int) (pos - ppos));
+			} else {
+				stats.failHit(memoPoint);
+			}
+		}
+		return result;
+	}
+
+	/* struct-of-arrays; slot = (key ^ key >>> memoFold) & memoMask */
+	private long[] memoKeys;
+	private int[] memoConsumed;
+	private int[] memoExtents; // bytes examined from the position
+	private int[] memoShifts; // by which the tree is behind the position, see relocateMemoTable()
+	private int[] memoStates;
+	private byte[] memoResults;
+	private Object[] memoTrees;
+	private int[] memoGens; // the parse that stored each entry, see clearMemoTable()
+	private int memoGen;
+	private int memoMask;
+	private int memoFold = 63; // keys are positive, so a sliding window never folds
 	private int shift;
+	private long reach; // the farthest byte examined by a reused entry
+
+	/* OffHeapMemo: the same fields in a direct buffer, and trees in a ring */
+	private static final int EntrySize = 32; // key, consumed, extent, state, tree, result, generation
+	private static final int MaxOffHeapSize = Integer.highestOneBit((1 << 30) / EntrySize); // slots within 1 GiB of buffer
+	private ByteBuffer memoEntries;
+	private Object[] memoRing;
+	private int[] memoOwners; // the slot that refers to each tree in the ring
+	private int unusedTree;
 
-	@SuppressWarnings("unchecked")
 	public void initMemoTable(int w, int n) {
-		this.memoArray = new MemoEntry[w * n + 1];
-		for (int i = 0; i < memoArray.length; i++) {
-			memoArray[i] = new MemoEntry<>();
-			memoArray[i].key = -1;
-			memoArray[i].result = NotFound;
+		initMemoTable(w, n, false);
+	}
+
+	public void initMemoTable(int w, int n, boolean offHeap) {
+		this.shift = (int) (Math.log(n) / Math.log(2.0)) + 1;
+		long size = (long) Integer.highestOneBit(Math.max(1, w * 2 - 1)) << shift; // window rounded up to 2^k
+		if (offHeap) {
+			allocOffHeapTable((int) Math.min(size, MaxOffHeapSize));
+		} else {
+			allocMemoTable((int) size);
 		}
+		this.memoFold = 63;
+	}
+
+	/**
+	 * Initializes a table of about size slots for the whole input. High bits
+	 * of a key are folded into the slot, so that distant positions share the
+	 * table instead of overwriting the same window.
+	 */
+
+	public void initRetainedMemoTable(int size, int n) {
 		this.shift = (int) (Math.log(n) / Math.log(2.0)) + 1;
+		size = Integer.highestOneBit(Math.max(2, size * 2 - 1)); // rounded up to 2^k
+		allocMemoTable(size);
+		this.memoFold = Integer.numberOfTrailingZeros(size);
+	}
+
+	private void allocMemoTable(int size) {
+		this.memoKeys = new long[size];
+		this.memoConsumed = new int[size];
+		this.memoExtents = new int[size];
+		this.memoShifts = new int[size];
+		this.memoStates = new int[size];
+		this.memoResults = new byte[size];
+		this.memoTrees = new Object[size];
+		this.memoGens = new int[size];
+		this.memoGen = 0;
+		this.memoMask = size - 1;
+		this.memoEntries = null;
+		Arrays.fill(memoKeys, -1);
 		// this.initStat();
 	}
 
+	/**
+	 * Allocates a table whose entries are kept off the heap. Only the trees
+	 * are on the heap, in a ring of a quarter of the slots; an entry whose
+	 * tree has been overwritten in the ring is a miss.
+	 */
+
+	private void allocOffHeapTable(int size) {
+		this.memoEntries = ByteBuffer.allocateDirect(size * EntrySize).order(ByteOrder.nativeOrder());
+		int ring = Math.max(64, size >> 2);
+		this.memoRing = new Object[ring];
+		this.memoOwners = new int[ring];
+		this.memoMask = size - 1;
+		this.memoKeys = null;
+		this.memoConsumed = null;
+		this.memoExtents = null;
+		this.memoShifts = null;
+		this.memoStates = null;
+		this.memoResults = null;
+		this.memoTrees = null;
+		this.memoGens = null;
+		this.memoGen = 0;
+		clearOffHeapTable();
+	}
+
+	private void clearOffHeapTable() {
+		for (int slot = 0; slot <= memoMask; slot++) {
+			memoEntries.putLong(slot * EntrySize, -1);
+		}
+		Arrays.fill(memoRing, null);
+		Arrays.fill(memoOwners, -1);
+	}
+
+	/**
+	 * Invalidates all entries by starting a new generation, so that releasing
+	 * a context does not cost time in the size of the table. Entries of an
+	 * earlier generation are misses, and their trees stay reachable until
+	 * they are overwritten. The table is wiped only when the generation wraps.
+	 */
+
+	public void clearMemoTable() {
+		if (++memoGen != 0) {
+			return;
+		}
+		if (memoEntries != null) {
+			clearOffHeapTable();
+		} else if (memoKeys != null) {
+			Arrays.fill(memoKeys, -1);
+			Arrays.fill(memoTrees, null);
+			Arrays.fill(memoGens, 0);
+		}
+	}
+
 	final long longkey(long pos, int memoPoint, int shift) {
 		return ((pos << shift) | memoPoint) & Long.MAX_VALUE;
 	}
 
+	private int slot(long key) {
+		return (int) (key ^ key >>> memoFold) & memoMask;
+	}
+
+	/* the farthest byte examined so far; lookahead of a matcher is not counted */
+
+	protected long examined() {
+		return Math.max(pos, reach);
+	}
+
+	private void memo(long key, long ppos, long consumed, int result, int stateValue, Object tree) {
+		long extent = examined() - ppos;
+		if (extent > Integer.MAX_VALUE) {
+			return; // longer results are not memoized
+		}
+		int slot = slot(key);
+		if (memoEntries != null) {
+			memoOffHeap(key, slot, (int) consumed, (int) extent, result, stateValue, tree);
+			return;
+		}
+		memoKeys[slot] = key;
+		memoTrees[slot] = tree;
+		memoConsumed[slot] = (int) consumed;
+		memoExtents[slot] = (int) extent;
+		memoShifts[slot] = 0;
+		memoResults[slot] = (byte) result;
+		memoStates[slot] = stateValue;
+		memoGens[slot] = memoGen;
+		// this.CountStored += 1;
+	}
+
+	private void reuse(int slot, long ppos) {
+		this.pos += memoConsumed[slot];
+		long examined = ppos + memoExtents[slot];
+		if (reach < examined) {
+			this.reach = examined;
+		}
+	}
+
 	public final int lookupMemo(int memoPoint) {
 		long key = longkey(pos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry<T> m = memoArray[hash];
-		if (m.key == key) {
-			this.pos += m.consumed;
-			return m.result;
+		int slot = slot(key);
+		if (memoEntries != null) {
+			return lookupOffHeap(key, slot, false, false);
+		}
+		if (memoKeys[slot] == key && memoGens[slot] == memoGen) {
+			reuse(slot, pos);
+			return memoResults[slot];
 		}
 		return NotFound;
 	}
 
+	@SuppressWarnings("unchecked")
 	public final int lookupTreeMemo(int memoPoint) {
 		long key = longkey(pos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry<T> m = memoArray[hash];
-		if (m.key == key) {
-			this.pos += m.consumed;
-			this.left = m.memoTree;
-			return m.result;
+		int slot = slot(key);
+		if (memoEntries != null) {
+			return lookupOffHeap(key, slot, true, false);
+		}
+		if (memoKeys[slot] == key && memoGens[slot] == memoGen) {
+			reuse(slot, pos);
+			if (memoResults[slot] == SuccFound) {
+				if (memoShifts[slot] != 0) {
+					memoTrees[slot] = relocate((T) memoTrees[slot], memoShifts[slot]);
+					memoShifts[slot] = 0;
+				}
+				this.left = (T) memoTrees[slot];
+			}
+			return memoResults[slot];
 		}
 		return NotFound;
 	}
 
-	public void memoSucc(int memoPoint, int ppos) {
-		long key = longkey(ppos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry<T> m = memoArray[hash];
-		m.key = key;
-		m.memoTree = left;
-		m.consumed = pos - ppos;
-		m.result = SuccFound;
-		m.stateValue = -1;
-		// this.CountStored += 1;
+	public void memoSucc(int memoPoint, long ppos) {
+		memo(longkey(ppos, memoPoint, shift), ppos, pos - ppos, SuccFound, -1, null);
 	}
 
-	public void memoTreeSucc(int memoPoint, int ppos) {
-		long key = longkey(ppos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry<T> m = memoArray[hash];
-		m.key = key;
-		m.memoTree = left;
-		m.consumed = pos - ppos;
-		m.result = SuccFound;
-		m.stateValue = -1;
-		// this.CountStored += 1;
+	public void memoTreeSucc(int memoPoint, long ppos) {
+		memo(longkey(ppos, memoPoint, shift), ppos, pos - ppos, SuccFound, -1, left);
 	}
 
 	public void memoFail(int memoPoint) {
-		long key = longkey(pos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry<T> m = memoArray[hash];
-		m.key = key;
-		m.memoTree = left;
-		m.consumed = 0;
-		m.result = FailFound;
-		m.stateValue = -1;
+		memo(longkey(pos, memoPoint, shift), pos, 0, FailFound, -1, null);
 	}
 
 	/* State Version */
 
 	public final int lookupStateMemo(int memoPoint) {
 		long key = longkey(pos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry<T> m = memoArray[hash];
-		if (m.key == key) {
-			this.pos += m.consumed;
-			return m.result;
+		int slot = slot(key);
+		if (memoEntries != null) {
+			return lookupOffHeap(key, slot, false, false);
+		}
+		if (memoKeys[slot] == key && memoGens[slot] == memoGen) {
+			reuse(slot, pos);
+			return memoResults[slot];
 		}
 		return NotFound;
 	}
 
+	@SuppressWarnings("unchecked")
 	public final int lookupStateTreeMemo(int memoPoint) {
 		long key = longkey(pos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry<T> m = memoArray[hash];
-		if (m.key == key && m.stateValue == stateValue) {
-			this.pos += m.consumed;
-			this.left = m.memoTree;
-			return m.result;
+		int slot = slot(key);
+		if (memoEntries != null) {
+			return lookupOffHeap(key, slot, true, true);
+		}
+		if (memoKeys[slot] == key && memoGens[slot] == memoGen && memoStates[slot] == stateValue) {
+			reuse(slot, pos);
+			if (memoResults[slot] == SuccFound) {
+				if (memoShifts[slot] != 0) {
+					memoTrees[slot] = relocate((T) memoTrees[slot], memoShifts[slot]);
+					memoShifts[slot] = 0;
+				}
+				this.left = (T) memoTrees[slot];
+			}
+			return memoResults[slot];
 		}
 		return NotFound;
 	}
 
-	public void memoStateSucc(int memoPoint, int ppos) {
-		long key = longkey(ppos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry<T> m = memoArray[hash];
-		m.key = key;
-		m.memoTree = left;
-		m.consumed = pos - ppos;
-		m.result = SuccFound;
-		m.stateValue = stateValue;
-		// this.CountStored += 1;
+	public void memoStateSucc(int memoPoint, long ppos) {
+		memo(longkey(ppos, memoPoint, shift), ppos, pos - ppos, SuccFound, stateValue, null);
 	}
 
-	public void memoStateTreeSucc(int memoPoint, int ppos) {
-		long key = longkey(ppos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry<T> m = memoArray[hash];
-		m.key = key;
-		m.memoTree = left;
-		m.consumed = pos - ppos;
-		m.result = SuccFound;
-		m.stateValue = stateValue;
-		// this.CountStored += 1;
+	public void memoStateTreeSucc(int memoPoint, long ppos) {
+		memo(longkey(ppos, memoPoint, shift), ppos, pos - ppos, SuccFound, stateValue, left);
 	}
 
 	public void memoStateFail(int memoPoint) {
-		long key = longkey(pos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry<T> m = memoArray[hash];
-		m.key = key;
-		m.memoTree = left;
-		m.consumed = 0;
-		m.result = FailFound;
-		m.stateValue = stateValue;
+		memo(longkey(pos, memoPoint, shift), pos, 0, FailFound, stateValue, null);
+	}
+
+	/* Off-heap entries */
+
+	private void memoOffHeap(long key, int slot, int consumed, int extent, int result, int stateValue, Object tree) {
+		int offset = slot * EntrySize;
+		int t = 0;
+		if (tree != null) {
+			t = unusedTree;
+			this.unusedTree = (t + 1) & (memoRing.length - 1);
+			memoRing[t] = tree;
+			memoOwners[t] = slot;
+			t++;
+		}
+		memoEntries.putLong(offset, key);
+		memoEntries.putInt(offset + 8, consumed);
+		memoEntries.putInt(offset + 12, extent);
+		memoEntries.putInt(offset + 16, stateValue);
+		memoEntries.putInt(offset + 20, t);
+		memoEntries.putInt(offset + 24, result);
+		memoEntries.putInt(offset + 28, memoGen);
+	}
+
+	@SuppressWarnings("unchecked")
+	private int lookupOffHeap(long key, int slot, boolean tree, boolean stateful) {
+		int offset = slot * EntrySize;
+		if (memoEntries.getLong(offset) != key || memoEntries.getInt(offset + 28) != memoGen || (stateful && memoEntries.getInt(offset + 16) != stateValue)) {
+			return NotFound;
+		}
+		int result = memoEntries.getInt(offset + 24);
+		if (tree && result == SuccFound) {
+			int t = memoEntries.getInt(offset + 20);
+			if (t != 0 && memoOwners[t - 1] != slot) {
+				return NotFound; // the tree has been overwritten
+			}
+			this.left = t == 0 ? null : (T) memoRing[t - 1];
+		}
+		long ppos = pos;
+		this.pos += memoEntries.getInt(offset + 8);
+		long examined = ppos + memoEntries.getInt(offset + 12);
+		if (reach < examined) {
+			this.reach = examined;
+		}
+		return result;
+	}
+
+	/* Relocation */
+
+	/**
+	 * Moves the memo table over an edit that replaces removed bytes at offset
+	 * with inserted bytes. An entry is kept if the bytes it examined, widened
+	 * by lookahead, lie wholly before the edit or wholly after it; entries
+	 * after the edit are shifted. Stateful entries are dropped, since the
+	 * symbol tables are rebuilt. A kept tree is shared as it is before the
+	 * edit, and copied at its shifted position when it is reused after it.
+	 */
+
+	public final int relocateMemoTable(long offset, long removed, long inserted, int lookahead) {
+		if (memoEntries != null) {
+			clearMemoTable(); // retained tables are kept on the heap
+			return 0;
+		}
+		long end = offset + removed;
+		int delta = (int) (inserted - removed);
+		long mask = (1L << shift) - 1;
+		int[] moved = new int[64];
+		int size = 0;
+		int kept = 0;
+		for (int i = 0; i < memoKeys.length; i++) {
+			long key = memoKeys[i];
+			if (key == -1 || memoGens[i] != memoGen) {
+				continue;
+			}
+			long p = key >>> shift;
+			if (memoStates[i] != -1 || (p < end && p + memoExtents[i] + lookahead > offset)) {
+				memoKeys[i] = -1;
+				memoTrees[i] = null;
+				continue;
+			}
+			kept++;
+			if (p >= end && delta != 0) {
+				if (size == moved.length) {
+					moved = Arrays.copyOf(moved, size * 2);
+				}
+				moved[size++] = i;
+			}
+		}
+		long[] keys = new long[size];
+		int[] consumed = new int[size];
+		int[] extents = new int[size];
+		int[] shifts = new int[size];
+		byte[] results = new byte[size];
+		Object[] trees = new Object[size];
+		for (int j = 0; j < size; j++) {
+			int i = moved[j];
+			keys[j] = longkey((memoKeys[i] >>> shift) + delta, (int) (memoKeys[i] & mask), shift);
+			consumed[j] = memoConsumed[i];
+			extents[j] = memoExtents[i];
+			shifts[j] = memoShifts[i] + delta;
+			results[j] = memoResults[i];
+			trees[j] = memoTrees[i];
+			memoKeys[i] = -1;
+			memoTrees[i] = null;
+		}
+		for (int j = 0; j < size; j++) {
+			int slot = slot(keys[j]);
+			memoKeys[slot] = keys[j];
+			memoConsumed[slot] = consumed[j];
+			memoExtents[slot] = extents[j];
+			memoShifts[slot] = shifts[j];
+			memoStates[slot] = -1;
+			memoResults[slot] = results[j];
+			memoTrees[slot] = trees[j];
+			memoGens[slot] = memoGen;
+		}
+		Verbose.println("memo: kept %d entries, shifted %d", kept, size);
+		return kept;
+	}
+
+	/* copies a tree reused after an edit onto the current source */
+
+	private T relocate(T t, int shift) {
+		T c = t.newInstance(t.getTag(), source, t.getSourcePosition() + shift, t.getLength(), t.size(), t.getValue());
+		for (int i = 0; i < t.size(); i++) {
+			T sub = t.get(i);
+			c.link(i, t.getLabel(i), sub == null ? null : relocate(sub, shift));
+		}
+		return c;
 	}
 
 }
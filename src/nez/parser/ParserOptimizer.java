@@ -2,6 +2,7 @@ package nez.parser;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -199,6 +200,8 @@ public class ParserOptimizer {
 		Conditions conds;
 		boolean ConstructingTree = true;
 		Typestate requiredTypestate;
+		TreeProjection projection = TreeProjection.newProjection(strategy);
+		HashMap<Production, Boolean> projectedMap = new HashMap<>();
 
 		final boolean enterNoTreeConstruction() {
 			boolean b = ConstructingTree;
@@ -457,6 +460,13 @@ public class ParserOptimizer {
 				return inner;
 			}
 
+			if (projection != null && !projection.isProjectedLabel(p.label) && !isProjected(inner)) {
+				boolean backed = enterNoTreeConstruction();
+				inner = visitExpression(inner);
+				exitNoTreeConstruction(backed);
+				return inner;
+			}
+
 			Typestate innerState = isNoTreeConstruction() ? Typestate.Unit : typeState(inner);
 			if (innerState != Typestate.Tree) {
 				reportWarning(p, "Implicit tree construction");
@@ -469,6 +479,52 @@ public class ParserOptimizer {
 			return Expressions.newLinkTree(p.getSourceLocation(), p.label, inner);
 		}
 
+		/* Projection */
+
+		private boolean isProjected(Expression e) {
+			if (e instanceof NonTerminal) {
+				Production p = ((NonTerminal) e).getProduction();
+				Boolean b = projectedMap.get(p);
+				if (b == null) {
+					b = isProjected(e, new HashSet<>());
+					projectedMap.put(p, b);
+				}
+				return b;
+			}
+			return isProjected(e, new HashSet<>());
+		}
+
+		private boolean isProjected(Expression e, HashSet<Production> visited) {
+			if (e instanceof Nez.Tag) {
+				return projection.isProjectedTag(((Nez.Tag) e).tag);
+			}
+			if (e instanceof Nez.EndTree) {
+				return projection.isProjectedTag(((Nez.EndTree) e).tag);
+			}
+			if (e instanceof Nez.FoldTree && projection.isProjectedLabel(((Nez.FoldTree) e).label)) {
+				return true;
+			}
+			if (e instanceof Nez.LinkTree && projection.isProjectedLabel(((Nez.LinkTree) e).label)) {
+				return true;
+			}
+			if (e instanceof Nez.Detree) {
+				return false;
+			}
+			if (e instanceof NonTerminal) {
+				Production p = ((NonTerminal) e).getProduction();
+				if (p == null || !visited.add(p)) {
+					return false;
+				}
+				return isProjected(p.getExpression(), visited);
+			}
+			for (Expression sub : e) {
+				if (isProjected(sub, visited)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
 		@Override
 		public Expression visitChoice(Nez.Choice p, Object a) {
 			Typestate required = requiredTypestate;
@@ -638,11 +694,15 @@ public class ParserOptimizer {
 			Verbose.printElapsedTime("Inlining", t2, t3);
 		}
 
+		private final Set<String> optimizing = new TreeSet<>();
+
 		private Expression optimizeProduction(Production p) {
 			String uname = p.getUniqueName();
 			if (!isVisited(uname)) {
 				visited(uname);
+				optimizing.add(uname);
 				Expression optimized = visitInner(p.getExpression(), null);
+				optimizing.remove(uname);
 				p.setExpression(optimized);
 				if (strategy.Oalias) {
 					performAliasAnalysis(p);
@@ -856,6 +916,54 @@ public class ParserOptimizer {
 			return p;
 		}
 
+		/* Run prefix: (A / B / [S])* => ([R]+ / A / B / [S])* */
+
+		@Override
+		public Expression visitZeroMore(Nez.ZeroMore p, Object a) {
+			Expression e = super.visitZeroMore(p, a);
+			if (strategy.Olex && e.get(0) instanceof Nez.Choice) {
+				e.set(0, prefixRun((Nez.Choice) e.get(0)));
+			}
+			return e;
+		}
+
+		@Override
+		public Expression visitOneMore(Nez.OneMore p, Object a) {
+			Expression e = super.visitOneMore(p, a);
+			if (strategy.Olex && e.get(0) instanceof Nez.Choice) {
+				e.set(0, prefixRun((Nez.Choice) e.get(0)));
+			}
+			return e;
+		}
+
+		/**
+		 * R is the set of bytes on which every alternative fails except one
+		 * byte set, which then consumes just that byte. A run of R is thus
+		 * the same as repeating the choice, and compiles to a scanned RSet.
+		 */
+
+		private Expression prefixRun(Nez.Choice choice) {
+			boolean[] run = Bytes.newMap(false);
+			boolean found = false;
+			for (int ch = 0; ch < 256; ch++) {
+				for (Expression sub : choice) {
+					if (sub instanceof Nez.ByteSet && ((Nez.ByteSet) sub).byteset[ch]) {
+						run[ch] = true;
+						found = true;
+						break;
+					}
+					if (ByteAcceptance.acc(sub, ch) != ByteAcceptance.Reject) {
+						break;
+					}
+				}
+			}
+			if (!found || choice.get(0) instanceof Nez.OneMore) {
+				return choice;
+			}
+			Expression prefix = Expressions.newOneMore(choice.getSourceLocation(), Expressions.newByteSet(choice.getSourceLocation(), run));
+			return Expressions.newChoice(prefix, choice);
+		}
+
 		private void flattenAndOptimizeSubExpressions(Nez.Choice choice, List<Expression> l, Object a) {
 			for (Expression inner : choice) {
 				inner = optimizeSubExpression(inner, a);
@@ -869,7 +977,11 @@ public class ParserOptimizer {
 					while (e instanceof NonTerminal) {
 						NonTerminal n = (NonTerminal) e;
 						Production p = n.getProduction();
-						e = optimizeProduction(p);
+						Expression deref = optimizeProduction(p);
+						if (optimizing.contains(p.getUniqueName())) {
+							return n; // a recursive production still being optimized
+						}
+						e = deref;
 					}
 					return e;
 				}
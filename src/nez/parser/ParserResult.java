@@ -0,0 +1,85 @@
+package nez.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nez.ast.Source;
+import nez.ast.SourceError;
+import nez.ast.Tree;
+import nez.parser.vm.ParserMachineContext;
+import nez.util.ConsoleUtils;
+import nez.util.UList;
+
+public final class ParserResult<T extends Tree<T>> {
+	private final Source source;
+	private T tree;
+	private long position;
+	private long maximumPosition;
+	private UList<SourceError> errors;
+
+	/* kept for Parser.reparse(); a context only by parseIncremental() */
+	ParserMachineContext<T> context;
+	T prototype;
+
+	ParserResult(Source source) {
+		this.source = source;
+	}
+
+	final void set(T tree, long position, long maximumPosition) {
+		this.tree = tree;
+		this.position = position;
+		this.maximumPosition = maximumPosition;
+	}
+
+	final void perror(long pos, String message) {
+		if (errors == null) {
+			this.errors = new UList<>(new SourceError[2]);
+		}
+		errors.add(new SourceError(source, pos, message));
+	}
+
+	public final Source getSource() {
+		return source;
+	}
+
+	public final T getTree() {
+		return tree;
+	}
+
+	public final boolean isMatched() {
+		return tree != null;
+	}
+
+	public final long getPosition() {
+		return position;
+	}
+
+	public final long getMaximumPosition() {
+		return maximumPosition;
+	}
+
+	public final boolean hasErrors() {
+		return errors != null;
+	}
+
+	public final List<SourceError> getErrors() {
+		return errors == null ? new ArrayList<>() : errors;
+	}
+
+	public final boolean showErrors() {
+		if (errors != null) {
+			for (SourceError e : errors) {
+				ConsoleUtils.println(e.toString());
+			}
+			return true;
+		}
+		return false;
+	}
+
+	public final void ensureNoErrors() throws ParserException {
+		if (errors != null) {
+			throw new ParserException(errors.ArrayValues[0].toString());
+		}
+	}
+
+}
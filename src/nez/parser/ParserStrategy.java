@@ -10,6 +10,7 @@ import nez.ast.SourceLocation;
 import nez.ast.Tree;
 import nez.lang.Grammar;
 import nez.parser.vm.MozMachine;
+import nez.parser.vm.ParserBytecodeCompiler;
 import nez.parser.vm.ParserMachineCompiler;
 import nez.util.ConsoleUtils;
 import nez.util.Verbose;
@@ -22,6 +23,8 @@ public class ParserStrategy {
 	// public boolean SymbolTable = true;
 	public boolean BinaryGrammar;
 	public boolean PEGCompatible;
+	public String Projection; // e.g., Projection=ImportDecl,MethodDecl,$name
+	public String RecordSeparator; // splits a source for parseChunked(), inferred if null
 
 	/* Optimization */
 	public boolean Optimization = true;
@@ -34,9 +37,11 @@ public class ParserStrategy {
 	public boolean Odfa;
 
 	public boolean Oorder = true;
+	public boolean Opeephole = true;
 	public boolean Detree;
 	/* Classic */
 	public boolean Moz;
+	public boolean JIT;
 
 	/* PackratParsing */
 	public boolean PackratParsing = true;
@@ -44,6 +49,11 @@ public class ParserStrategy {
 	public double TreeFactor = 3.00;
 	public double MemoLimit = 0.5;
 	public boolean StatefulPackratParsing;
+	public boolean PrimitiveMemo = true;
+	public boolean OffHeapMemo;
+	public boolean AdaptiveMemo;
+	public double MemoThreshold = 0.1;
+	public int MemoRetry = 4096;
 
 	/* Generator */
 	public boolean VerboseCode = true;
@@ -246,11 +256,15 @@ public class ParserStrategy {
 
 	public ParserCode<?> newParserCode(Grammar pgrammar) {
 		ParserMachineCompiler bc = ParserMachineCompiler.newCompiler(this);
-		return bc.compile(pgrammar);
+		ParserCode<?> code = bc.compile(pgrammar);
+		if (JIT && !Profiling) { // the profiler follows the interpreter
+			code.setCompiledParser(ParserBytecodeCompiler.newCompiler(this).compile(code));
+		}
+		return code;
 	}
 
 	public ParserInstance newParserContext(Source source, int memoPointSize, Tree<?> prototype) {
-		MemoTable table = MemoTable.newTable(SlidingWindow, memoPointSize);
+		MemoTable table = MemoTable.newTable(SlidingWindow, memoPointSize, PrimitiveMemo, OffHeapMemo);
 		MozMachine machine = new MozMachine(source);
 		machine.init(table, prototype);
 		return new ParserInstance(source, machine);
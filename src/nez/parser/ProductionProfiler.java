@@ -0,0 +1,178 @@
+package nez.parser;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import nez.util.ConsoleUtils;
+
+/**
+ * ProductionProfiler keeps a tree of production calls, where each node is a
+ * production in the context of its callers. A node counts the calls and
+ * failures, the bytes consumed, the time spent inclusive and exclusive of
+ * callees, and the bytes that choices in the production gave back on
+ * backtracking. The tree is written as collapsed stacks, which flamegraph
+ * tools render, and summed up by production into a report.
+ */
+
+public final class ProductionProfiler {
+
+	public static final class Node {
+		public final String name;
+		private final HashMap<String, Node> children = new HashMap<>();
+		long calls;
+		long fails;
+		long consumed;
+		long inclusive; // [ns]
+		long exclusive; // [ns]
+		long backtracked;
+
+		Node(String name) {
+			this.name = name;
+		}
+
+		public final Node child(String name) {
+			Node n = children.get(name);
+			if (n == null) {
+				n = new Node(name);
+				children.put(name, n);
+			}
+			return n;
+		}
+
+		public final void exit(long consumed, long inclusive, long exclusive, boolean failed) {
+			this.calls++;
+			if (failed) {
+				this.fails++;
+			} else {
+				this.consumed += consumed;
+			}
+			this.inclusive += inclusive;
+			this.exclusive += exclusive;
+		}
+
+		public final void backtrack(long length) {
+			this.backtracked += length;
+		}
+
+		private void merge(Node n) {
+			calls += n.calls;
+			fails += n.fails;
+			consumed += n.consumed;
+			inclusive += n.inclusive;
+			exclusive += n.exclusive;
+			backtracked += n.backtracked;
+			for (Node c : n.children.values()) {
+				child(c.name).merge(c);
+			}
+		}
+	}
+
+	private final String start;
+	private final Node root;
+
+	public ProductionProfiler(String start) {
+		this.start = start;
+		this.root = new Node(start);
+	}
+
+	public final Node newRoot() {
+		return new Node(start);
+	}
+
+	public final synchronized void merge(Node n) {
+		root.merge(n);
+	}
+
+	/* Collapsed stacks */
+
+	public final synchronized void writeCollapsedStacks(String file) throws IOException {
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+			writeCollapsedStacks(out, new StringBuilder(), root);
+		}
+	}
+
+	private static void writeCollapsedStacks(PrintWriter out, StringBuilder path, Node n) {
+		int len = path.length();
+		if (len > 0) {
+			path.append(';');
+		}
+		path.append(n.name);
+		long micro = n.exclusive / 1000;
+		if (micro > 0) {
+			out.print(path);
+			out.print(' ');
+			out.println(micro);
+		}
+		for (Node c : n.children.values()) {
+			writeCollapsedStacks(out, path, c);
+		}
+		path.setLength(len);
+	}
+
+	/* Report */
+
+	private static final class Stat {
+		final String name;
+		long calls;
+		long fails;
+		long consumed;
+		long inclusive;
+		long exclusive;
+		long backtracked;
+		int active; // recursive calls are counted once in inclusive
+
+		Stat(String name) {
+			this.name = name;
+		}
+	}
+
+	private static void sum(HashMap<String, Stat> stats, Node n) {
+		Stat s = stats.get(n.name);
+		if (s == null) {
+			s = new Stat(n.name);
+			stats.put(n.name, s);
+		}
+		s.calls += n.calls;
+		s.fails += n.fails;
+		s.consumed += n.consumed;
+		s.exclusive += n.exclusive;
+		s.backtracked += n.backtracked;
+		if (s.active == 0) {
+			s.inclusive += n.inclusive;
+		}
+		s.active++;
+		for (Node c : n.children.values()) {
+			sum(stats, c);
+		}
+		s.active--;
+	}
+
+	/**
+	 * Prints the productions sorted by exclusive time. Memo hits are those of
+	 * the memo point of the production in code, if any.
+	 */
+
+	public final synchronized void report(ParserCode<?> code, int limit) {
+		HashMap<String, Stat> stats = new HashMap<>();
+		sum(stats, root);
+		List<Stat> l = new ArrayList<>(stats.values());
+		l.sort((s, s2) -> Long.compare(s2.exclusive, s.exclusive));
+		double total = Math.max(1, root.inclusive);
+		ConsoleUtils.println(String.format("%-24s %10s %8s %12s %10s %10s %7s %12s %7s", "Production", "Calls", "Fail%", "Consumed", "Incl[ms]", "Excl[ms]", "Excl%", "Backtracked", "Memo%"));
+		for (Stat s : l) {
+			if (limit-- == 0) {
+				break;
+			}
+			MemoPoint m = code == null ? null : code.getMemoPoint(s.name);
+			String memo = m == null || m.count() == 0 ? "-" : String.format("%.1f", 100.0 * (m.count() - m.memoMiss) / m.count());
+			ConsoleUtils.println(String.format("%-24s %10d %8.1f %12d %10.2f %10.2f %7.1f %12d %7s", s.name, s.calls, 100.0 * s.fails / Math.max(1, s.calls), s.consumed, s.inclusive / 1e6, s.exclusive / 1e6, 100.0 * s.exclusive / total, s.backtracked,
+					memo));
+		}
+	}
+
+}
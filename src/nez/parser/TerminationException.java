@@ -4,7 +4,10 @@ package nez.parser;
 public class TerminationException extends Exception {
 	public boolean status;
 
+	/* thrown once per parse to leave the run loop; no stack trace is taken */
+
 	public TerminationException(boolean status) {
+		super(null, null, false, false);
 		this.status = status;
 	}
 }
@@ -0,0 +1,73 @@
+package nez.parser;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import nez.ast.Symbol;
+import nez.ast.Tree;
+
+/**
+ * TreeProjection keeps the nodes of the given tags and labels, such as
+ * Projection=ImportDecl,MethodDecl,$name. Every other node is removed, and
+ * the kept nodes under it move up to their nearest kept ancestor. The root
+ * is always kept.
+ */
+
+public final class TreeProjection {
+	private final Set<Symbol> tags = new HashSet<>();
+	private final Set<Symbol> labels = new HashSet<>();
+
+	public TreeProjection(String spec) {
+		for (String name : spec.split(",")) {
+			name = name.trim();
+			if (name.startsWith("$")) {
+				labels.add(Symbol.unique(name.substring(1)));
+			} else if (name.length() > 0) {
+				tags.add(Symbol.unique(name.startsWith("#") ? name.substring(1) : name));
+			}
+		}
+	}
+
+	public static TreeProjection newProjection(ParserStrategy strategy) {
+		String spec = strategy.Projection;
+		return spec == null || spec.isEmpty() ? null : new TreeProjection(spec);
+	}
+
+	public final boolean isProjectedTag(Symbol tag) {
+		return tag != null && tags.contains(tag);
+	}
+
+	public final boolean isProjectedLabel(Symbol label) {
+		return label != null && labels.contains(label);
+	}
+
+	public final <T extends Tree<T>> T project(T node) {
+		List<T> subs = new ArrayList<>();
+		List<Symbol> subLabels = new ArrayList<>();
+		collect(node, subs, subLabels);
+		T projected = node.newInstance(node.getTag(), node.getSource(), node.getSourcePosition(), node.getLength(), subs.size(), node.getValue());
+		for (int i = 0; i < subs.size(); i++) {
+			projected.link(i, subLabels.get(i), subs.get(i));
+		}
+		return projected;
+	}
+
+	private <T extends Tree<T>> void collect(T node, List<T> subs, List<Symbol> subLabels) {
+		for (int i = 0; i < node.size(); i++) {
+			T sub = node.get(i);
+			if (sub == null) {
+				continue;
+			}
+			Symbol label = node.getLabel(i);
+			if (isProjectedTag(sub.getTag()) || isProjectedLabel(label)) {
+				subs.add(project(sub));
+				subLabels.add(label);
+			} else {
+				collect(sub, subs, subLabels);
+			}
+		}
+	}
+
+}
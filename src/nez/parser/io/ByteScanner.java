@@ -0,0 +1,130 @@
+package nez.parser.io;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * ByteScanner skips a run of bytes in a byte set eight bytes at a time
+ * (SWAR). It handles sets made of at most four ASCII ranges, such as
+ * whitespace or identifier characters, and sets whose complement is such
+ * a set, such as "everything except a quote or a backslash". Each byte of a
+ * word is range-checked with carry-free additions on its low seven bits.
+ *
+ * A scan stops at the first byte outside the set or where fewer than eight
+ * bytes remain, and the caller finishes the run one byte at a time.
+ */
+
+public final class ByteScanner {
+	static final int MaxRanges = 4;
+	private static final long Ones = 0x0101010101010101L;
+	private static final long High = 0x8080808080808080L;
+	private static final long Low = 0x7f7f7f7f7f7f7f7fL;
+
+	private static final VarHandle ArrayLong = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle BufferLong = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private final boolean complement;
+	private final long[] lower; // (0x80 - lo) in each byte
+	private final long[] upper; // (0x7f - hi) in each byte
+
+	private ByteScanner(boolean complement, int[] ranges, int size) {
+		this.complement = complement;
+		this.lower = new long[size];
+		this.upper = new long[size];
+		for (int i = 0; i < size; i++) {
+			lower[i] = (0x80 - ranges[i * 2]) * Ones;
+			upper[i] = (0x7f - ranges[i * 2 + 1]) * Ones;
+		}
+	}
+
+	/**
+	 * Returns a scanner for the byte set, or null if neither the set nor its
+	 * complement is a few ASCII ranges.
+	 */
+
+	public static ByteScanner newScanner(boolean[] byteSet) {
+		ByteScanner s = newScanner(byteSet, true);
+		return s != null ? s : newScanner(byteSet, false);
+	}
+
+	private static ByteScanner newScanner(boolean[] byteSet, boolean member) {
+		int[] ranges = new int[MaxRanges * 2];
+		int size = 0;
+		for (int c = 0; c < 256; c++) {
+			if (byteSet[c] != member) {
+				continue;
+			}
+			if (c > 0x7f || size == MaxRanges) {
+				return null;
+			}
+			int start = c;
+			while (c + 1 < 256 && byteSet[c + 1] == member) {
+				c++;
+			}
+			if (c > 0x7f) {
+				return null;
+			}
+			ranges[size * 2] = start;
+			ranges[size * 2 + 1] = c;
+			size++;
+		}
+		if (size == 0) {
+			return null;
+		}
+		return new ByteScanner(!member, ranges, size);
+	}
+
+	/* 0x80 in each byte of x that is in the set */
+
+	private long members(long x) {
+		long y = x & Low;
+		long m = 0;
+		for (int i = 0; i < lower.length; i++) {
+			m |= (y + lower[i]) & ~(y + upper[i]);
+		}
+		m &= ~x & High; // ranges are ASCII
+		return complement ? ~m & High : m;
+	}
+
+	public final int scan(byte[] b, int pos, int end) {
+		while (pos + 8 <= end) {
+			long m = members((long) ArrayLong.get(b, pos));
+			if (m != High) {
+				return pos + (Long.numberOfTrailingZeros(~m & High) >>> 3);
+			}
+			pos += 8;
+		}
+		return pos;
+	}
+
+	public final int scan(ByteBuffer b, int pos, int end) {
+		while (pos + 8 <= end) {
+			long m = members((long) BufferLong.get(b, pos));
+			if (m != High) {
+				return pos + (Long.numberOfTrailingZeros(~m & High) >>> 3);
+			}
+			pos += 8;
+		}
+		return pos;
+	}
+
+	/* compares a literal eight bytes at a time */
+
+	public static boolean matches(ByteBuffer b, int pos, byte[] text) {
+		int i = 0;
+		for (; i + 8 <= text.length; i += 8) {
+			if ((long) BufferLong.get(b, pos + i) != (long) ArrayLong.get(text, i)) {
+				return false;
+			}
+		}
+		for (; i < text.length; i++) {
+			if (text[i] != b.get(pos + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
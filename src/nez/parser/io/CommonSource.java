@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 
 import nez.ast.Source;
 import nez.util.FileBuilder;
@@ -45,17 +46,195 @@ public abstract class CommonSource implements Source {
 	}
 
 	@Override
-	public abstract long linenum(long pos);
+	public long linenum(long pos) {
+		return startLineNum + lineIndex().lineOf(pos);
+	}
 
 	@Override
-	public final int column(long pos) {
-		int count = 0;
-		for (long p = pos - 1; p >= 0; p--) {
-			if (byteAt(pos) == '\n') {
-				break;
+	public int column(long pos) {
+		return (int) (pos - lineStartPosition(pos));
+	}
+
+	protected long lineStartPosition(long pos) {
+		return lineIndex().startOfLineAt(pos);
+	}
+
+	/**
+	 * Returns the end of the run of bytes in the scanner's set that starts at
+	 * pos, or any earlier position from which the caller continues byte by
+	 * byte. Sources that hold their input in memory scan it directly.
+	 */
+
+	public long skip(long pos, ByteScanner scanner) {
+		return pos;
+	}
+
+	/* line index */
+
+	/**
+	 * LineIndex maps positions to lines. It is built on the first position
+	 * lookup and never changes afterwards.
+	 */
+
+	abstract static class LineIndex {
+		/* the number of lines before the one containing pos */
+
+		abstract long lineOf(long pos);
+
+		abstract long startOfLineAt(long pos);
+	}
+
+	/**
+	 * FullLineIndex holds the start position of every line but the first, so
+	 * a lookup is a binary search. It is used for sources up to 2 GiB.
+	 */
+
+	static final class FullLineIndex extends LineIndex {
+		private final int[] starts;
+		private final int size;
+
+		FullLineIndex(CommonSource s) {
+			int length = (int) s.length();
+			int[] a = new int[64];
+			int n = 0;
+			for (int pos = 0; pos < length; pos++) {
+				if (s.byteAt(pos) == '\n') {
+					if (n == a.length) {
+						a = Arrays.copyOf(a, n * 2);
+					}
+					a[n++] = pos + 1;
+				}
+			}
+			this.starts = a;
+			this.size = n;
+		}
+
+		@Override
+		final long lineOf(long pos) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (starts[mid] <= pos) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
 			}
+			return low;
+		}
+
+		@Override
+		final long startOfLineAt(long pos) {
+			int line = (int) lineOf(pos);
+			return line == 0 ? 0 : starts[line - 1];
 		}
-		return count;
+	}
+
+	/**
+	 * SampledLineIndex keeps the start of every SampleLines-th line, and of
+	 * the first line after every SampleBytes bytes without one, so a lookup
+	 * is a binary search followed by a scan of at most a sample. It is used
+	 * for mapped files and sources over 2 GiB, where an index of every line
+	 * would be as large as the heap.
+	 */
+
+	static final class SampledLineIndex extends LineIndex {
+		static final int SampleLines = 64;
+		static final int SampleBytes = 1 << 16;
+
+		private final CommonSource source;
+		private final long[] positions; // line starts
+		private final long[] lines; // the number of lines before each
+		private final int size;
+
+		SampledLineIndex(CommonSource s) {
+			long length = s.length();
+			long[] p = new long[64];
+			long[] l = new long[64];
+			int n = 1; // p[0] = l[0] = 0
+			long line = 0;
+			long last = 0;
+			for (long pos = 0; pos < length; pos++) {
+				if (s.byteAt(pos) == '\n') {
+					line++;
+					if (line % SampleLines == 0 || pos + 1 - last >= SampleBytes) {
+						if (n == p.length) {
+							p = Arrays.copyOf(p, n * 2);
+							l = Arrays.copyOf(l, n * 2);
+						}
+						last = pos + 1;
+						p[n] = last;
+						l[n] = line;
+						n++;
+					}
+				}
+			}
+			this.source = s;
+			this.positions = p;
+			this.lines = l;
+			this.size = n;
+		}
+
+		private int sampleOf(long pos) {
+			int low = 1;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (positions[mid] <= pos) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low - 1;
+		}
+
+		@Override
+		final long lineOf(long pos) {
+			int i = sampleOf(pos);
+			long line = lines[i];
+			long end = Math.min(pos, source.length());
+			for (long p = positions[i]; p < end; p++) {
+				if (source.byteAt(p) == '\n') {
+					line++;
+				}
+			}
+			return line;
+		}
+
+		@Override
+		final long startOfLineAt(long pos) {
+			long start = positions[sampleOf(pos)];
+			long p = Math.min(pos, source.length());
+			while (p > start && source.byteAt(p - 1) != '\n') {
+				p--;
+			}
+			return p;
+		}
+	}
+
+	LineIndex newLineIndex() {
+		if (length() <= Integer.MAX_VALUE) {
+			return new FullLineIndex(this);
+		}
+		return new SampledLineIndex(this);
+	}
+
+	private volatile LineIndex lineIndex;
+
+	final LineIndex lineIndex() {
+		LineIndex index = lineIndex;
+		if (index == null) {
+			synchronized (this) {
+				index = lineIndex;
+				if (index == null) {
+					index = newLineIndex();
+					lineIndex = index;
+				}
+			}
+		}
+		return index;
 	}
 
 	/* handling input stream */
@@ -68,15 +247,7 @@ public abstract class CommonSource implements Source {
 		if (startIndex < 0) {
 			startIndex = 0;
 		}
-		while (startIndex > 0) {
-			int ch = byteAt(startIndex);
-			if (ch == '\n') {
-				startIndex = startIndex + 1;
-				break;
-			}
-			startIndex = startIndex - 1;
-		}
-		return startIndex;
+		return lineStartPosition(startIndex);
 	}
 
 	public final String getIndentText(long fromPosition) {
@@ -177,6 +348,8 @@ public abstract class CommonSource implements Source {
 		return new StringSource(resource, linenum, str);
 	}
 
+	private static final long MappedFileThreshold = 16L * 1024 * 1024; // 16 MiB
+
 	public static Source newFileSource(String fileName) throws IOException {
 		File f = new File(fileName);
 		if (!f.isFile()) {
@@ -197,6 +370,9 @@ public abstract class CommonSource implements Source {
 				return new StringSource(fileName, 1, builder.toString());
 			}
 		}
+		if (f.length() >= MappedFileThreshold) {
+			return new MappedFileSource(fileName);
+		}
 		return new FileSource(fileName);
 	}
 }
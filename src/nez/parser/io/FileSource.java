@@ -3,6 +3,7 @@ package nez.parser.io;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -16,7 +17,6 @@ public class FileSource extends CommonSource {
 	private final long fileLength;
 	private long buffer_offset;
 	private byte[] buffer;
-	private final long[] lines;
 
 	private final int FifoSize = 8;
 	private final LinkedHashMap<Long, byte[]> fifoMap;
@@ -28,8 +28,6 @@ public class FileSource extends CommonSource {
 			this.fileLength = file.length();
 
 			this.buffer_offset = 0;
-			lines = new long[((int) fileLength / PageSize) + 1];
-			lines[0] = 1;
 			this.fifoMap = new LinkedHashMap<>(FifoSize) { // FIFO
 				private static final long serialVersionUID = 6725894996600788028L;
 
@@ -88,11 +86,7 @@ public class FileSource extends CommonSource {
 				return text[0] == buffer[offset] && text[1] == buffer[offset + 1] && text[2] == buffer[offset + 2]
 					&& text[3] == buffer[offset + 3];
 				default:
-				for (int i = 0; i < text.length; i++) {
-					if (text[i] != buffer[offset + i]) {
-						return false;
-					}
-				}
+				return Arrays.equals(buffer, offset, offset + text.length, text, 0, text.length);
 			}
 			return true;
 		}
@@ -104,6 +98,16 @@ public class FileSource extends CommonSource {
 		return true;
 	}
 
+	@Override
+	public final long skip(long pos, ByteScanner scanner) {
+		int offset = (int) (pos - buffer_offset);
+		if (offset >= 0 && offset < PageSize) {
+			int end = (int) Math.min(PageSize, fileLength - buffer_offset);
+			return buffer_offset + scanner.scan(buffer, offset, end);
+		}
+		return pos;
+	}
+
 	@Override
 	public final String subString(long startIndex, long endIndex) {
 		if (endIndex > startIndex) {
@@ -148,39 +152,7 @@ public class FileSource extends CommonSource {
 		return b;
 	}
 
-	private int lineIndex(long pos) {
-		return (int) (pos / PageSize);
-	}
-
-	private long startLineNum(long pos) {
-		int index = lineIndex(pos);
-		return lines[index];
-	}
-
-	@Override
-	public final long linenum(long pos) {
-		long count = startLineNum(pos);
-		byteAt(pos); // restore buffer at pos
-		int offset = (int) (pos - buffer_offset);
-		for (int i = 0; i < offset; i++) {
-			if (buffer[i] == '\n') {
-				count++;
-			}
-		}
-		return count;
-	}
-
 	private void readMainBuffer(long pos) {
-		int index = lineIndex(pos);
-		if (lines[index] == 0) {
-			long count = lines[index - 1];
-			for (byte b : buffer) {
-				if (b == '\n') {
-					count++;
-				}
-			}
-			lines[index] = count;
-		}
 		if (fifoMap != null) {
 			Long key = pos;
 			byte[] buf = fifoMap.get(key);
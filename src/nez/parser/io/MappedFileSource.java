@@ -0,0 +1,115 @@
+package nez.parser.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import nez.util.Verbose;
+
+public class MappedFileSource extends CommonSource {
+	static final int ChunkBits = 30; // 1 GiB per mapping
+	static final long ChunkSize = 1L << ChunkBits;
+	static final long ChunkMask = ChunkSize - 1;
+
+	private final long fileLength;
+	private final MappedByteBuffer[] chunks;
+
+	public MappedFileSource(String fileName) throws IOException {
+		super(fileName, 1);
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+			FileChannel channel = file.getChannel();
+			this.fileLength = channel.size();
+			int size = (int) ((fileLength + ChunkMask) >>> ChunkBits);
+			this.chunks = new MappedByteBuffer[size];
+			for (int i = 0; i < size; i++) {
+				long offset = (long) i << ChunkBits;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(ChunkSize, fileLength - offset));
+			}
+		} catch (IOException e) {
+			Verbose.traceException(e);
+			throw e;
+		}
+	}
+
+	@Override
+	public final long length() {
+		return fileLength;
+	}
+
+	@Override
+	final LineIndex newLineIndex() {
+		return new SampledLineIndex(this);
+	}
+
+	@Override
+	public final int byteAt(long pos) {
+		if (pos < fileLength) {
+			return chunks[(int) (pos >>> ChunkBits)].get((int) (pos & ChunkMask)) & 0xff;
+		}
+		return 0;
+	}
+
+	@Override
+	public final boolean eof(long pos) {
+		return pos >= fileLength;
+	}
+
+	@Override
+	public final boolean match(long pos, byte[] text) {
+		if (pos + text.length > fileLength) {
+			return false;
+		}
+		int offset = (int) (pos & ChunkMask);
+		if (offset + text.length <= ChunkSize) {
+			return ByteScanner.matches(chunks[(int) (pos >>> ChunkBits)], offset, text);
+		}
+		for (int i = 0; i < text.length; i++) {
+			if ((text[i] & 0xff) != byteAt(pos + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public final long skip(long pos, ByteScanner scanner) {
+		if (pos < fileLength) {
+			MappedByteBuffer chunk = chunks[(int) (pos >>> ChunkBits)];
+			long base = pos & ~ChunkMask;
+			return base + scanner.scan(chunk, (int) (pos - base), chunk.limit());
+		}
+		return pos;
+	}
+
+	@Override
+	public final byte[] subByte(long startIndex, long endIndex) {
+		if (endIndex > fileLength) {
+			endIndex = fileLength;
+		}
+		if (endIndex <= startIndex) {
+			return new byte[0];
+		}
+		byte[] b = new byte[(int) (endIndex - startIndex)];
+		int copied = 0;
+		long pos = startIndex;
+		while (copied < b.length) {
+			int offset = (int) (pos & ChunkMask);
+			int len = (int) Math.min(b.length - copied, ChunkSize - offset);
+			ByteBuffer chunk = chunks[(int) (pos >>> ChunkBits)].duplicate();
+			chunk.position(offset);
+			chunk.get(b, copied, len);
+			copied += len;
+			pos += len;
+		}
+		return b;
+	}
+
+	@Override
+	public final String subString(long startIndex, long endIndex) {
+		return new String(subByte(startIndex, endIndex), StandardCharsets.UTF_8);
+	}
+
+}
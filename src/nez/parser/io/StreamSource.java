@@ -0,0 +1,186 @@
+package nez.parser.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import nez.util.Verbose;
+
+/**
+ * StreamSource reads an unbounded input stream on demand. Bytes before a
+ * position passed to {@link #discard(long)} are released, so the buffer only
+ * holds the part of the input that the parser may still backtrack to.
+ */
+
+public class StreamSource extends CommonSource {
+	public static final int BufferSize = 64 * 1024;
+
+	private final InputStream in;
+	private byte[] buffer;
+	private long offset; // position of buffer[0]
+	private int filled;
+	private long discarded; // position before which bytes are released
+	private long discardedLines;
+	private boolean endOfStream;
+
+	public StreamSource(String resourceName, InputStream in) {
+		super(resourceName, 1);
+		this.in = in;
+		this.buffer = new byte[BufferSize];
+		this.offset = 0;
+		this.filled = 0;
+		this.discarded = 0;
+		this.discardedLines = 0;
+		this.endOfStream = false;
+	}
+
+	public StreamSource(InputStream in) {
+		this("(stream)", in);
+	}
+
+	private boolean fill() {
+		if (endOfStream) {
+			return false;
+		}
+		if (filled == buffer.length) {
+			int unused = (int) (discarded - offset);
+			if (unused >= buffer.length / 2) {
+				System.arraycopy(buffer, unused, buffer, 0, filled - unused);
+				filled -= unused;
+				offset += unused;
+			} else {
+				byte[] newbuffer = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, newbuffer, 0, filled);
+				buffer = newbuffer;
+			}
+		}
+		try {
+			int readsize = in.read(buffer, filled, buffer.length - filled);
+			if (readsize == -1) {
+				endOfStream = true;
+				in.close();
+				return false;
+			}
+			filled += readsize;
+			return true;
+		} catch (IOException e) {
+			Verbose.traceException(e);
+			endOfStream = true;
+			return false;
+		}
+	}
+
+	private boolean ensure(long pos) {
+		while (pos >= offset + filled) {
+			if (!fill()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public final void discard(long pos) {
+		if (pos > offset + filled) {
+			pos = offset + filled;
+		}
+		if (pos > discarded) {
+			for (int i = (int) (discarded - offset); i < (int) (pos - offset); i++) {
+				if (buffer[i] == '\n') {
+					discardedLines++;
+				}
+			}
+			discarded = pos;
+		}
+	}
+
+	public final long getDiscardedPosition() {
+		return discarded;
+	}
+
+	/**
+	 * Returns the number of bytes read so far; it equals the input size once
+	 * the end of stream is reached.
+	 */
+
+	@Override
+	public final long length() {
+		return offset + filled;
+	}
+
+	@Override
+	public final int byteAt(long pos) {
+		if (pos >= discarded && ensure(pos)) {
+			return buffer[(int) (pos - offset)] & 0xff;
+		}
+		return 0;
+	}
+
+	@Override
+	public final boolean eof(long pos) {
+		return !ensure(pos);
+	}
+
+	@Override
+	public final boolean match(long pos, byte[] text) {
+		if (pos < discarded || !ensure(pos + text.length - 1)) {
+			return false;
+		}
+		int start = (int) (pos - offset);
+		for (int i = 0; i < text.length; i++) {
+			if (text[i] != buffer[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public final long skip(long pos, ByteScanner scanner) {
+		if (pos >= discarded && pos < offset + filled) {
+			return offset + scanner.scan(buffer, (int) (pos - offset), filled);
+		}
+		return pos;
+	}
+
+	@Override
+	public final byte[] subByte(long startIndex, long endIndex) {
+		if (startIndex < discarded) {
+			throw new IllegalStateException("discarded input at " + startIndex);
+		}
+		ensure(endIndex - 1);
+		if (endIndex > offset + filled) {
+			endIndex = offset + filled;
+		}
+		byte[] b = new byte[(int) Math.max(0, endIndex - startIndex)];
+		System.arraycopy(buffer, (int) (startIndex - offset), b, 0, b.length);
+		return b;
+	}
+
+	@Override
+	public final String subString(long startIndex, long endIndex) {
+		return new String(subByte(startIndex, endIndex), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public final long linenum(long pos) {
+		long count = startLineNum + discardedLines;
+		ensure(pos);
+		long end = Math.min(pos, offset + filled);
+		for (int i = (int) (discarded - offset); i < (int) (end - offset); i++) {
+			if (buffer[i] == '\n') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	protected final long lineStartPosition(long pos) {
+		long p = Math.min(pos, offset + filled);
+		while (p > discarded && buffer[(int) (p - 1 - offset)] != '\n') {
+			p--;
+		}
+		return p;
+	}
+
+}
@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 
 import nez.ast.Source;
 import nez.util.StringUtils;
@@ -67,12 +68,12 @@ public class StringSource extends CommonSource {
 		if (pos + text.length > length) {
 			return false;
 		}
-		for (int i = 0; i < text.length; i++) {
-			if (text[i] != inputs[(int) pos + i]) {
-				return false;
-			}
-		}
-		return true;
+		return Arrays.equals(inputs, (int) pos, (int) pos + text.length, text, 0, text.length);
+	}
+
+	@Override
+	public final long skip(long pos, ByteScanner scanner) {
+		return scanner.scan(inputs, (int) pos, (int) length);
 	}
 
 	@Override
@@ -98,21 +99,6 @@ public class StringSource extends CommonSource {
 		return new StringSource(getResourceName(), linenum(startIndex), b, true);
 	}
 
-	@Override
-	public final long linenum(long pos) {
-		long count = startLineNum;
-		int end = (int) pos;
-		if (end >= inputs.length) {
-			end = inputs.length;
-		}
-		for (int i = 0; i < end; i++) {
-			if (inputs[i] == '\n') {
-				count++;
-			}
-		}
-		return count;
-	}
-
 	/* utils */
 
 	public static CommonSource loadClassPath(String fileName, String[] classPath) throws IOException {
@@ -1,5 +1,7 @@
 package nez.parser.vm;
 
+import java.util.Arrays;
+
 import nez.ast.Source;
 import nez.ast.Symbol;
 import nez.ast.Tree;
@@ -19,34 +21,36 @@ class ASTMachine {
 
 	Source source;
 	Tree<?> prototype;
-	ASTLog firstLog;
-	ASTLog lastAppendedLog;
-	ASTLog unusedDataLog;
+
+	/* struct-of-arrays; entry 0 is a Nop, and next skips a nested node once it is linked */
+	private int[] types = new int[256];
+	private long[] values = new long[256];
+	private Symbol[] labels = new Symbol[256];
+	private Object[] refs = new Object[256];
+	private int[] nexts = new int[256];
+	private int size = 1;
 
 	public ASTMachine(Source source, Tree<?> prototype) {
 		this.source = source;
 		this.prototype = prototype == null ? new EmptyTree() : prototype;
-		// this.log(ASTMachine.Nop, 0, null);
-		this.firstLog = new ASTLog();
-		this.lastAppendedLog = firstLog;
+		this.nexts[0] = 1;
 	}
 
 	private void log(int type, long pos, Symbol label, Object value) {
-		ASTLog l;
-		if (unusedDataLog == null) {
-			l = new ASTLog();
-		} else {
-			l = unusedDataLog;
-			this.unusedDataLog = l.next;
+		if (size == types.length) {
+			int n = size * 2;
+			types = Arrays.copyOf(types, n);
+			values = Arrays.copyOf(values, n);
+			labels = Arrays.copyOf(labels, n);
+			refs = Arrays.copyOf(refs, n);
+			nexts = Arrays.copyOf(nexts, n);
 		}
-		l.id = lastAppendedLog.id + 1;
-		l.type = type;
-		l.value = pos;
-		l.label = label;
-		l.ref = value;
-		l.next = null;
-		lastAppendedLog.next = l;
-		lastAppendedLog = l;
+		types[size] = type;
+		values[size] = pos;
+		labels[size] = label;
+		refs[size] = value;
+		nexts[size] = size + 1;
+		size++;
 	}
 
 	public final void logNew(long pos, Object debug) {
@@ -88,52 +92,46 @@ class ASTMachine {
 		latestLinkedNode = node;
 	}
 
-	public final Object saveTransactionPoint() {
-		return lastAppendedLog;
+	public final int saveTransactionPoint() {
+		return size;
 	}
 
-	public final void rollTransactionPoint(Object point) {
-		ASTLog save = (ASTLog) point;
+	public final void rollTransactionPoint(int point) {
 		if (debugMode) {
-			Verbose.debug("roll" + save + " < " + lastAppendedLog);
+			Verbose.debug("roll " + point + " < " + size);
 		}
-		if (save != lastAppendedLog) {
-			lastAppendedLog.next = unusedDataLog;
-			this.unusedDataLog = save.next;
-			save.next = null;
-			this.lastAppendedLog = save;
+		if (point < size) {
+			this.size = point;
 		}
-		assert (lastAppendedLog.next == null);
 	}
 
-	public final void commitTransactionPoint(Symbol label, Object point) {
-		ASTLog save = (ASTLog) point;
-		Object node = createNode(save.next, null);
+	public final void commitTransactionPoint(Symbol label, int point) {
+		Object node = point < size ? createNode(point, -1) : null;
 		rollTransactionPoint(point);
 		if (node != null) {
 			logLink(label, node);
 		}
 	}
 
-	private void dump(ASTLog start) {
-		for (ASTLog cur = start; cur != null; cur = cur.next) {
-			Verbose.debug(cur.toString());
+	private void dump(int start) {
+		for (int cur = start; cur < size; cur = nexts[cur]) {
+			Verbose.debug(toString(cur));
 		}
 	}
 
-	public final Tree<?> createNode(ASTLog start, ASTLog pushed) {
-		ASTLog cur = start;
+	public final Tree<?> createNode(int start, int pushed) {
+		int cur = start;
 		if (debugMode) {
 			Verbose.debug("createNode.start: " + start + "     pushed:" + pushed);
 		}
-		long spos = cur.value, epos = spos;
+		long spos = values[cur], epos = spos;
 		Symbol tag = null;
 		Object value = null;
 		int objectSize = 0;
-		for (cur = start; cur != null; cur = cur.next) {
-			switch (cur.type) {
+		for (cur = start; cur < size; cur = nexts[cur]) {
+			switch (types[cur]) {
 			case New:
-				spos = cur.value;
+				spos = values[cur];
 				epos = spos;
 				objectSize = 0;
 				tag = null;
@@ -141,58 +139,56 @@ class ASTMachine {
 				start = cur;
 				break;
 			case Capture:
-				epos = cur.value;
+				epos = values[cur];
 				break;
 			case Tag:
-				tag = (Symbol) cur.ref;
+				tag = (Symbol) refs[cur];
 				break;
 			case Replace:
-				value = cur.ref;
+				value = refs[cur];
 				break;
 			case LeftFold:
-				cur.ref = constructLeft(start, cur, spos, epos, objectSize, tag, value);
-				cur.type = Link;
-				// cur.value = 0;
-				spos = cur.value;
+				refs[cur] = constructLeft(start, cur, spos, epos, objectSize, tag, value);
+				types[cur] = Link;
+				spos = values[cur];
 				tag = null;
 				value = null;
 				objectSize = 1;
 				start = cur;
 				break;
 			case Pop:
-				assert (pushed != null);
-				pushed.type = Link;
-				pushed.label = cur.label;
-				pushed.ref = constructLeft(start, cur, spos, epos, objectSize, tag, value);
-				pushed.value = cur.value;
-				// TODO unused
-				pushed.next = cur.next;
-				return (Tree<?>) pushed.ref;
+				assert (pushed != -1);
+				types[pushed] = Link;
+				labels[pushed] = labels[cur];
+				refs[pushed] = constructLeft(start, cur, spos, epos, objectSize, tag, value);
+				values[pushed] = values[cur];
+				nexts[pushed] = nexts[cur];
+				return (Tree<?>) refs[pushed];
 			case Push:
-				createNode(cur.next, cur);
-				assert (cur.type == Link);
+				createNode(nexts[cur], cur);
+				assert (types[cur] == Link);
 			case Link:
 				objectSize++;
 				break;
 			}
 		}
-		assert (pushed == null);
-		return constructLeft(start, null, spos, epos, objectSize, tag, value);
+		assert (pushed == -1);
+		return constructLeft(start, size, spos, epos, objectSize, tag, value);
 	}
 
-	private Tree<?> constructLeft(ASTLog start, ASTLog end, long spos, long epos, int objectSize, Symbol tag, Object value) {
+	private Tree<?> constructLeft(int start, int end, long spos, long epos, int objectSize, Symbol tag, Object value) {
 		if (tag == null) {
 			tag = Symbol.Null;
 		}
-		Tree<?> newnode = prototype.newInstance(tag, source, spos, (int) (epos - spos), objectSize, value);
+		Tree<?> newnode = prototype.newInstance(tag, source, spos, epos - spos, objectSize, value);
 		int n = 0;
 		if (objectSize > 0) {
-			for (ASTLog cur = start; cur != end; cur = cur.next) {
-				if (cur.type == Link) {
-					if (cur.ref == null) {
-						Verbose.debug("@@ linking null child at " + cur.value);
+			for (int cur = start; cur != end; cur = nexts[cur]) {
+				if (types[cur] == Link) {
+					if (refs[cur] == null) {
+						Verbose.debug("@@ linking null child at " + values[cur]);
 					} else {
-						newnode.link(n, cur.label, cur.ref);
+						newnode.link(n, labels[cur], refs[cur]);
 					}
 					n++;
 				}
@@ -209,56 +205,45 @@ class ASTMachine {
 			return parseResult;
 		}
 		if (debugMode) {
-			dump(firstLog);
+			dump(0);
 		}
-		for (ASTLog cur = firstLog; cur != null; cur = cur.next) {
-			if (cur.type == New) {
-				parseResult = createNode(cur, null);
+		for (int cur = 0; cur < size; cur = nexts[cur]) {
+			if (types[cur] == New) {
+				parseResult = createNode(cur, -1);
 				break;
 			}
 		}
 		if (parseResult == null) {
-			parseResult = prototype.newInstance(Symbol.Null, source, startpos, (int) (endpos - startpos), 0, null);
+			parseResult = prototype.newInstance(Symbol.Null, source, startpos, endpos - startpos, 0, null);
 		}
-		this.firstLog = null;
-		this.unusedDataLog = null;
+		Arrays.fill(refs, 0, size, null);
+		this.size = 1;
 		if (debugMode) {
 			Verbose.debug("getParseResult: " + parseResult);
 		}
 		return parseResult;
 	}
 
-	static class ASTLog {
-		int id;
-		int type;
-		Symbol label;
-		Object ref;
-		long value;
-
-		ASTLog next;
-
-		@Override
-		public String toString() {
-			switch (type) {
-			case Link:
-				return "[" + id + "] link(index=" + value + ")";
-			case Capture:
-				return "[" + id + "] cap(" + value + ")";
-			case Tag:
-				return "[" + id + "] tag(" + ref + ")";
-			case Replace:
-				return "[" + id + "] replace(" + ref + ")";
-			case LeftFold:
-				return "[" + id + "] left(" + value + ")";
-			case New:
-				return "[" + id + "] new(" + value + "," + ref + ")";
-			case Pop:
-				return "[" + id + "] pop(" + ref + ")";
-			case Push:
-				return "[" + id + "] push";
-			}
-			return "[" + id + "] nop";
+	private String toString(int i) {
+		switch (types[i]) {
+		case Link:
+			return "[" + i + "] link(index=" + values[i] + ")";
+		case Capture:
+			return "[" + i + "] cap(" + values[i] + ")";
+		case Tag:
+			return "[" + i + "] tag(" + refs[i] + ")";
+		case Replace:
+			return "[" + i + "] replace(" + refs[i] + ")";
+		case LeftFold:
+			return "[" + i + "] left(" + values[i] + ")";
+		case New:
+			return "[" + i + "] new(" + values[i] + "," + refs[i] + ")";
+		case Pop:
+			return "[" + i + "] pop(" + refs[i] + ")";
+		case Push:
+			return "[" + i + "] push";
 		}
+		return "[" + i + "] nop";
 	}
 
 	static class EmptyTree extends Tree<EmptyTree> {
@@ -268,7 +253,7 @@ class ASTMachine {
 		}
 
 		@Override
-		public EmptyTree newInstance(Symbol tag, Source source, long pos, int len, int size, Object value) {
+		public EmptyTree newInstance(Symbol tag, Source source, long pos, long len, int size, Object value) {
 			return null;
 		}
 
@@ -0,0 +1,5 @@
+package nez.parser.vm;
+
+public interface CompiledParser {
+	public boolean parse(ParserMachineContext<?> ctx);
+}
@@ -138,4 +138,20 @@ public abstract class InstructionVisitor {
 
 	public abstract void visitTMemo(Moz86.TMemo inst);
 
+	/* superinstructions */
+
+	public abstract void visitAByte(Moz86.AByte inst);
+
+	public abstract void visitASet(Moz86.ASet inst);
+
+	public abstract void visitAStr(Moz86.AStr inst);
+
+	public abstract void visitTLeaf(Moz86.TLeaf inst);
+
+	public abstract void visitTLeafEnd(Moz86.TLeafEnd inst);
+
+	public abstract void visitMemoCall(Moz86.MemoCall inst);
+
+	public abstract void visitDFA(Moz86.DFA inst);
+
 }
@@ -15,6 +15,7 @@ import nez.parser.MemoPoint;
 import nez.parser.ParserCode.ProductionCode;
 import nez.parser.ParserContext;
 import nez.parser.TerminationException;
+import nez.parser.io.ByteScanner;
 import nez.parser.vm.MozMachine.MozStackData;
 import nez.util.StringUtils;
 
@@ -94,6 +95,14 @@ public class Moz86 {
 			{ "TLookup", "jump", "uid" }, //
 			{ "TMemo", "uid" }, //
 
+			// Superinstructions (see MozPeephole)
+			{ "AByte", "byteChar" }, //
+			{ "ASet", "byteSet" }, //
+			{ "AStr", "utf8" }, //
+			{ "TLeaf", "shift" }, //
+			{ "TLeafEnd", "shift", "tag", "value" }, //
+			{ "MemoCall", "jump", "uid", "name" }, //
+			{ "DFA", "jump", "states" }, //
 	};
 
 	static HashMap<String, String[]> specMap = new HashMap<>();
@@ -170,6 +179,55 @@ public class Moz86 {
 		}
 	}
 
+	/* the branch of an instruction other than next and a jump table */
+
+	static MozInst jump(MozInst inst) {
+		if (inst instanceof Alt) {
+			return ((Alt) inst).jump;
+		}
+		if (inst instanceof Jump) {
+			return ((Jump) inst).jump;
+		}
+		if (inst instanceof Call) {
+			return ((Call) inst).jump;
+		}
+		if (inst instanceof NDec) {
+			return ((NDec) inst).jump;
+		}
+		if (inst instanceof AbstMemo) {
+			return ((AbstMemo) inst).jump;
+		}
+		if (inst instanceof DFA) {
+			return ((DFA) inst).jump;
+		}
+		return null;
+	}
+
+	static void setJump(MozInst inst, MozInst jump) {
+		if (inst instanceof Alt) {
+			((Alt) inst).jump = jump;
+		} else if (inst instanceof Jump) {
+			((Jump) inst).jump = jump;
+		} else if (inst instanceof Call) {
+			((Call) inst).jump = jump;
+		} else if (inst instanceof NDec) {
+			((NDec) inst).jump = jump;
+		} else if (inst instanceof AbstMemo) {
+			((AbstMemo) inst).jump = jump;
+		} else if (inst instanceof DFA) {
+			((DFA) inst).jump = jump;
+		}
+	}
+
+	/* the bytes an instruction may look at past the position it leaves */
+
+	public static int lookahead(MozInst inst) {
+		if (inst instanceof AbstStr) {
+			return ((AbstStr) inst).utf8.length;
+		}
+		return 1;
+	}
+
 	protected static MozInst joinPoint(MozInst inst) {
 		if (inst != null) {
 			inst.joinPoint = true;
@@ -490,7 +548,7 @@ public class Moz86 {
 	}
 
 	public static final class Alt extends MozInst {
-		public final MozInst jump;
+		public MozInst jump;
 
 		public Alt(Expression e, MozInst failjump, MozInst next) {
 			super(MozSet.Alt, e, next);
@@ -1047,8 +1105,11 @@ public class Moz86 {
 	}
 
 	public static class RSet extends AbstSet {
+		final ByteScanner scanner;
+
 		public RSet(boolean[] byteMap, MozInst next) {
 			super(MozSet.RSet, byteMap, next);
+			this.scanner = ByteScanner.newScanner(byteMap);
 		}
 
 		@Override
@@ -1058,6 +1119,9 @@ public class Moz86 {
 
 		@Override
 		public MozInst execMoz(MozMachine sc) throws TerminationException {
+			if (scanner != null) {
+				sc.skip(scanner);
+			}
 			int byteChar = sc.prefetch();
 			while (byteSet[byteChar]) {
 				sc.consume(1);
@@ -1068,6 +1132,9 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			if (scanner != null) {
+				sc.skip(scanner);
+			}
 			while (byteSet[sc.prefetch()]) {
 				sc.move(1);
 			}
@@ -1083,6 +1150,9 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			if (scanner != null) {
+				sc.skip(scanner);
+			}
 			while (byteSet[sc.prefetch()] && !sc.eof()) {
 				sc.move(1);
 			}
@@ -1249,16 +1319,20 @@ public class Moz86 {
 			v.visitDispatch(this);
 		}
 
+		/* a null entry fails, see MozPeephole */
+
 		@Override
 		public MozInst execMoz(MozMachine sc) throws TerminationException {
 			int ch = sc.prefetch();
-			return jumpTable[ch];
+			MozInst jump = jumpTable[ch];
+			return jump != null ? jump : sc.xFail();
 		}
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
 			int ch = sc.prefetch();
-			return jumpTable[ch];
+			MozInst jump = jumpTable[ch];
+			return jump != null ? jump : sc.xFail();
 		}
 
 	}
@@ -1277,12 +1351,14 @@ public class Moz86 {
 		public MozInst execMoz(MozMachine sc) throws TerminationException {
 			int ch = sc.prefetch();
 			sc.consume(1);
-			return jumpTable[ch];
+			MozInst jump = jumpTable[ch];
+			return jump != null ? jump : sc.xFail();
 		}
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			return jumpTable[sc.read()];
+			MozInst jump = jumpTable[sc.read()];
+			return jump != null ? jump : sc.xFail();
 		}
 
 	}
@@ -1483,6 +1559,11 @@ public class Moz86 {
 			this.label = e.label;
 		}
 
+		public TLink(Symbol label, MozInst next) {
+			super(MozSet.TPop, null, next);
+			this.label = label;
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitTLink(this);
@@ -1546,6 +1627,11 @@ public class Moz86 {
 			this.label = e.label;
 		}
 
+		public TEmit(Symbol label, MozInst next) {
+			super(MozSet.TCommit, null, next);
+			this.label = label;
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitTEmit(this);
@@ -1555,7 +1641,7 @@ public class Moz86 {
 		public MozInst execMoz(MozMachine sc) throws TerminationException {
 			MozStackData s = sc.popStack();
 			ASTMachine astMachine = sc.getAstMachine();
-			astMachine.commitTransactionPoint(label, s.ref);
+			astMachine.commitTransactionPoint(label, (int) s.value);
 			return next;
 		}
 
@@ -1580,7 +1666,7 @@ public class Moz86 {
 		public MozInst execMoz(MozMachine sc) throws TerminationException {
 			MozStackData s = sc.newUnusedStack();
 			ASTMachine astMachine = sc.getAstMachine();
-			s.ref = astMachine.saveTransactionPoint();
+			s.value = astMachine.saveTransactionPoint();
 			return next;
 		}
 
@@ -1657,6 +1743,10 @@ public class Moz86 {
 			super(MozSet.SMask, e, e.tableName, next);
 		}
 
+		public SMask(Symbol table, MozInst next) {
+			super(MozSet.SMask, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSMask(this);
@@ -1685,6 +1775,10 @@ public class Moz86 {
 			super(MozSet.SDef, e, e.tableName, next);
 		}
 
+		public SDef(Symbol table, MozInst next) {
+			super(MozSet.SDef, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSDef(this);
@@ -1701,7 +1795,7 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			int ppos = sc.xPPos();
+			long ppos = sc.xPPos();
 			sc.addSymbol(table, ppos);
 			return next;
 		}
@@ -1712,6 +1806,10 @@ public class Moz86 {
 			super(MozSet.SExists, e, e.tableName, next);
 		}
 
+		public SExists(Symbol table, MozInst next) {
+			super(MozSet.SExists, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSExists(this);
@@ -1738,6 +1836,11 @@ public class Moz86 {
 			utf8 = StringUtils.utf8(e.symbol);
 		}
 
+		public SIsDef(Symbol table, byte[] utf8, MozInst next) {
+			super(MozSet.SIsDef, null, table, next);
+			this.utf8 = utf8;
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSIsDef(this);
@@ -1762,6 +1865,10 @@ public class Moz86 {
 			super(MozSet.SMatch, e, e.tableName, next);
 		}
 
+		public SMatch(Symbol table, MozInst next) {
+			super(MozSet.SMatch, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSMatch(this);
@@ -1792,6 +1899,10 @@ public class Moz86 {
 			super(MozSet.SIs, e, e.tableName, next);
 		}
 
+		public SIs(Symbol table, MozInst next) {
+			super(MozSet.SIs, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSIs(this);
@@ -1814,7 +1925,7 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			int ppos = sc.xPPos();
+			long ppos = sc.xPPos();
 			return sc.equals(table, ppos) ? next : sc.xFail();
 		}
 
@@ -1825,6 +1936,10 @@ public class Moz86 {
 			super(MozSet.SIsa, e, e.tableName, next);
 		}
 
+		public SIsa(Symbol table, MozInst next) {
+			super(MozSet.SIsa, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSIsa(this);
@@ -1844,7 +1959,7 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			int ppos = sc.xPPos();
+			long ppos = sc.xPPos();
 			return sc.contains(table, ppos) ? next : sc.xFail();
 		}
 
@@ -1874,14 +1989,14 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			int ppos = sc.xPPos();
+			long ppos = sc.xPPos();
 			sc.scanCount(ppos, mask, shift);
 			return next;
 		}
 	}
 
 	public static final class NDec extends MozInst {
-		public final MozInst jump;
+		public MozInst jump;
 
 		public NDec(MozInst jump, MozInst next) {
 			super(MozSet.SCount, null, next);
@@ -1910,7 +2025,7 @@ public class Moz86 {
 		final MemoPoint memoPoint;
 		public final int uid;
 		public final boolean state;
-		public final MozInst jump;
+		public MozInst jump;
 
 		AbstMemo(byte opcode, Expression e, MemoPoint m, boolean state, MozInst next, MozInst skip) {
 			super(opcode, e, next);
@@ -1942,23 +2057,30 @@ public class Moz86 {
 
 		@Override
 		public MozInst execMoz(MozMachine sc) throws TerminationException {
+			if (sc.memoStats.isDisabled(uid)) {
+				return next;
+			}
 			MemoEntry entry = sc.getMemo(uid, state);
 			if (entry != null) {
 				if (entry.failed) {
-					memoPoint.failHit();
+					sc.memoStats.failHit(uid);
 					return sc.xFail();
 				}
-				memoPoint.memoHit(entry.consumed);
+				sc.memoStats.memoHit(uid, entry.consumed);
 				sc.consume(entry.consumed);
 				return jump;
 			}
-			memoPoint.miss();
+			sc.memoStats.miss(uid);
 			return next;
 		}
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			switch (sc.lookupMemo(uid)) {
+			if (sc.isMemoDisabled(uid)) {
+				return next;
+			}
+			long ppos = sc.pos;
+			switch (sc.countMemo(uid, ppos, sc.lookupMemo(uid))) {
 			case ParserContext.NotFound:
 				return next;
 			case ParserContext.SuccFound:
@@ -1982,15 +2104,18 @@ public class Moz86 {
 		@Override
 		public MozInst execMoz(MozMachine sc) throws TerminationException {
 			long ppos = sc.popAlt();
-			int length = (int) (sc.getPosition() - ppos);
-			sc.setMemo(ppos, uid, false, null, length, state);
+			if (sc.memoStats.isActive(uid)) {
+				sc.setMemo(ppos, uid, false, null, sc.getPosition() - ppos, state);
+			}
 			return next;
 		}
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			int ppos = sc.xSuccPos();
-			sc.memoSucc(uid, ppos);
+			long ppos = sc.xSuccPos();
+			if (sc.isMemoActive(uid)) {
+				sc.memoSucc(uid, ppos);
+			}
 			return next;
 		}
 	}
@@ -2007,13 +2132,17 @@ public class Moz86 {
 
 		@Override
 		public MozInst execMoz(MozMachine sc) throws TerminationException {
-			sc.setMemo(sc.getPosition(), uid, true, null, 0, state);
+			if (sc.memoStats.isActive(uid)) {
+				sc.setMemo(sc.getPosition(), uid, true, null, 0, state);
+			}
 			return sc.xFail();
 		}
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			sc.memoFail(uid);
+			if (sc.isMemoActive(uid)) {
+				sc.memoFail(uid);
+			}
 			return sc.xFail();
 		}
 
@@ -2032,6 +2161,11 @@ public class Moz86 {
 			this.label = null;
 		}
 
+		public TLookup(Symbol label, MemoPoint m, MozInst next, MozInst skip) {
+			super(MozSet.TLookup, null, m, m.isStateful(), next, skip);
+			this.label = label;
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitTLookup(this);
@@ -2039,25 +2173,32 @@ public class Moz86 {
 
 		@Override
 		public MozInst execMoz(MozMachine sc) throws TerminationException {
+			if (sc.memoStats.isDisabled(uid)) {
+				return next;
+			}
 			MemoEntry entry = sc.getMemo(uid, state);
 			if (entry != null) {
 				if (entry.failed) {
-					memoPoint.failHit();
+					sc.memoStats.failHit(uid);
 					return sc.xFail();
 				}
-				memoPoint.memoHit(entry.consumed);
+				sc.memoStats.memoHit(uid, entry.consumed);
 				sc.consume(entry.consumed);
 				ASTMachine astMachine = sc.getAstMachine();
 				astMachine.logLink(label, entry.result);
 				return jump;
 			}
-			memoPoint.miss();
+			sc.memoStats.miss(uid);
 			return next;
 		}
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			switch (sc.lookupTreeMemo(uid)) {
+			if (sc.isMemoDisabled(uid)) {
+				return next;
+			}
+			long ppos = sc.pos;
+			switch (sc.countMemo(uid, ppos, sc.lookupTreeMemo(uid))) {
 			case ParserContext.NotFound:
 				return next;
 			case ParserContext.SuccFound:
@@ -2083,18 +2224,285 @@ public class Moz86 {
 		public MozInst execMoz(MozMachine sc) throws TerminationException {
 			ASTMachine astMachine = sc.getAstMachine();
 			long ppos = sc.popAlt();
-			int length = (int) (sc.getPosition() - ppos);
-			sc.setMemo(ppos, uid, false, astMachine.getLatestLinkedNode(), length, state);
+			if (sc.memoStats.isActive(uid)) {
+				sc.setMemo(ppos, uid, false, astMachine.getLatestLinkedNode(), sc.getPosition() - ppos, state);
+			}
 			return next;
 		}
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			int ppos = sc.xSuccPos();
-			sc.memoTreeSucc(uid, ppos);
+			long ppos = sc.xSuccPos();
+			if (sc.isMemoActive(uid)) {
+				sc.memoTreeSucc(uid, ppos);
+			}
 			return next;
 		}
 
 	}
 
+	/* Superinstructions */
+
+	public static final class AByte extends AbstByte {
+		public AByte(int byteChar, MozInst next) {
+			super(MozSet.Byte, byteChar, next);
+		}
+
+		@Override
+		public void visit(InstructionVisitor v) {
+			v.visitAByte(this);
+		}
+
+		@Override
+		public MozInst execMoz(MozMachine sc) throws TerminationException {
+			if (sc.prefetch() == byteChar) {
+				return next;
+			}
+			return sc.xFail();
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			if (sc.prefetch() == byteChar) {
+				return next;
+			}
+			return sc.xFail();
+		}
+	}
+
+	public static final class ASet extends AbstSet {
+		public ASet(boolean[] byteMap, MozInst next) {
+			super(MozSet.Set, byteMap, next);
+		}
+
+		@Override
+		public void visit(InstructionVisitor v) {
+			v.visitASet(this);
+		}
+
+		@Override
+		public MozInst execMoz(MozMachine sc) throws TerminationException {
+			if (byteSet[sc.prefetch()]) {
+				return next;
+			}
+			return sc.xFail();
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			if (byteSet[sc.prefetch()]) {
+				return next;
+			}
+			return sc.xFail();
+		}
+	}
+
+	public static final class AStr extends AbstStr {
+		public AStr(byte[] byteSeq, MozInst next) {
+			super(MozSet.Str, null, byteSeq, next);
+		}
+
+		@Override
+		public void visit(InstructionVisitor v) {
+			v.visitAStr(this);
+		}
+
+		@Override
+		public MozInst execMoz(MozMachine sc) throws TerminationException {
+			if (sc.match(utf8)) {
+				return next;
+			}
+			return sc.xFail();
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			long ppos = sc.pos;
+			if (sc.match(utf8)) {
+				sc.back(ppos);
+				return next;
+			}
+			return sc.xFail();
+		}
+	}
+
+	/**
+	 * TLeaf and TLeafEnd build a node with no children. TLeaf keeps the start
+	 * position on the stack instead of the tree log, and TLeafEnd makes the
+	 * node from it without scanning the log. The Moz machine runs them as
+	 * TBegin and TEnd.
+	 */
+
+	public static final class TLeaf extends MozInst {
+		public final int shift;
+
+		public TLeaf(int shift, MozInst next) {
+			super(MozSet.TNew, null, next);
+			this.shift = shift;
+		}
+
+		@Override
+		public void visit(InstructionVisitor v) {
+			v.visitTLeaf(this);
+		}
+
+		@Override
+		public MozInst execMoz(MozMachine sc) throws TerminationException {
+			ASTMachine astMachine = sc.getAstMachine();
+			astMachine.logNew(sc.getPosition() + shift, id);
+			return next;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			sc.xPos();
+			return next;
+		}
+	}
+
+	public static final class TLeafEnd extends MozInst {
+		public final int shift;
+		public final Symbol tag;
+		public final String value;
+		private final int beginShift;
+
+		public TLeafEnd(int beginShift, Symbol tag, String value, int shift, MozInst next) {
+			super(MozSet.TCapture, null, next);
+			this.beginShift = beginShift;
+			this.tag = tag;
+			this.value = value;
+			this.shift = shift;
+		}
+
+		public final int getBeginShift() {
+			return beginShift;
+		}
+
+		@Override
+		public void visit(InstructionVisitor v) {
+			v.visitTLeafEnd(this);
+		}
+
+		@Override
+		public MozInst execMoz(MozMachine sc) throws TerminationException {
+			ASTMachine astMachine = sc.getAstMachine();
+			astMachine.logCapture(sc.getPosition() + shift);
+			return next;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			long ppos = sc.xPPos();
+			sc.endLeafTree(ppos + beginShift, shift, tag, value);
+			return next;
+		}
+	}
+
+	/**
+	 * MemoCall calls a memoized production. A memo hit continues at the
+	 * return address without pushing a frame or running Lookup and Ret.
+	 */
+
+	public static final class MemoCall extends AbstMemo {
+		public final String name;
+		final boolean tree;
+
+		public MemoCall(String name, MemoPoint m, boolean tree, MozInst next, MozInst ret) {
+			super(MozSet.Call, null, m, m.isStateful(), next, ret);
+			this.name = name;
+			this.tree = tree;
+		}
+
+		@Override
+		public void visit(InstructionVisitor v) {
+			v.visitMemoCall(this);
+		}
+
+		@Override
+		public MozInst execMoz(MozMachine sc) throws TerminationException {
+			if (!sc.memoStats.isDisabled(uid)) {
+				MemoEntry entry = sc.getMemo(uid, state);
+				if (entry != null) {
+					if (entry.failed) {
+						sc.memoStats.failHit(uid);
+						return sc.xFail();
+					}
+					sc.memoStats.memoHit(uid, entry.consumed);
+					sc.consume(entry.consumed);
+					if (tree) {
+						sc.getAstMachine().logLink(null, entry.result);
+					}
+					return jump;
+				}
+				sc.memoStats.miss(uid);
+			}
+			MozStackData s = sc.newUnusedStack();
+			s.ref = jump;
+			return next;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			if (!sc.isMemoDisabled(uid)) {
+				long ppos = sc.pos;
+				switch (sc.countMemo(uid, ppos, tree ? sc.lookupTreeMemo(uid) : sc.lookupMemo(uid))) {
+				case ParserContext.NotFound:
+					break;
+				case ParserContext.SuccFound:
+					return jump;
+				default:
+					return sc.xFail();
+				}
+			}
+			sc.xCall(name, jump);
+			return next;
+		}
+	}
+
+	/**
+	 * DFA matches a regular production with a transition table (see MozDFA).
+	 * If the table cannot decide, it jumps to the compiled code of the
+	 * production. The Moz machine always runs the compiled code.
+	 */
+
+	public static final class DFA extends MozInst {
+		public final int[] table;
+		public final int states;
+		public MozInst jump;
+
+		public DFA(Expression e, int[] table, MozInst next, MozInst jump) {
+			super(MozSet.DFirst, e, next);
+			this.table = table;
+			this.states = table.length / 257;
+			this.jump = joinPoint(jump);
+		}
+
+		@Override
+		public void visit(InstructionVisitor v) {
+			v.visitDFA(this);
+		}
+
+		@Override
+		MozInst branch() {
+			return jump;
+		}
+
+		@Override
+		public MozInst execMoz(MozMachine sc) throws TerminationException {
+			return jump;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			switch (sc.runDFA(table)) {
+			case MozDFA.Accept:
+				return next;
+			case MozDFA.Fail:
+				return sc.xFail();
+			default:
+				return jump;
+			}
+		}
+	}
+
 }
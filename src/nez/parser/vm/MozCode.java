@@ -1,9 +1,14 @@
 package nez.parser.vm;
 
+import java.util.Map;
+
 import nez.lang.Grammar;
+import nez.parser.MemoPoint;
+import nez.parser.MemoStats;
 import nez.parser.Parser;
 import nez.parser.ParserCode;
 import nez.parser.ParserInstance;
+import nez.parser.ParserStrategy;
 import nez.parser.TerminationException;
 import nez.util.ConsoleUtils;
 import nez.util.UList;
@@ -15,15 +20,73 @@ public class MozCode extends ParserCode<MozInst> {
 		super(compiledGrammar, new MozInst[1026]);
 	}
 
+	/* restores a code loaded by MozImage; the start instruction comes first */
+
+	MozCode(MozInst[] code, boolean recognitionMode, Map<String, MemoPoint> memoPointMap) {
+		super(new MozInst[code.length + 1], recognitionMode);
+		for (MozInst inst : code) {
+			codeList.add(inst);
+		}
+		this.memoPointMap = memoPointMap;
+	}
+
+	final boolean isRecognitionMode() {
+		return RecognitionMode;
+	}
+
+	final Map<String, MemoPoint> memoPoints() {
+		return memoPointMap;
+	}
+
 	UList<MozInst> codeList() {
 		return codeList;
 	}
 
+	/* lays out the code again from the production entries after MozPeephole */
+
+	final void relayout() {
+		UList<MozInst> old = codeList;
+		if (unfusedSize == 0) {
+			unfusedSize = old.size();
+		}
+		for (MozInst inst : old) {
+			inst.id = -1;
+			inst.joinPoint = false;
+		}
+		codeList = new UList<>(new MozInst[old.size()]);
+		for (MozInst inst : old) {
+			if (inst instanceof Moz86.Nop) {
+				layout(inst);
+			}
+		}
+	}
+
+	private void layout(MozInst inst) {
+		if (inst == null) {
+			return;
+		}
+		if (inst.id == -1) {
+			inst.id = codeList.size();
+			codeList.add(inst);
+			if (inst.next != null && inst.next.id != -1) {
+				inst.next.joinPoint = true;
+			}
+			layout(inst.next);
+			layout(Moz86.joinPoint(Moz86.jump(inst)));
+			if (inst instanceof Moz86.Dispatch) {
+				for (MozInst j : ((Moz86.Dispatch) inst).jumpTable) {
+					layout(Moz86.joinPoint(j));
+				}
+			}
+		}
+	}
+
 	@Override
 	public Object exec(ParserInstance context) {
 		long startPosition = context.getPosition();
 		MozMachine machine = (MozMachine) context.getRuntime();
 		MozInst code = getStartInstruction();
+		MemoStats stats = startMemoStats(machine);
 		boolean result;
 		try {
 			while (true) {
@@ -32,10 +95,21 @@ public class MozCode extends ParserCode<MozInst> {
 		} catch (TerminationException e) {
 			result = e.status;
 		}
+		stats.merge();
 		return result ? machine.getParseResult(startPosition, context.getPosition()) : null;
 	}
 
+	/* the Moz engine always counts lookups */
+
+	private MemoStats startMemoStats(MozMachine sc) {
+		MemoStats stats = new MemoStats(getMemoPoints());
+		stats.start();
+		sc.memoStats = stats;
+		return stats;
+	}
+
 	public boolean run(MozInst code, MozMachine sc) {
+		MemoStats stats = startMemoStats(sc);
 		boolean result;
 		String u = "Start";
 		UList<String> stack = new UList<>(new String[128]);
@@ -60,6 +134,7 @@ public class MozCode extends ParserCode<MozInst> {
 		} catch (TerminationException e) {
 			result = e.status;
 		}
+		stats.merge();
 		return result;
 	}
 
@@ -91,7 +166,10 @@ public class MozCode extends ParserCode<MozInst> {
 	}
 
 	public static void writeMozCode(Parser parser, String path) {
-		ParserMachineCompiler compile = ParserMachineCompiler.newCompiler(parser.getParserStrategy());
+		ParserStrategy strategy = parser.getParserStrategy().clone();
+		strategy.Opeephole = false; // superinstructions are not in the C runtime
+		strategy.Odfa = false;
+		ParserMachineCompiler compile = ParserMachineCompiler.newCompiler(strategy);
 		MozCode code = compile.compile(parser.getGrammar());
 		MozWriter c = new MozWriter();
 		code.encode(c);
@@ -0,0 +1,515 @@
+package nez.parser.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nez.lang.Expression;
+import nez.lang.Nez;
+import nez.lang.NonTerminal;
+import nez.lang.Production;
+import nez.parser.ParserStrategy;
+
+/**
+ * MozDFA compiles a regular production into a dense transition table, run by
+ * the Moz86.DFA instruction. A state is the stack of expressions that remain
+ * to be matched, so the table is built by matching one byte at a time
+ * against the top of the stack.
+ *
+ * <pre>
+ * table[state * 257 + ch]  ch = 256 at EOF
+ *   n &gt;= 0   consumes ch and moves to the state n
+ *   Accept   succeeds without consuming ch
+ *   Fail     fails the production
+ *   Bail     restarts the production with the compiled code
+ * </pre>
+ *
+ * PEG choices are ordered, so a choice commits to the first alternative that
+ * may start with the next byte. If the alternative fails later and another
+ * alternative could still match, the table bails out to the compiled code,
+ * which backtracks as usual. Productions that construct trees, use symbol
+ * tables or look ahead more than one byte are left to the compiled code.
+ */
+
+final class MozDFA {
+	static final int Accept = -1;
+	static final int Fail = -2;
+	static final int Bail = -3;
+
+	private static final int Width = 257;
+	private static final int MaxStates = 128;
+	private static final int MaxDepth = 32;
+	private static final int MaxSteps = 256;
+
+	/* stack items */
+	private static final int Expr = 0;
+	private static final int Star = 1; // e* after an iteration of e
+	private static final int Mark = 2; // a choice point that may still succeed
+	private static final int Skip = 3; // a byte consumed by the prediction
+
+	@SuppressWarnings("serial")
+	private static final class Unsupported extends RuntimeException {
+		Unsupported() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static final Unsupported unsupported = new Unsupported();
+
+	private static final class Item {
+		final int kind;
+		final Expression e;
+		final int offset;
+
+		Item(int kind, Expression e, int offset) {
+			this.kind = kind;
+			this.e = e;
+			this.offset = offset;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Item) {
+				Item i = (Item) o;
+				return kind == i.kind && e == i.e && offset == i.offset;
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return (System.identityHashCode(e) * 31 + kind) * 31 + offset;
+		}
+	}
+
+	private static final Item MarkItem = new Item(Mark, null, 0);
+	private static final Item SkipItem = new Item(Skip, null, 0);
+
+	private final boolean treeConstruction;
+	private final Map<List<Item>, Integer> stateMap = new HashMap<>();
+	private final List<List<Item>> states = new ArrayList<>();
+	private final Map<Expression, boolean[]> firstMap = new IdentityHashMap<>();
+	private final Map<Expression, Boolean> nullableMap = new IdentityHashMap<>();
+
+	private MozDFA(ParserStrategy strategy) {
+		this.treeConstruction = strategy.TreeConstruction;
+	}
+
+	/**
+	 * Returns the transition table of e, or null if e is not regular or too
+	 * simple to be worth a table.
+	 */
+
+	static int[] compile(Expression e, ParserStrategy strategy) {
+		if (strategy.BinaryGrammar) {
+			return null;
+		}
+		MozDFA dfa = new MozDFA(strategy);
+		try {
+			if (!dfa.isWorth(e, new HashSet<>())) {
+				return null;
+			}
+			return dfa.build(e);
+		} catch (Unsupported | StackOverflowError x) {
+			return null;
+		}
+	}
+
+	private int[] build(Expression e) {
+		ArrayList<Item> start = new ArrayList<>();
+		start.add(new Item(Expr, e, 0));
+		state(start);
+		int[] table = new int[MaxStates * Width];
+		for (int s = 0; s < states.size(); s++) {
+			for (int ch = 0; ch < Width; ch++) {
+				table[s * Width + ch] = next(states.get(s), ch);
+			}
+		}
+		return Arrays.copyOf(table, states.size() * Width);
+	}
+
+	private int state(List<Item> stack) {
+		Integer s = stateMap.get(stack);
+		if (s == null) {
+			if (states.size() == MaxStates) {
+				throw unsupported;
+			}
+			s = states.size();
+			stateMap.put(stack, s);
+			states.add(stack);
+		}
+		return s;
+	}
+
+	/* the transition of a state by ch */
+
+	private int next(List<Item> state, int ch) {
+		ArrayList<Item> stack = new ArrayList<>(state);
+		for (int step = 0; step < MaxSteps; step++) {
+			if (stack.size() > MaxDepth) {
+				throw unsupported;
+			}
+			if (stack.isEmpty()) {
+				return Accept;
+			}
+			Item item = stack.remove(stack.size() - 1);
+			if (item.kind == Mark) {
+				continue;
+			}
+			if (item.kind == Skip) {
+				if (ch == 256) {
+					throw unsupported;
+				}
+				return state(stack);
+			}
+			if (item.kind == Star) {
+				if (first(item.e)[ch]) {
+					if (ch == 256) {
+						throw unsupported;
+					}
+					stack.add(item);
+					stack.add(MarkItem);
+					push(stack, item.e);
+				}
+				continue;
+			}
+			Expression e = item.e;
+			if (e instanceof Nez.Empty) {
+				continue;
+			}
+			if (e instanceof Nez.Byte || e instanceof Nez.ByteSet || e instanceof Nez.Any) {
+				if (!matchOne(e, ch)) {
+					return fail(stack);
+				}
+				return state(stack);
+			}
+			if (e instanceof Nez.MultiByte) {
+				byte[] utf8 = ((Nez.MultiByte) e).byteseq;
+				if (item.offset == utf8.length) {
+					continue;
+				}
+				if (ch != (utf8[item.offset] & 0xff)) {
+					return fail(stack);
+				}
+				if (item.offset + 1 < utf8.length) {
+					stack.add(new Item(Expr, e, item.offset + 1));
+				}
+				return state(stack);
+			}
+			if (e instanceof Nez.Sequence || e instanceof Nez.Pair) {
+				for (int i = e.size() - 1; i >= 0; i--) {
+					push(stack, e.get(i));
+				}
+				continue;
+			}
+			if (e instanceof Nez.Choice) {
+				Nez.Choice choice = (Nez.Choice) e;
+				if (choice.predicted != null) {
+					int index = choice.predicted.indexMap[ch == 256 ? 0 : ch] & 0xff;
+					if (index == 0) {
+						return fail(stack);
+					}
+					Expression predicted = choice.get(index - 1);
+					push(stack, predicted instanceof Nez.Choice ? unpredicted((Nez.Choice) predicted) : predicted);
+					if (choice.predicted.striped[index - 1]) {
+						stack.add(SkipItem);
+					}
+					continue;
+				}
+				if (!choose(stack, choice, ch)) {
+					return fail(stack);
+				}
+				continue;
+			}
+			if (e instanceof Nez.Dispatch) {
+				Nez.Dispatch dispatch = (Nez.Dispatch) e;
+				int index = dispatch.indexMap[ch == 256 ? 0 : ch] & 0xff;
+				if (index <= 1) {
+					return fail(stack);
+				}
+				Expression predicted = dispatch.get(index - 1);
+				push(stack, predicted instanceof Nez.Choice ? unpredicted((Nez.Choice) predicted) : predicted);
+				continue;
+			}
+			if (e instanceof Nez.Option) {
+				if (mayStart(e.get(0), ch)) {
+					stack.add(MarkItem);
+					push(stack, e.get(0));
+				}
+				continue;
+			}
+			if (e instanceof Nez.ZeroMore || e instanceof Nez.OneMore) {
+				if (nullable(e.get(0))) {
+					throw unsupported;
+				}
+				stack.add(new Item(Star, e.get(0), 0));
+				if (e instanceof Nez.OneMore) {
+					push(stack, e.get(0));
+				}
+				continue;
+			}
+			if (e instanceof Nez.Not || e instanceof Nez.And) {
+				Expression inner = e.get(0);
+				boolean matched;
+				if (inner instanceof Nez.Byte || inner instanceof Nez.ByteSet || inner instanceof Nez.Any) {
+					matched = matchOne(inner, ch);
+				} else if (!mayStart(inner, ch)) {
+					matched = false;
+				} else {
+					return Bail; // needs more than a byte to decide
+				}
+				if (matched == (e instanceof Nez.Not)) {
+					return fail(stack);
+				}
+				continue;
+			}
+			if (e instanceof NonTerminal) {
+				push(stack, deReference((NonTerminal) e));
+				continue;
+			}
+			if (!treeConstruction && isTree(e)) {
+				if (e.size() == 1) {
+					push(stack, e.get(0));
+				}
+				continue;
+			}
+			throw unsupported;
+		}
+		throw unsupported;
+	}
+
+	/* pushes the first alternative that may start with ch */
+
+	private boolean choose(ArrayList<Item> stack, Nez.Choice choice, int ch) {
+		for (int i = 0; i < choice.size(); i++) {
+			if (mayStart(choice.get(i), ch)) {
+				for (int j = i + 1; j < choice.size(); j++) {
+					if (mayStart(choice.get(j), ch)) {
+						stack.add(MarkItem);
+						break;
+					}
+				}
+				push(stack, choice.get(i));
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Expression unpredicted(Nez.Choice choice) {
+		if (choice.predicted == null) {
+			return choice;
+		}
+		throw unsupported;
+	}
+
+	private static void push(ArrayList<Item> stack, Expression e) {
+		stack.add(new Item(Expr, e, 0));
+	}
+
+	/* a failure bails out if a choice point may still succeed */
+
+	private static int fail(ArrayList<Item> stack) {
+		for (Item item : stack) {
+			if (item.kind == Mark) {
+				return Bail;
+			}
+		}
+		return Fail;
+	}
+
+	private static boolean matchOne(Expression e, int ch) {
+		if (ch == 256) {
+			return false;
+		}
+		if (e instanceof Nez.Byte) {
+			return ch == ((Nez.Byte) e).byteChar;
+		}
+		if (e instanceof Nez.ByteSet) {
+			return ((Nez.ByteSet) e).byteset[ch];
+		}
+		return true;
+	}
+
+	private Expression deReference(NonTerminal n) {
+		Production p = n.getProduction();
+		if (p == null) {
+			throw unsupported;
+		}
+		return p.getExpression();
+	}
+
+	private boolean isTree(Expression e) {
+		return e instanceof Nez.BeginTree || e instanceof Nez.EndTree || e instanceof Nez.FoldTree || e instanceof Nez.Tag //
+				|| e instanceof Nez.Replace || e instanceof Nez.LinkTree || e instanceof Nez.Detree;
+	}
+
+	/*
+	 * checks that e and the productions it calls are made of matching only,
+	 * and returns whether a table pays off, for choices, loops over more than
+	 * a byte and calls
+	 */
+
+	private boolean isWorth(Expression e, Set<Production> visited) {
+		boolean worth = false;
+		if (e instanceof NonTerminal) {
+			Production p = ((NonTerminal) e).getProduction();
+			if (p == null) {
+				throw unsupported;
+			}
+			if (visited.add(p)) {
+				isWorth(p.getExpression(), visited);
+			}
+			return true;
+		}
+		if (e instanceof Nez.Choice || e instanceof Nez.Dispatch) {
+			worth = true;
+		} else if (e instanceof Nez.Option || e instanceof Nez.ZeroMore || e instanceof Nez.OneMore) {
+			Expression inner = e.get(0);
+			worth = !(inner instanceof Nez.Byte || inner instanceof Nez.ByteSet || inner instanceof Nez.Any || inner instanceof Nez.MultiByte);
+		} else if (!(e instanceof Nez.Sequence || e instanceof Nez.Pair || e instanceof Nez.And || e instanceof Nez.Not //
+				|| e instanceof Nez.Empty || e instanceof Nez.Fail || e instanceof Nez.Byte || e instanceof Nez.ByteSet //
+				|| e instanceof Nez.Any || e instanceof Nez.MultiByte || (!treeConstruction && isTree(e)))) {
+			throw unsupported;
+		}
+		for (int i = 0; i < e.size(); i++) {
+			worth |= isWorth(e.get(i), visited);
+		}
+		return worth;
+	}
+
+	/* analysis; first[256] is set if e may succeed at EOF */
+
+	private boolean mayStart(Expression e, int ch) {
+		return first(e)[ch] || nullable(e);
+	}
+
+	private boolean nullable(Expression e) {
+		Boolean b = nullableMap.get(e);
+		if (b == null) {
+			nullableMap.put(e, Boolean.TRUE); // for recursion
+			b = checkNullable(e);
+			nullableMap.put(e, b);
+		}
+		return b;
+	}
+
+	private boolean checkNullable(Expression e) {
+		if (e instanceof Nez.Byte || e instanceof Nez.ByteSet || e instanceof Nez.Any || e instanceof Nez.Fail) {
+			return false;
+		}
+		if (e instanceof Nez.MultiByte) {
+			return ((Nez.MultiByte) e).byteseq.length == 0;
+		}
+		if (e instanceof Nez.Sequence || e instanceof Nez.Pair) {
+			for (int i = 0; i < e.size(); i++) {
+				if (!nullable(e.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (e instanceof Nez.Choice && ((Nez.Choice) e).predicted != null) {
+			boolean[] striped = ((Nez.Choice) e).predicted.striped;
+			for (int i = 0; i < e.size(); i++) {
+				if (!striped[i] && nullable(e.get(i))) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (e instanceof Nez.Choice || e instanceof Nez.Dispatch) {
+			for (int i = e instanceof Nez.Dispatch ? 1 : 0; i < e.size(); i++) {
+				if (nullable(e.get(i))) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (e instanceof Nez.OneMore) {
+			return nullable(e.get(0));
+		}
+		if (e instanceof NonTerminal) {
+			return nullable(deReference((NonTerminal) e));
+		}
+		if (e instanceof Nez.Unary && !treeConstruction && isTree(e)) {
+			return nullable(e.get(0));
+		}
+		return true; // Empty, Option, ZeroMore, And, Not and the others
+	}
+
+	private boolean[] first(Expression e) {
+		boolean[] f = firstMap.get(e);
+		if (f == null) {
+			f = new boolean[Width];
+			firstMap.put(e, f); // for recursion
+			checkFirst(e, f);
+		}
+		return f;
+	}
+
+	private void checkFirst(Expression e, boolean[] f) {
+		if (e instanceof Nez.Byte) {
+			int ch = ((Nez.Byte) e).byteChar;
+			if (ch == 0) {
+				throw unsupported; // Byte matches 0 at EOF
+			}
+			f[ch] = true;
+		} else if (e instanceof Nez.ByteSet) {
+			boolean[] byteset = ((Nez.ByteSet) e).byteset;
+			if (byteset[0]) {
+				throw unsupported;
+			}
+			System.arraycopy(byteset, 0, f, 0, 256);
+		} else if (e instanceof Nez.Any) {
+			Arrays.fill(f, 0, 256, true);
+		} else if (e instanceof Nez.MultiByte) {
+			byte[] utf8 = ((Nez.MultiByte) e).byteseq;
+			if (utf8.length > 0) {
+				f[utf8[0] & 0xff] = true;
+			}
+		} else if (e instanceof Nez.Sequence || e instanceof Nez.Pair) {
+			for (int i = 0; i < e.size(); i++) {
+				union(f, first(e.get(i)));
+				if (!nullable(e.get(i)) && !first(e.get(i))[256]) {
+					break;
+				}
+			}
+		} else if (e instanceof Nez.Choice && ((Nez.Choice) e).predicted != null) {
+			predicted(f, ((Nez.Choice) e).predicted.indexMap);
+		} else if (e instanceof Nez.Dispatch) {
+			predicted(f, ((Nez.Dispatch) e).indexMap);
+		} else if (e instanceof NonTerminal) {
+			union(f, first(deReference((NonTerminal) e)));
+		} else if (e instanceof Nez.And || e instanceof Nez.Not) {
+			return; // nullable
+		} else {
+			for (int i = 0; i < e.size(); i++) {
+				union(f, first(e.get(i)));
+			}
+		}
+	}
+
+	private static void predicted(boolean[] f, byte[] indexMap) {
+		for (int ch = 0; ch < indexMap.length; ch++) {
+			if (indexMap[ch] != 0) {
+				f[ch] = true;
+			}
+		}
+		if (indexMap[0] != 0) {
+			f[256] = true;
+		}
+	}
+
+	private static void union(boolean[] f, boolean[] g) {
+		for (int ch = 0; ch < Width; ch++) {
+			f[ch] |= g[ch];
+		}
+	}
+
+}
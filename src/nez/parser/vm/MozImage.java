@@ -0,0 +1,725 @@
+package nez.parser.vm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nez.ast.Symbol;
+import nez.lang.Typestate;
+import nez.parser.MemoPoint;
+import nez.parser.Parser;
+import nez.parser.ParserCode;
+import nez.parser.ParserStrategy;
+import nez.util.Verbose;
+
+/**
+ * MozImage saves the optimized and compiled program of a parser, so that a
+ * later run can load a ready parser without loading the grammar or running
+ * the ParserOptimizer. An image holds the parser strategy, the memo points,
+ * a symbol pool, a byte set pool and the instruction graph, in which every
+ * jump refers to an instruction by its index.
+ *
+ * Unlike the .moz format of MozWriter, which targets the C runtime and
+ * shares opcodes among instructions, an image records the exact class of
+ * each instruction and is only meant to be read back by the same version.
+ *
+ * <pre>
+ * MozImage.write(parser, "js.nezc");
+ * Parser p = MozImage.load("js.nezc");
+ * </pre>
+ */
+
+public class MozImage {
+	public static final String Extension = "nezc";
+	private static final int Magic = 0x4e455a43; // NEZC
+	private static final int Version = 1;
+
+	private static final List<Class<? extends MozInst>> Kinds = Arrays.asList( //
+	Moz86.Nop.class, Moz86.Exit.class, Moz86.Trap.class, //
+			Moz86.Pos.class, Moz86.Back.class, Moz86.Move.class, Moz86.Jump.class, Moz86.Call.class, Moz86.Ret.class, //
+			Moz86.Alt.class, Moz86.Succ.class, Moz86.Fail.class, Moz86.Guard.class, Moz86.Step.class, //
+			Moz86.Byte.class, Moz86.BinaryByte.class, Moz86.NByte.class, Moz86.BinaryNByte.class, //
+			Moz86.OByte.class, Moz86.BinaryOByte.class, Moz86.RByte.class, Moz86.BinaryRByte.class, //
+			Moz86.Any.class, Moz86.NAny.class, //
+			Moz86.Set.class, Moz86.BinarySet.class, Moz86.NSet.class, Moz86.BinaryNSet.class, //
+			Moz86.OSet.class, Moz86.BinaryOSet.class, Moz86.RSet.class, Moz86.BinaryRSet.class, //
+			Moz86.Str.class, Moz86.NStr.class, Moz86.OStr.class, Moz86.RStr.class, //
+			Moz86.Dispatch.class, Moz86.DDispatch.class, //
+			Moz86.TPush.class, Moz86.TPop.class, Moz86.TBegin.class, Moz86.TEnd.class, Moz86.TTag.class, //
+			Moz86.TReplace.class, Moz86.TLink.class, Moz86.TFold.class, Moz86.TEmit.class, Moz86.TStart.class, //
+			Moz86.SOpen.class, Moz86.SClose.class, Moz86.SMask.class, Moz86.SDef.class, Moz86.SExists.class, //
+			Moz86.SIsDef.class, Moz86.SMatch.class, Moz86.SIs.class, Moz86.SIsa.class, //
+			Moz86.NScan.class, Moz86.NDec.class, //
+			Moz86.Lookup.class, Moz86.Memo.class, Moz86.MemoFail.class, Moz86.TLookup.class, Moz86.TMemo.class, //
+			Moz86.AByte.class, Moz86.ASet.class, Moz86.AStr.class, Moz86.TLeaf.class, Moz86.TLeafEnd.class, Moz86.MemoCall.class, //
+			Moz86.DFA.class //
+	);
+
+	private static final Map<Class<?>, Integer> KindMap = new HashMap<>();
+
+	static {
+		for (int i = 0; i < Kinds.size(); i++) {
+			KindMap.put(Kinds.get(i), i);
+		}
+	}
+
+	/* Writer */
+
+	public static void write(Parser parser, String path) throws IOException {
+		ParserCode<?> pcode = parser.getParserCode();
+		if (!(pcode instanceof MozCode)) {
+			throw new IOException("unsupported parser code: " + pcode.getClass().getSimpleName());
+		}
+		MozCode code = (MozCode) pcode;
+		Writer w = new Writer(code.codeList().get(0));
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+			out.writeInt(Magic);
+			out.writeInt(Version);
+			writeStrategy(out, parser.getParserStrategy());
+			out.writeBoolean(code.isRecognitionMode());
+			w.write(out, code.memoPoints());
+		}
+		Verbose.println("generating %s (%d instructions)", path, w.code.size());
+	}
+
+	private static void writeStrategy(DataOutputStream out, ParserStrategy strategy) throws IOException {
+		List<String> options = new ArrayList<>();
+		for (Field f : ParserStrategy.class.getFields()) {
+			if (!Modifier.isStatic(f.getModifiers())) {
+				try {
+					Object value = f.get(strategy);
+					if (value != null) { // unset options such as Projection
+						options.add(f.getName() + "=" + value);
+					}
+				} catch (IllegalAccessException e) {
+					Verbose.traceException(e);
+				}
+			}
+		}
+		out.writeInt(options.size());
+		for (String option : options) {
+			out.writeUTF(option);
+		}
+	}
+
+	private static final class Writer {
+		final List<MozInst> code = new ArrayList<>();
+		final Map<MozInst, Integer> ids = new IdentityHashMap<>();
+		final Map<String, Integer> symbols = new HashMap<>();
+		final Map<boolean[], Integer> sets = new IdentityHashMap<>();
+		final List<boolean[]> setList = new ArrayList<>();
+
+		Writer(MozInst start) throws IOException {
+			collect(start);
+		}
+
+		/* numbers reachable instructions; the start instruction gets 0 */
+
+		private void collect(MozInst start) throws IOException {
+			ArrayList<MozInst> stack = new ArrayList<>();
+			push(stack, start);
+			while (!stack.isEmpty()) {
+				MozInst inst = stack.remove(stack.size() - 1);
+				if (!KindMap.containsKey(inst.getClass())) {
+					throw new IOException("cannot save " + inst.getName() + " in an image");
+				}
+				push(stack, inst.next);
+				if (inst instanceof Moz86.Dispatch) {
+					for (MozInst j : ((Moz86.Dispatch) inst).jumpTable) {
+						push(stack, j);
+					}
+				} else {
+					push(stack, Moz86.jump(inst));
+				}
+				if (inst instanceof Moz86.AbstSet) {
+					boolean[] set = ((Moz86.AbstSet) inst).byteSet;
+					if (!sets.containsKey(set)) {
+						sets.put(set, setList.size());
+						setList.add(set);
+					}
+				}
+			}
+		}
+
+		private void push(ArrayList<MozInst> stack, MozInst inst) {
+			if (inst != null && !ids.containsKey(inst)) {
+				ids.put(inst, code.size());
+				code.add(inst);
+				stack.add(inst);
+			}
+		}
+
+		void write(DataOutputStream out, Map<String, MemoPoint> memoPoints) throws IOException {
+			MemoPoint[] memo = new MemoPoint[memoPoints == null ? 0 : memoPoints.size()];
+			if (memoPoints != null) {
+				for (MemoPoint m : memoPoints.values()) {
+					memo[m.id] = m;
+				}
+			}
+			out.writeInt(memo.length);
+			for (MemoPoint m : memo) {
+				out.writeUTF(m.label);
+				out.writeUTF(m.getTypestate().name());
+				out.writeBoolean(m.isStateful());
+			}
+			List<String> symbolList = new ArrayList<>();
+			for (MozInst inst : code) {
+				Symbol s = symbolOf(inst);
+				if (s != null && !symbols.containsKey(s.getSymbol())) {
+					symbols.put(s.getSymbol(), symbolList.size());
+					symbolList.add(s.getSymbol());
+				}
+			}
+			out.writeInt(symbolList.size());
+			for (String s : symbolList) {
+				out.writeUTF(s);
+			}
+			out.writeInt(setList.size());
+			for (boolean[] set : setList) {
+				out.writeShort(set.length);
+				for (int i = 0; i < set.length; i += 8) {
+					int bits = 0;
+					for (int j = 0; j < 8 && i + j < set.length; j++) {
+						bits |= set[i + j] ? 1 << j : 0;
+					}
+					out.writeByte(bits);
+				}
+			}
+			out.writeInt(code.size());
+			for (MozInst inst : code) {
+				out.writeByte(KindMap.get(inst.getClass()));
+				out.writeBoolean(inst.joinPoint);
+				out.writeInt(id(inst.next));
+				writeOperands(out, inst);
+			}
+		}
+
+		private int id(MozInst inst) {
+			return inst == null ? -1 : ids.get(inst);
+		}
+
+		private int symbol(Symbol s) {
+			return s == null ? -1 : symbols.get(s.getSymbol());
+		}
+
+		private void writeOperands(DataOutputStream out, MozInst inst) throws IOException {
+			if (inst instanceof Moz86.Nop) {
+				writeString(out, ((Moz86.Nop) inst).name);
+			} else if (inst instanceof Moz86.Exit) {
+				out.writeBoolean(((Moz86.Exit) inst).status);
+			} else if (inst instanceof Moz86.Trap) {
+				out.writeInt(((Moz86.Trap) inst).uid);
+			} else if (inst instanceof Moz86.Move) {
+				out.writeInt(((Moz86.Move) inst).shift);
+			} else if (inst instanceof Moz86.Call) {
+				writeString(out, ((Moz86.Call) inst).name);
+				out.writeInt(id(((Moz86.Call) inst).jump));
+			} else if (inst instanceof Moz86.AbstByte) {
+				out.writeInt(((Moz86.AbstByte) inst).byteChar);
+			} else if (inst instanceof Moz86.AbstSet) {
+				out.writeInt(sets.get(((Moz86.AbstSet) inst).byteSet));
+			} else if (inst instanceof Moz86.AbstStr) {
+				writeBytes(out, ((Moz86.AbstStr) inst).utf8);
+			} else if (inst instanceof Moz86.Dispatch) {
+				MozInst[] jumpTable = ((Moz86.Dispatch) inst).jumpTable;
+				out.writeShort(jumpTable.length);
+				for (int ch = 0; ch < jumpTable.length;) { // as runs of the same target
+					int run = 1;
+					while (ch + run < jumpTable.length && jumpTable[ch + run] == jumpTable[ch]) {
+						run++;
+					}
+					out.writeShort(run);
+					out.writeInt(id(jumpTable[ch]));
+					ch += run;
+				}
+			} else if (inst instanceof Moz86.DFA) {
+				int[] table = ((Moz86.DFA) inst).table;
+				out.writeInt(id(Moz86.jump(inst)));
+				out.writeInt(table.length);
+				for (int i = 0; i < table.length;) { // as runs of the same transition
+					int run = 1;
+					while (i + run < table.length && run < Short.MAX_VALUE && table[i + run] == table[i]) {
+						run++;
+					}
+					out.writeShort(run);
+					out.writeInt(table[i]);
+					i += run;
+				}
+			} else if (inst instanceof Moz86.TBegin) {
+				out.writeInt(((Moz86.TBegin) inst).shift);
+			} else if (inst instanceof Moz86.TLeaf) {
+				out.writeInt(((Moz86.TLeaf) inst).shift);
+			} else if (inst instanceof Moz86.TLeafEnd) {
+				Moz86.TLeafEnd t = (Moz86.TLeafEnd) inst;
+				out.writeInt(t.getBeginShift());
+				out.writeInt(symbol(t.tag));
+				writeString(out, t.value);
+				out.writeInt(t.shift);
+			} else if (inst instanceof Moz86.TEnd) {
+				Moz86.TEnd t = (Moz86.TEnd) inst;
+				out.writeInt(symbol(t.tag));
+				writeString(out, t.value);
+				out.writeInt(t.shift);
+			} else if (inst instanceof Moz86.TReplace) {
+				writeString(out, ((Moz86.TReplace) inst).value);
+			} else if (inst instanceof Moz86.TFold) {
+				out.writeInt(((Moz86.TFold) inst).shift);
+				out.writeInt(symbol(symbolOf(inst)));
+			} else if (inst instanceof Moz86.SIsDef) {
+				out.writeInt(symbol(symbolOf(inst)));
+				writeBytes(out, ((Moz86.SIsDef) inst).utf8);
+			} else if (inst instanceof Moz86.NScan) {
+				out.writeLong(((Moz86.NScan) inst).mask);
+				out.writeInt(((Moz86.NScan) inst).shift);
+			} else if (inst instanceof Moz86.AbstMemo) {
+				out.writeInt(((Moz86.AbstMemo) inst).memoPoint.id);
+				out.writeInt(id(Moz86.jump(inst)));
+				out.writeInt(symbol(symbolOf(inst)));
+				if (inst instanceof Moz86.MemoCall) {
+					writeString(out, ((Moz86.MemoCall) inst).name);
+					out.writeBoolean(((Moz86.MemoCall) inst).tree);
+				}
+			} else {
+				if (inst instanceof Moz86.Alt || inst instanceof Moz86.Jump || inst instanceof Moz86.NDec) {
+					out.writeInt(id(Moz86.jump(inst)));
+				}
+				out.writeInt(symbol(symbolOf(inst)));
+			}
+		}
+	}
+
+	private static Symbol symbolOf(MozInst inst) {
+		if (inst instanceof Moz86.TEnd) {
+			return ((Moz86.TEnd) inst).tag;
+		}
+		if (inst instanceof Moz86.TLeafEnd) {
+			return ((Moz86.TLeafEnd) inst).tag;
+		}
+		if (inst instanceof Moz86.TTag) {
+			return ((Moz86.TTag) inst).tag;
+		}
+		if (inst instanceof Moz86.TLink) {
+			return ((Moz86.TLink) inst).label;
+		}
+		if (inst instanceof Moz86.TFold) {
+			return ((Moz86.TFold) inst).label;
+		}
+		if (inst instanceof Moz86.TEmit) {
+			return ((Moz86.TEmit) inst).label;
+		}
+		if (inst instanceof Moz86.TLookup) {
+			return ((Moz86.TLookup) inst).label;
+		}
+		if (inst instanceof Moz86.AbstractTableInstruction) {
+			return ((Moz86.AbstractTableInstruction) inst).table;
+		}
+		return null;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	/* Loader */
+
+	public static boolean isImage(String path) {
+		return path != null && path.endsWith("." + Extension);
+	}
+
+	/**
+	 * Loads a parser from an image. The parser runs with the strategy it was
+	 * compiled with, except that JIT is turned off, since the bytecode
+	 * compiler works on the grammar, which an image does not carry.
+	 */
+
+	public static Parser load(String path) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+			if (in.readInt() != Magic) {
+				throw new IOException("not a parser image: " + path);
+			}
+			int version = in.readInt();
+			if (version != Version) {
+				throw new IOException("unsupported parser image version " + version + ": " + path);
+			}
+			ParserStrategy strategy = new ParserStrategy();
+			int options = in.readInt();
+			for (int i = 0; i < options; i++) {
+				strategy.setOption(in.readUTF());
+			}
+			if (strategy.JIT) {
+				Verbose.println("JIT is not available for a parser image: %s", path);
+				strategy.JIT = false;
+			}
+			boolean recognitionMode = in.readBoolean();
+			return new Parser(new Reader(in, strategy).read(recognitionMode), strategy);
+		}
+	}
+
+	private static final class Reader {
+		final DataInputStream in;
+		final ParserStrategy strategy;
+		MemoPoint[] memo;
+		Symbol[] symbols;
+		boolean[][] sets;
+		MozInst[] code;
+
+		Reader(DataInputStream in, ParserStrategy strategy) {
+			this.in = in;
+			this.strategy = strategy;
+		}
+
+		MozCode read(boolean recognitionMode) throws IOException {
+			Map<String, MemoPoint> memoPointMap = new HashMap<>();
+			memo = new MemoPoint[in.readInt()];
+			for (int i = 0; i < memo.length; i++) {
+				String label = in.readUTF();
+				Typestate ts = Typestate.valueOf(in.readUTF());
+				memo[i] = new MemoPoint(i, label, null, ts, in.readBoolean());
+				if (strategy.AdaptiveMemo) {
+					memo[i].setAdaptive(strategy.MemoThreshold, strategy.MemoRetry);
+				}
+				memoPointMap.put(label, memo[i]);
+			}
+			symbols = new Symbol[in.readInt()];
+			for (int i = 0; i < symbols.length; i++) {
+				symbols[i] = Symbol.unique(in.readUTF());
+			}
+			sets = new boolean[in.readInt()][];
+			for (int i = 0; i < sets.length; i++) {
+				boolean[] set = new boolean[in.readShort()];
+				for (int c = 0; c < set.length; c += 8) {
+					int bits = in.readByte();
+					for (int j = 0; j < 8 && c + j < set.length; j++) {
+						set[c + j] = (bits & (1 << j)) != 0;
+					}
+				}
+				sets[i] = set;
+			}
+			/* instructions are created first and linked afterwards, since
+			 * jumps may point forward or form loops */
+			code = new MozInst[in.readInt()];
+			int[] next = new int[code.length];
+			int[][] jumps = new int[code.length][];
+			for (int i = 0; i < code.length; i++) {
+				int kind = in.readByte();
+				if (kind < 0 || kind >= Kinds.size()) {
+					throw new IOException("broken parser image: kind=" + kind);
+				}
+				boolean joinPoint = in.readBoolean();
+				next[i] = in.readInt();
+				code[i] = readInst(Kinds.get(kind), jumps, i);
+				code[i].joinPoint = joinPoint;
+			}
+			for (int i = 0; i < code.length; i++) {
+				link(code[i], inst(next[i]), jumps[i]);
+			}
+			return new MozCode(code, recognitionMode, memoPointMap);
+		}
+
+		private MozInst inst(int id) {
+			return id == -1 ? null : code[id];
+		}
+
+		private Symbol symbol(int id) {
+			return id == -1 ? null : symbols[id];
+		}
+
+		private String readString() throws IOException {
+			return in.readBoolean() ? in.readUTF() : null;
+		}
+
+		private byte[] readBytes() throws IOException {
+			byte[] b = new byte[in.readInt()];
+			in.readFully(b);
+			return b;
+		}
+
+		private MozInst readInst(Class<?> c, int[][] jumps, int i) throws IOException {
+			if (c == Moz86.Nop.class) {
+				return new Moz86.Nop(readString(), null);
+			}
+			if (c == Moz86.Exit.class) {
+				return new Moz86.Exit(in.readBoolean());
+			}
+			if (c == Moz86.Trap.class) {
+				return new Moz86.Trap(in.readInt(), null);
+			}
+			if (c == Moz86.Move.class) {
+				return new Moz86.Move(in.readInt(), null);
+			}
+			if (c == Moz86.Call.class) {
+				String name = readString();
+				jumps[i] = new int[] { in.readInt() };
+				return new Moz86.Call(name, null, null);
+			}
+			if (Moz86.AbstByte.class.isAssignableFrom(c)) {
+				int byteChar = in.readInt();
+				if (c == Moz86.Byte.class) {
+					return new Moz86.Byte(byteChar, null);
+				}
+				if (c == Moz86.BinaryByte.class) {
+					return new Moz86.BinaryByte(null);
+				}
+				if (c == Moz86.NByte.class) {
+					return new Moz86.NByte(byteChar, null);
+				}
+				if (c == Moz86.BinaryNByte.class) {
+					return new Moz86.BinaryNByte(byteChar, null);
+				}
+				if (c == Moz86.OByte.class) {
+					return new Moz86.OByte(byteChar, null);
+				}
+				if (c == Moz86.BinaryOByte.class) {
+					return new Moz86.BinaryOByte(null);
+				}
+				if (c == Moz86.RByte.class) {
+					return new Moz86.RByte(byteChar, null);
+				}
+				if (c == Moz86.AByte.class) {
+					return new Moz86.AByte(byteChar, null);
+				}
+				return new Moz86.BinaryRByte(null);
+			}
+			if (Moz86.AbstSet.class.isAssignableFrom(c)) {
+				boolean[] set = sets[in.readInt()];
+				if (c == Moz86.Set.class) {
+					return new Moz86.Set(set, null);
+				}
+				if (c == Moz86.BinarySet.class) {
+					return new Moz86.BinarySet(set, null);
+				}
+				if (c == Moz86.NSet.class) {
+					return new Moz86.NSet(set, null);
+				}
+				if (c == Moz86.BinaryNSet.class) {
+					return new Moz86.BinaryNSet(set, null);
+				}
+				if (c == Moz86.OSet.class) {
+					return new Moz86.OSet(set, null);
+				}
+				if (c == Moz86.BinaryOSet.class) {
+					return new Moz86.BinaryOSet(set, null);
+				}
+				if (c == Moz86.RSet.class) {
+					return new Moz86.RSet(set, null);
+				}
+				if (c == Moz86.ASet.class) {
+					return new Moz86.ASet(set, null);
+				}
+				return new Moz86.BinaryRSet(set, null);
+			}
+			if (Moz86.AbstStr.class.isAssignableFrom(c)) {
+				byte[] utf8 = readBytes();
+				if (c == Moz86.Str.class) {
+					return new Moz86.Str(utf8, null);
+				}
+				if (c == Moz86.NStr.class) {
+					return new Moz86.NStr(utf8, null);
+				}
+				if (c == Moz86.OStr.class) {
+					return new Moz86.OStr(utf8, null);
+				}
+				if (c == Moz86.AStr.class) {
+					return new Moz86.AStr(utf8, null);
+				}
+				return new Moz86.RStr(utf8, null);
+			}
+			if (Moz86.Dispatch.class.isAssignableFrom(c)) {
+				int[] jumpTable = new int[in.readShort()];
+				for (int ch = 0; ch < jumpTable.length;) {
+					int run = in.readShort();
+					Arrays.fill(jumpTable, ch, ch + run, in.readInt());
+					ch += run;
+				}
+				jumps[i] = jumpTable;
+				return c == Moz86.Dispatch.class ? new Moz86.Dispatch(null, null) : new Moz86.DDispatch(null, null);
+			}
+			if (c == Moz86.DFA.class) {
+				jumps[i] = new int[] { in.readInt() };
+				int[] table = new int[in.readInt()];
+				for (int n = 0; n < table.length;) {
+					int run = in.readShort();
+					Arrays.fill(table, n, n + run, in.readInt());
+					n += run;
+				}
+				return new Moz86.DFA(null, table, null, null);
+			}
+			if (c == Moz86.TBegin.class) {
+				return new Moz86.TBegin(in.readInt(), null);
+			}
+			if (c == Moz86.TLeaf.class) {
+				return new Moz86.TLeaf(in.readInt(), null);
+			}
+			if (c == Moz86.TLeafEnd.class) {
+				int beginShift = in.readInt();
+				Symbol tag = symbol(in.readInt());
+				String value = readString();
+				return new Moz86.TLeafEnd(beginShift, tag, value, in.readInt(), null);
+			}
+			if (c == Moz86.TEnd.class) {
+				Symbol tag = symbol(in.readInt());
+				String value = readString();
+				return new Moz86.TEnd(tag, value, in.readInt(), null);
+			}
+			if (c == Moz86.TReplace.class) {
+				return new Moz86.TReplace(readString(), null);
+			}
+			if (c == Moz86.TFold.class) {
+				int shift = in.readInt();
+				return new Moz86.TFold(symbol(in.readInt()), shift, null);
+			}
+			if (c == Moz86.SIsDef.class) {
+				Symbol table = symbol(in.readInt());
+				return new Moz86.SIsDef(table, readBytes(), null);
+			}
+			if (c == Moz86.NScan.class) {
+				long mask = in.readLong();
+				return new Moz86.NScan(mask, in.readInt(), null);
+			}
+			if (Moz86.AbstMemo.class.isAssignableFrom(c)) {
+				MemoPoint m = memo[in.readInt()];
+				jumps[i] = new int[] { in.readInt() };
+				Symbol label = symbol(in.readInt());
+				if (c == Moz86.Lookup.class) {
+					return new Moz86.Lookup(null, m, null, null);
+				}
+				if (c == Moz86.Memo.class) {
+					return new Moz86.Memo(null, m, null);
+				}
+				if (c == Moz86.MemoFail.class) {
+					return new Moz86.MemoFail(null, m);
+				}
+				if (c == Moz86.TLookup.class) {
+					return new Moz86.TLookup(label, m, null, null);
+				}
+				if (c == Moz86.MemoCall.class) {
+					String name = readString();
+					return new Moz86.MemoCall(name, m, in.readBoolean(), null, null);
+				}
+				return new Moz86.TMemo(null, m, null);
+			}
+			if (c == Moz86.Alt.class || c == Moz86.Jump.class || c == Moz86.NDec.class) {
+				jumps[i] = new int[] { in.readInt() };
+			}
+			Symbol s = symbol(in.readInt());
+			return newInst(c, s);
+		}
+
+		/* instructions with no operands except a jump or a symbol */
+
+		private MozInst newInst(Class<?> c, Symbol s) throws IOException {
+			if (c == Moz86.Pos.class) {
+				return new Moz86.Pos(null);
+			}
+			if (c == Moz86.Back.class) {
+				return new Moz86.Back(null);
+			}
+			if (c == Moz86.Jump.class) {
+				return new Moz86.Jump(null);
+			}
+			if (c == Moz86.Ret.class) {
+				return new Moz86.Ret();
+			}
+			if (c == Moz86.Alt.class) {
+				return new Moz86.Alt(null, null);
+			}
+			if (c == Moz86.Succ.class) {
+				return new Moz86.Succ(null);
+			}
+			if (c == Moz86.Fail.class) {
+				return new Moz86.Fail();
+			}
+			if (c == Moz86.Guard.class) {
+				return new Moz86.Guard();
+			}
+			if (c == Moz86.Step.class) {
+				return new Moz86.Step();
+			}
+			if (c == Moz86.Any.class) {
+				return new Moz86.Any(null);
+			}
+			if (c == Moz86.NAny.class) {
+				return new Moz86.NAny(null, null);
+			}
+			if (c == Moz86.TPush.class) {
+				return new Moz86.TPush(null, null);
+			}
+			if (c == Moz86.TPop.class) {
+				return new Moz86.TPop(null, null);
+			}
+			if (c == Moz86.TTag.class) {
+				return new Moz86.TTag(s, null);
+			}
+			if (c == Moz86.TLink.class) {
+				return new Moz86.TLink(s, null);
+			}
+			if (c == Moz86.TEmit.class) {
+				return new Moz86.TEmit(s, null);
+			}
+			if (c == Moz86.TStart.class) {
+				return new Moz86.TStart(null, null);
+			}
+			if (c == Moz86.SOpen.class) {
+				return new Moz86.SOpen(null, null);
+			}
+			if (c == Moz86.SClose.class) {
+				return new Moz86.SClose(null, null);
+			}
+			if (c == Moz86.SMask.class) {
+				return new Moz86.SMask(s, null);
+			}
+			if (c == Moz86.SDef.class) {
+				return new Moz86.SDef(s, null);
+			}
+			if (c == Moz86.SExists.class) {
+				return new Moz86.SExists(s, null);
+			}
+			if (c == Moz86.SMatch.class) {
+				return new Moz86.SMatch(s, null);
+			}
+			if (c == Moz86.SIs.class) {
+				return new Moz86.SIs(s, null);
+			}
+			if (c == Moz86.SIsa.class) {
+				return new Moz86.SIsa(s, null);
+			}
+			if (c == Moz86.NDec.class) {
+				return new Moz86.NDec(null, null);
+			}
+			throw new IOException("broken parser image: " + c.getSimpleName());
+		}
+
+		private void link(MozInst inst, MozInst next, int[] jumps) {
+			inst.next = next;
+			if (inst instanceof Moz86.Dispatch) {
+				MozInst[] jumpTable = ((Moz86.Dispatch) inst).jumpTable;
+				for (int ch = 0; ch < jumps.length; ch++) {
+					jumpTable[ch] = inst(jumps[ch]);
+				}
+			} else if (jumps != null) {
+				Moz86.setJump(inst, inst(jumps[0]));
+			}
+		}
+	}
+
+}
@@ -3,9 +3,12 @@ package nez.parser.vm;
 import nez.ast.Source;
 import nez.ast.Tree;
 import nez.parser.MemoEntry;
+import nez.parser.MemoStats;
 import nez.parser.MemoTable;
 import nez.parser.ParserProfiler;
 import nez.parser.ParserRuntime;
+import nez.parser.io.ByteScanner;
+import nez.parser.io.CommonSource;
 import nez.util.ConsoleUtils;
 import nez.util.Verbose;
 
@@ -27,6 +30,12 @@ public final class MozMachine extends ParserRuntime {
 		return s.match(pos, utf8);
 	}
 
+	public final void skip(ByteScanner scanner) {
+		if (s instanceof CommonSource) {
+			this.pos = ((CommonSource) s).skip(pos, scanner);
+		}
+	}
+
 	public final byte[] subbyte(long start, long end) {
 		return s.subByte(start, end);
 	}
@@ -81,6 +90,8 @@ public final class MozMachine extends ParserRuntime {
 
 	private final SymbolTable symbolTable = new SymbolTable();
 
+	MemoStats memoStats; // see MozCode.exec()
+
 	public final SymbolTable getSymbolTable() {
 		return symbolTable;
 	}
@@ -111,8 +122,8 @@ public final class MozMachine extends ParserRuntime {
 		stacks[0].value = 0;
 		stacks[1].ref = new Moz86.Exit(false);
 		stacks[1].value = getPosition();
-		stacks[2].ref = astMachine.saveTransactionPoint();
-		stacks[2].value = symbolTable.saveSymbolPoint();
+		stacks[2].value = astMachine.saveTransactionPoint();
+		stacks[2].ref = symbolTable.saveSymbolPoint();
 		stacks[3].ref = new Moz86.Exit(true);
 		stacks[3].value = 0;
 		this.catchStackTop = 0;
@@ -155,8 +166,8 @@ public final class MozMachine extends ParserRuntime {
 		catchStackTop = usedStackTop - 2;
 		s1.ref = failjump;
 		s1.value = pos;
-		s2.ref = astMachine.saveTransactionPoint();
-		s2.value = symbolTable.saveSymbolPoint();
+		s2.value = astMachine.saveTransactionPoint();
+		s2.ref = symbolTable.saveSymbolPoint();
 	}
 
 	public final long popAlt() {
@@ -180,8 +191,8 @@ public final class MozMachine extends ParserRuntime {
 			}
 			rollback(s1.value);
 		}
-		astMachine.rollTransactionPoint(s2.ref);
-		symbolTable.backSymbolPoint((int) s2.value);
+		astMachine.rollTransactionPoint((int) s2.value);
+		symbolTable.backSymbolPoint((Integer) s2.ref);
 		assert (s1.ref != null);
 		return (MozInst) s1.ref;
 	}
@@ -193,16 +204,18 @@ public final class MozMachine extends ParserRuntime {
 		}
 		s1.value = pos;
 		MozStackData s2 = stacks[catchStackTop + 2];
-		s2.ref = astMachine.saveTransactionPoint();
-		s2.value = symbolTable.saveSymbolPoint();
+		s2.value = astMachine.saveTransactionPoint();
+		s2.ref = symbolTable.saveSymbolPoint();
 		return next;
 	}
 
 	// Memoization
 	MemoTable memoTable;
 
-	public final void setMemo(long pos, int memoId, boolean failed, Object result, int consumed, boolean state) {
-		memoTable.setMemo(pos, memoId, failed, result, consumed, state ? symbolTable.getState() : 0);
+	public final void setMemo(long pos, int memoId, boolean failed, Object result, long consumed, boolean state) {
+		if (consumed <= Integer.MAX_VALUE) { // longer results are not memoized
+			memoTable.setMemo(pos, memoId, failed, result, (int) consumed, state ? symbolTable.getState() : 0);
+		}
 	}
 
 	public final MemoEntry getMemo(int memoId, boolean state) {
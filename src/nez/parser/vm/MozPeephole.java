@@ -0,0 +1,282 @@
+package nez.parser.vm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nez.util.Verbose;
+
+/**
+ * MozPeephole fuses common instruction sequences of a MozCode into
+ * superinstructions, so that the interpreter dispatches fewer instructions.
+ *
+ * <pre>
+ * Call to a memoized production          =&gt; MemoCall
+ * Call to a production of one matcher    =&gt; the matcher
+ * Pos Byte|Set|Str Back                  =&gt; AByte|ASet|AStr
+ * Alt Byte|Set|Str|Any Succ Fail         =&gt; NByte|NSet|NStr|NAny
+ * TTag|TReplace TEnd                     =&gt; TEnd
+ * TBegin (no tree operations) TEnd       =&gt; TLeaf ... TLeafEnd
+ * Dispatch to Fail                       =&gt; a null entry
+ * </pre>
+ *
+ * A fused instruction takes the place of the first instruction of its
+ * sequence. The rest of the sequence is kept as long as other instructions
+ * jump into it.
+ */
+
+final class MozPeephole {
+	private static final int LeafLimit = 64;
+
+	private final MozCode code;
+	private final Map<MozInst, MozInst> fused = new IdentityHashMap<>();
+	private Map<MozInst, List<MozInst>> preds;
+
+	MozPeephole(MozCode code) {
+		this.code = code;
+	}
+
+	void optimize() {
+		int size = code.getInstructionSize();
+		for (MozInst inst : code.codeList()) {
+			fuseTree(inst);
+		}
+		rewrite();
+		preds = predecessors();
+		for (MozInst inst : code.codeList()) {
+			if (!fused.containsKey(inst)) {
+				fuse(inst);
+			}
+		}
+		rewrite();
+		Verbose.println("peephole: %d => %d instructions", size, code.getInstructionSize());
+	}
+
+	/* TTag|TReplace TEnd */
+
+	private void fuseTree(MozInst inst) {
+		if (inst instanceof Moz86.TTag && inst.next instanceof Moz86.TEnd) {
+			Moz86.TEnd end = (Moz86.TEnd) inst.next;
+			Moz86.TTag tag = (Moz86.TTag) inst;
+			fused.put(inst, new Moz86.TEnd(end.tag != null ? end.tag : tag.tag, end.value, end.shift, end.next));
+		}
+		if (inst instanceof Moz86.TReplace && inst.next instanceof Moz86.TEnd) {
+			Moz86.TEnd end = (Moz86.TEnd) inst.next;
+			Moz86.TReplace replace = (Moz86.TReplace) inst;
+			fused.put(inst, new Moz86.TEnd(end.tag, end.value != null ? end.value : replace.value, end.shift, end.next));
+		}
+	}
+
+	private void fuse(MozInst inst) {
+		if (inst instanceof Moz86.Call) {
+			fuseCall((Moz86.Call) inst);
+		} else if (inst instanceof Moz86.Pos) {
+			fuseAnd(inst);
+		} else if (inst instanceof Moz86.Alt) {
+			fuseNot((Moz86.Alt) inst);
+		} else if (inst instanceof Moz86.TBegin) {
+			fuseLeaf((Moz86.TBegin) inst);
+		}
+	}
+
+	private void fuseCall(Moz86.Call call) {
+		MozInst callee = call.next;
+		if (callee instanceof Moz86.Lookup || callee instanceof Moz86.TLookup) {
+			Moz86.AbstMemo lookup = (Moz86.AbstMemo) callee;
+			boolean tree = callee instanceof Moz86.TLookup;
+			if (lookup.jump instanceof Moz86.Ret && (!tree || ((Moz86.TLookup) callee).label == null)) {
+				fused.put(call, new Moz86.MemoCall(call.name, lookup.memoPoint, tree, lookup.next, call.jump));
+			}
+			return;
+		}
+		if (callee != null && callee.next instanceof Moz86.Ret) {
+			MozInst inlined = copyMatcher(callee, call.jump);
+			if (inlined != null) {
+				fused.put(call, inlined);
+			}
+		}
+	}
+
+	private static MozInst copyMatcher(MozInst inst, MozInst next) {
+		Class<?> c = inst.getClass();
+		if (c == Moz86.Byte.class) {
+			return new Moz86.Byte(((Moz86.Byte) inst).byteChar, next);
+		}
+		if (c == Moz86.Set.class) {
+			return new Moz86.Set(((Moz86.Set) inst).byteSet, next);
+		}
+		if (c == Moz86.Str.class) {
+			return new Moz86.Str(((Moz86.Str) inst).utf8, next);
+		}
+		if (c == Moz86.Any.class) {
+			return new Moz86.Any(next);
+		}
+		if (c == Moz86.RByte.class) {
+			return new Moz86.RByte(((Moz86.RByte) inst).byteChar, next);
+		}
+		if (c == Moz86.RSet.class) {
+			return new Moz86.RSet(((Moz86.RSet) inst).byteSet, next);
+		}
+		if (c == Moz86.OByte.class) {
+			return new Moz86.OByte(((Moz86.OByte) inst).byteChar, next);
+		}
+		if (c == Moz86.OSet.class) {
+			return new Moz86.OSet(((Moz86.OSet) inst).byteSet, next);
+		}
+		if (c == Moz86.NByte.class) {
+			return new Moz86.NByte(((Moz86.NByte) inst).byteChar, next);
+		}
+		if (c == Moz86.NSet.class) {
+			return new Moz86.NSet(((Moz86.NSet) inst).byteSet, next);
+		}
+		return null;
+	}
+
+	/* &'x' is Pos Byte Back; a zero byte is left alone since it is also EOF */
+
+	private void fuseAnd(MozInst pos) {
+		MozInst m = pos.next;
+		if (m == null || !(m.next instanceof Moz86.Back)) {
+			return;
+		}
+		MozInst next = m.next.next;
+		if (m.getClass() == Moz86.Byte.class && ((Moz86.Byte) m).byteChar != 0) {
+			fused.put(pos, new Moz86.AByte(((Moz86.Byte) m).byteChar, next));
+		} else if (m.getClass() == Moz86.Set.class && !((Moz86.Set) m).byteSet[0]) {
+			fused.put(pos, new Moz86.ASet(((Moz86.Set) m).byteSet, next));
+		} else if (m.getClass() == Moz86.Str.class) {
+			fused.put(pos, new Moz86.AStr(((Moz86.Str) m).utf8, next));
+		}
+	}
+
+	/* !'x' is Alt Byte Succ Fail */
+
+	private void fuseNot(Moz86.Alt alt) {
+		MozInst m = alt.next;
+		if (m == null || !(m.next instanceof Moz86.Succ) || !(m.next.next instanceof Moz86.Fail)) {
+			return;
+		}
+		MozInst next = alt.jump;
+		if (m.getClass() == Moz86.Byte.class && ((Moz86.Byte) m).byteChar != 0) {
+			fused.put(alt, new Moz86.NByte(((Moz86.Byte) m).byteChar, next));
+		} else if (m.getClass() == Moz86.Set.class && !((Moz86.Set) m).byteSet[0]) {
+			fused.put(alt, new Moz86.NSet(((Moz86.Set) m).byteSet, next));
+		} else if (m.getClass() == Moz86.Str.class) {
+			fused.put(alt, new Moz86.NStr(((Moz86.Str) m).utf8, next));
+		} else if (m.getClass() == Moz86.Any.class) {
+			fused.put(alt, new Moz86.NAny(null, next));
+		}
+	}
+
+	/*
+	 * A node is a leaf if every path from TBegin reaches the same TEnd through
+	 * matching and backtracking only, and no other path enters in between.
+	 */
+
+	private void fuseLeaf(Moz86.TBegin begin) {
+		Set<MozInst> region = Collections.newSetFromMap(new IdentityHashMap<>());
+		ArrayList<MozInst> stack = new ArrayList<>();
+		MozInst end = null;
+		stack.add(begin.next);
+		while (!stack.isEmpty()) {
+			MozInst inst = stack.remove(stack.size() - 1);
+			if (inst == null || inst instanceof Moz86.Fail || region.contains(inst)) {
+				continue;
+			}
+			if (inst instanceof Moz86.TEnd) {
+				if (end != null && end != inst) {
+					return;
+				}
+				end = inst;
+				continue;
+			}
+			if (!isLexical(inst) || region.size() == LeafLimit) {
+				return;
+			}
+			region.add(inst);
+			stack.add(inst.next);
+			stack.add(Moz86.jump(inst));
+			if (inst instanceof Moz86.Dispatch) {
+				Collections.addAll(stack, ((Moz86.Dispatch) inst).jumpTable);
+			}
+		}
+		if (end == null || !enteredFrom(end, begin, region)) {
+			return;
+		}
+		for (MozInst inst : region) {
+			if (!enteredFrom(inst, begin, region)) {
+				return;
+			}
+		}
+		Moz86.TEnd e = (Moz86.TEnd) end;
+		fused.put(begin, new Moz86.TLeaf(begin.shift, begin.next));
+		fused.put(end, new Moz86.TLeafEnd(begin.shift, e.tag, e.value, e.shift, e.next));
+	}
+
+	private static boolean isLexical(MozInst inst) {
+		return inst instanceof Moz86.AbstByte || inst instanceof Moz86.AbstSet || inst instanceof Moz86.AbstStr || inst instanceof Moz86.AbstAny //
+				|| inst instanceof Moz86.Alt || inst instanceof Moz86.Succ || inst instanceof Moz86.Step || inst instanceof Moz86.Jump //
+				|| inst instanceof Moz86.Pos || inst instanceof Moz86.Back || inst instanceof Moz86.Move || inst instanceof Moz86.Dispatch;
+	}
+
+	private boolean enteredFrom(MozInst inst, MozInst begin, Set<MozInst> region) {
+		for (MozInst p : preds.getOrDefault(inst, Collections.emptyList())) {
+			if (p != begin && !region.contains(p)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Map<MozInst, List<MozInst>> predecessors() {
+		Map<MozInst, List<MozInst>> map = new IdentityHashMap<>();
+		for (MozInst inst : code.codeList()) {
+			addPred(map, inst.next, inst);
+			addPred(map, Moz86.jump(inst), inst);
+			if (inst instanceof Moz86.Dispatch) {
+				for (MozInst j : ((Moz86.Dispatch) inst).jumpTable) {
+					addPred(map, j, inst);
+				}
+			}
+		}
+		return map;
+	}
+
+	private static void addPred(Map<MozInst, List<MozInst>> map, MozInst inst, MozInst pred) {
+		if (inst != null) {
+			map.computeIfAbsent(inst, k -> new ArrayList<>()).add(pred);
+		}
+	}
+
+	/* redirects every edge to the fused instructions and lays out the code */
+
+	private void rewrite() {
+		List<MozInst> insts = new ArrayList<>();
+		for (MozInst inst : code.codeList()) {
+			insts.add(inst);
+		}
+		insts.addAll(fused.values());
+		for (MozInst inst : insts) {
+			inst.next = fused(inst.next);
+			if (inst instanceof Moz86.Dispatch) {
+				MozInst[] jumpTable = ((Moz86.Dispatch) inst).jumpTable;
+				for (int ch = 0; ch < jumpTable.length; ch++) {
+					MozInst j = fused(jumpTable[ch]);
+					jumpTable[ch] = j instanceof Moz86.Fail ? null : j;
+				}
+			} else {
+				Moz86.setJump(inst, fused(Moz86.jump(inst)));
+			}
+		}
+		code.relayout();
+	}
+
+	private MozInst fused(MozInst inst) {
+		MozInst f = inst == null ? null : fused.get(inst);
+		return f != null ? f : inst;
+	}
+
+}
@@ -8,6 +8,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 import nez.ast.Symbol;
+import nez.parser.vm.Moz86.AByte;
+import nez.parser.vm.Moz86.ASet;
+import nez.parser.vm.Moz86.AStr;
 import nez.parser.vm.Moz86.Alt;
 import nez.parser.vm.Moz86.Any;
 import nez.parser.vm.Moz86.Back;
@@ -15,6 +18,7 @@ import nez.parser.vm.Moz86.Byte;
 import nez.parser.vm.Moz86.Call;
 import nez.parser.vm.Moz86.Cov;
 import nez.parser.vm.Moz86.DDispatch;
+import nez.parser.vm.Moz86.DFA;
 import nez.parser.vm.Moz86.Dispatch;
 import nez.parser.vm.Moz86.Exit;
 import nez.parser.vm.Moz86.Fail;
@@ -22,6 +26,7 @@ import nez.parser.vm.Moz86.Guard;
 import nez.parser.vm.Moz86.Jump;
 import nez.parser.vm.Moz86.Lookup;
 import nez.parser.vm.Moz86.Memo;
+import nez.parser.vm.Moz86.MemoCall;
 import nez.parser.vm.Moz86.MemoFail;
 import nez.parser.vm.Moz86.Move;
 import nez.parser.vm.Moz86.NAny;
@@ -56,6 +61,8 @@ import nez.parser.vm.Moz86.TBegin;
 import nez.parser.vm.Moz86.TEmit;
 import nez.parser.vm.Moz86.TEnd;
 import nez.parser.vm.Moz86.TFold;
+import nez.parser.vm.Moz86.TLeaf;
+import nez.parser.vm.Moz86.TLeafEnd;
 import nez.parser.vm.Moz86.TLink;
 import nez.parser.vm.Moz86.TLookup;
 import nez.parser.vm.Moz86.TMemo;
@@ -671,4 +678,34 @@ public class MozWriter extends InstructionVisitor {
 		write_u32(inst.uid);
 	}
 
+	/* superinstructions are not compiled for the C runtime */
+
+	@Override
+	public void visitAByte(AByte inst) {
+	}
+
+	@Override
+	public void visitASet(ASet inst) {
+	}
+
+	@Override
+	public void visitAStr(AStr inst) {
+	}
+
+	@Override
+	public void visitTLeaf(TLeaf inst) {
+	}
+
+	@Override
+	public void visitTLeafEnd(TLeafEnd inst) {
+	}
+
+	@Override
+	public void visitMemoCall(MemoCall inst) {
+	}
+
+	@Override
+	public void visitDFA(DFA inst) {
+	}
+
 }
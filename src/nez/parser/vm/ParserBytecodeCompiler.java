@@ -0,0 +1,1028 @@
+package nez.parser.vm;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import nez.ast.Symbol;
+import nez.lang.Expression;
+import nez.lang.Expressions;
+import nez.lang.FunctionName;
+import nez.lang.Grammar;
+import nez.lang.Nez;
+import nez.lang.NonTerminal;
+import nez.lang.Production;
+import nez.lang.Typestate;
+import nez.parser.MemoPoint;
+import nez.parser.ParserCode;
+import nez.parser.ParserStrategy;
+import nez.parser.io.ByteScanner;
+import nez.util.StringUtils;
+import nez.util.UList;
+import nez.util.Verbose;
+
+/**
+ * ParserBytecodeCompiler translates a compiled grammar into a JVM class with
+ * one static method per production. Choices and repetitions become branches
+ * and loops on a failure label, and every context operation is the same one
+ * the matching Moz86 instruction performs in exec(), so trees, memo entries
+ * and error positions are identical to the interpreter.
+ */
+
+public class ParserBytecodeCompiler implements Opcodes {
+
+	public static ParserBytecodeCompiler newCompiler(ParserStrategy strategy) {
+		return new ParserBytecodeCompiler(strategy);
+	}
+
+	static final String Context = "nez/parser/vm/ParserMachineContext";
+	static final String ContextDesc = "L" + Context + ";";
+	static final String ProductionDesc = "(" + ContextDesc + ")Z";
+	static final String TreeDesc = "Lnez/ast/Tree;";
+	static final String SymbolDesc = "Lnez/ast/Symbol;";
+	static final String MemoPointClass = "nez/parser/MemoPoint";
+	static final String ScannerDesc = "Lnez/parser/io/ByteScanner;";
+
+	private static int unique = 0;
+	static int OutlineWeight = 24;
+	static int AlternativeWeight = 4;
+
+	protected ParserStrategy strategy;
+
+	ParserBytecodeCompiler(ParserStrategy strategy) {
+		this.strategy = strategy;
+	}
+
+	/**
+	 * Returns a compiled parser, or null if no class can be generated (e.g. a
+	 * production exceeds the method size limit); the caller keeps interpreting
+	 * in that case.
+	 */
+
+	public CompiledParser compile(ParserCode<?> code) {
+		if (strategy.Moz || strategy.Coverage) {
+			return null;
+		}
+		long t = System.nanoTime();
+		try {
+			CompiledParser compiled = new ClassBuilder(code).build();
+			long t2 = System.nanoTime();
+			Verbose.printElapsedTime("BytecodeCompilingTime", t, t2);
+			return compiled;
+		} catch (RuntimeException | ReflectiveOperationException e) {
+			Verbose.traceException(e);
+		}
+		return null;
+	}
+
+	static final class Loader extends ClassLoader {
+		Loader() {
+			super(ParserBytecodeCompiler.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+
+	private static synchronized String newClassName() {
+		return "nez/parser/vm/CompiledParser$" + (unique++);
+	}
+
+	class ClassBuilder extends Expression.Visitor {
+		final ParserCode<?> code;
+		final Grammar grammar;
+		final String className;
+		final ClassWriter cw;
+		final Map<String, String> funcMap = new HashMap<>();
+		final UList<Object> constants = new UList<>(new Object[32]);
+		final Map<Object, String> constantMap = new IdentityHashMap<>();
+		final Map<Expression, String> outlineMap = new IdentityHashMap<>();
+		final Map<Expression, Integer> weightMap = new IdentityHashMap<>();
+
+		MethodVisitor mv;
+		int locals;
+
+		ClassBuilder(ParserCode<?> code) {
+			this.code = code;
+			this.grammar = code.getCompiledGrammar();
+			this.className = newClassName();
+			this.cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		}
+
+		CompiledParser build() throws ReflectiveOperationException {
+			cw.visit(V1_6, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, "java/lang/Object", new String[] { "nez/parser/vm/CompiledParser" });
+			Production start = null;
+			for (Production p : grammar) {
+				if (start == null) {
+					start = p;
+				}
+				funcMap.put(p.getUniqueName(), "p" + funcMap.size());
+			}
+			for (Production p : grammar) {
+				visitProduction(p);
+			}
+			generateInit();
+			generateParse(funcMap.get(start.getUniqueName()));
+			for (int i = 0; i < constants.size(); i++) {
+				cw.visitField(ACC_PUBLIC | ACC_STATIC, "c" + i, desc(constants.ArrayValues[i]), null, null).visitEnd();
+			}
+			cw.visitEnd();
+			byte[] b = cw.toByteArray();
+			Class<?> c = new Loader().define(className.replace('/', '.'), b);
+			for (int i = 0; i < constants.size(); i++) {
+				c.getField("c" + i).set(null, constants.ArrayValues[i]);
+			}
+			return (CompiledParser) c.getConstructor().newInstance();
+		}
+
+		private void generateInit() {
+			MethodVisitor m = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+			m.visitCode();
+			m.visitVarInsn(ALOAD, 0);
+			m.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+			m.visitInsn(RETURN);
+			m.visitMaxs(0, 0);
+			m.visitEnd();
+		}
+
+		private void generateParse(String start) {
+			MethodVisitor m = cw.visitMethod(ACC_PUBLIC, "parse", ProductionDesc, null, null);
+			m.visitCode();
+			m.visitVarInsn(ALOAD, 1);
+			m.visitMethodInsn(INVOKESTATIC, className, start, ProductionDesc);
+			m.visitInsn(IRETURN);
+			m.visitMaxs(0, 0);
+			m.visitEnd();
+		}
+
+		/* constants */
+
+		private String desc(Object value) {
+			if (value instanceof Symbol) {
+				return SymbolDesc;
+			}
+			if (value instanceof boolean[]) {
+				return "[Z";
+			}
+			if (value instanceof byte[]) {
+				return "[B";
+			}
+			if (value instanceof ByteScanner) {
+				return ScannerDesc;
+			}
+			return "L" + MemoPointClass + ";";
+		}
+
+		private void constant(Object value) {
+			if (value == null) {
+				mv.visitInsn(ACONST_NULL);
+				return;
+			}
+			String name = constantMap.get(value);
+			if (name == null) {
+				name = "c" + constants.size();
+				constants.add(value);
+				constantMap.put(value, name);
+			}
+			mv.visitFieldInsn(GETSTATIC, className, name, desc(value));
+		}
+
+		/* context */
+
+		private void ctx() {
+			mv.visitVarInsn(ALOAD, 0);
+		}
+
+		private void call(String name, String desc) {
+			mv.visitMethodInsn(INVOKEVIRTUAL, Context, name, desc);
+		}
+
+		private void push(int n) {
+			if (-1 <= n && n <= 5) {
+				mv.visitInsn(ICONST_0 + n);
+			} else if (Byte.MIN_VALUE <= n && n <= Byte.MAX_VALUE) {
+				mv.visitIntInsn(BIPUSH, n);
+			} else if (Short.MIN_VALUE <= n && n <= Short.MAX_VALUE) {
+				mv.visitIntInsn(SIPUSH, n);
+			} else {
+				mv.visitLdcInsn(n);
+			}
+		}
+
+		private void string(String s) {
+			if (s == null) {
+				mv.visitInsn(ACONST_NULL);
+			} else {
+				mv.visitLdcInsn(s);
+			}
+		}
+
+		private int newLocal() {
+			return locals++;
+		}
+
+		/* pos is a long and takes two local slots */
+
+		private int savePos() {
+			int ppos = newLocal();
+			newLocal();
+			ctx();
+			mv.visitFieldInsn(GETFIELD, Context, "pos", "J");
+			mv.visitVarInsn(LSTORE, ppos);
+			return ppos;
+		}
+
+		private int saveInt(String method) {
+			int n = newLocal();
+			ctx();
+			call(method, "()I");
+			mv.visitVarInsn(ISTORE, n);
+			return n;
+		}
+
+		/* pos, log, symbol point; what xAlt pushes */
+
+		private int[] saveState() {
+			return new int[] { savePos(), saveInt("saveLog"), saveInt("saveSymbolPoint") };
+		}
+
+		private void backtrack(int[] state) {
+			ctx();
+			mv.visitVarInsn(LLOAD, state[0]);
+			mv.visitVarInsn(ILOAD, state[1]);
+			mv.visitVarInsn(ILOAD, state[2]);
+			call("backtrack", "(JII)V");
+		}
+
+		private void move(int shift) {
+			ctx();
+			push(shift);
+			call("move", "(I)V");
+		}
+
+		private void prefetch() {
+			ctx();
+			call("prefetch", "()I");
+		}
+
+		private void eof() {
+			ctx();
+			call("eof", "()Z");
+		}
+
+		private void match(byte[] utf8) {
+			ctx();
+			constant(utf8);
+			call("match", "([B)Z");
+		}
+
+		private void setAt(boolean[] byteSet, boolean read) {
+			constant(byteSet);
+			ctx();
+			call(read ? "read" : "prefetch", "()I");
+			mv.visitInsn(BALOAD);
+		}
+
+		/* production */
+
+		private void visitProduction(Production p) {
+			this.mv = cw.visitMethod(ACC_STATIC, funcMap.get(p.getUniqueName()), ProductionDesc, null, null);
+			this.locals = 1;
+			mv.visitCode();
+			Label fail = new Label();
+			MemoPoint memoPoint = code.getMemoPoint(p.getUniqueName());
+			if (memoPoint != null) {
+				visitMemo(memoPoint, p.getExpression(), fail);
+			} else {
+				p.getExpression().visit(this, fail);
+				mv.visitInsn(ICONST_1);
+				mv.visitInsn(IRETURN);
+				mv.visitLabel(fail);
+				mv.visitInsn(ICONST_0);
+				mv.visitInsn(IRETURN);
+			}
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+
+		/* Lookup/TLookup, Alt, body, Memo/TMemo or MemoFail */
+
+		private void visitMemo(MemoPoint memoPoint, Expression e, Label fail) {
+			boolean tree = memoPoint.typeState != Typestate.Unit;
+			boolean adaptive = memoPoint.isAdaptive(); // lookups are counted, see MemoStats
+			Label body = new Label();
+			Label succ = new Label();
+			Label failed = new Label();
+			if (adaptive) {
+				ctx();
+				push(memoPoint.id);
+				call("isMemoDisabled", "(I)Z");
+				mv.visitJumpInsn(IFNE, body);
+			}
+			int ppos = savePos();
+			if (adaptive) {
+				ctx();
+				push(memoPoint.id);
+				mv.visitVarInsn(LLOAD, ppos);
+			}
+			ctx();
+			push(memoPoint.id);
+			call(tree ? "lookupTreeMemo" : "lookupMemo", "(I)I");
+			if (adaptive) {
+				call("countMemo", "(IJI)I");
+			}
+			mv.visitTableSwitchInsn(0, 1, failed, body, succ);
+			mv.visitLabel(succ);
+			mv.visitInsn(ICONST_1);
+			mv.visitInsn(IRETURN);
+			mv.visitLabel(failed);
+			mv.visitInsn(ICONST_0);
+			mv.visitInsn(IRETURN);
+
+			mv.visitLabel(body);
+			int[] state = saveState();
+			e.visit(this, fail);
+			Label skip = new Label();
+			if (adaptive) {
+				ctx();
+				push(memoPoint.id);
+				call("isMemoActive", "(I)Z");
+				mv.visitJumpInsn(IFEQ, skip);
+			}
+			ctx();
+			push(memoPoint.id);
+			mv.visitVarInsn(LLOAD, state[0]);
+			call(tree ? "memoTreeSucc" : "memoSucc", "(IJ)V");
+			mv.visitLabel(skip);
+			mv.visitInsn(ICONST_1);
+			mv.visitInsn(IRETURN);
+
+			mv.visitLabel(fail);
+			backtrack(state);
+			Label skip2 = new Label();
+			if (adaptive) {
+				ctx();
+				push(memoPoint.id);
+				call("isMemoActive", "(I)Z");
+				mv.visitJumpInsn(IFEQ, skip2);
+			}
+			ctx();
+			push(memoPoint.id);
+			call("memoFail", "(I)V");
+			mv.visitLabel(skip2);
+			mv.visitInsn(ICONST_0);
+			mv.visitInsn(IRETURN);
+		}
+
+		/* expressions; each jumps to fail on failure and falls through on success */
+
+		private void compile(Expression e, Label fail) {
+			if (weight(e) > OutlineWeight) {
+				outline(e, fail);
+				return;
+			}
+			e.visit(this, fail);
+		}
+
+		/*
+		 * A large subexpression gets its own method, called like a
+		 * nonterminal, so that each method stays small enough for HotSpot to
+		 * compile and inline.
+		 */
+
+		private void compileAlternative(Expression e, Label fail) {
+			if (weight(e) > AlternativeWeight) {
+				outline(e, fail);
+				return;
+			}
+			e.visit(this, fail);
+		}
+
+		private void outline(Expression e, Label fail) {
+			String name = outlineMap.get(e);
+			if (name == null) {
+				name = "e" + outlineMap.size();
+				outlineMap.put(e, name);
+				MethodVisitor stacked = mv;
+				int stackedLocals = locals;
+				this.mv = cw.visitMethod(ACC_STATIC, name, ProductionDesc, null, null);
+				this.locals = 1;
+				mv.visitCode();
+				Label failed = new Label();
+				e.visit(this, failed);
+				mv.visitInsn(ICONST_1);
+				mv.visitInsn(IRETURN);
+				mv.visitLabel(failed);
+				mv.visitInsn(ICONST_0);
+				mv.visitInsn(IRETURN);
+				mv.visitMaxs(0, 0);
+				mv.visitEnd();
+				this.mv = stacked;
+				this.locals = stackedLocals;
+			}
+			ctx();
+			mv.visitMethodInsn(INVOKESTATIC, className, name, ProductionDesc);
+			mv.visitJumpInsn(IFEQ, fail);
+		}
+
+		private int weight(Expression e) {
+			Integer w = weightMap.get(e);
+			if (w == null) {
+				int n = 1;
+				if (!(e instanceof NonTerminal)) {
+					for (Expression sub : e) {
+						n += weight(sub);
+					}
+				}
+				w = n;
+				weightMap.put(e, w);
+			}
+			return w;
+		}
+
+		private Expression getInnerExpression(Expression p) {
+			Expression inner = Expressions.resolveNonTerminal(p.get(0));
+			if (strategy.Ostring && inner instanceof Nez.Pair) {
+				inner = Expressions.tryConvertingMultiCharSequence((Nez.Pair) inner);
+			}
+			return inner;
+		}
+
+		@Override
+		public Object visitNonTerminal(NonTerminal e, Object fail) {
+			ctx();
+			mv.visitMethodInsn(INVOKESTATIC, className, funcMap.get(e.getUniqueName()), ProductionDesc);
+			mv.visitJumpInsn(IFEQ, (Label) fail);
+			return null;
+		}
+
+		@Override
+		public Object visitEmpty(Nez.Empty e, Object fail) {
+			return null;
+		}
+
+		@Override
+		public Object visitFail(Nez.Fail e, Object fail) {
+			mv.visitJumpInsn(GOTO, (Label) fail);
+			return null;
+		}
+
+		@Override
+		public Object visitByte(Nez.Byte e, Object fail) {
+			if (strategy.BinaryGrammar && e.byteChar == 0) {
+				prefetch();
+				mv.visitJumpInsn(IFNE, (Label) fail);
+				eof();
+				mv.visitJumpInsn(IFNE, (Label) fail);
+				move(1);
+				return null;
+			}
+			ctx();
+			call("read", "()I");
+			push(e.byteChar);
+			mv.visitJumpInsn(IF_ICMPNE, (Label) fail);
+			return null;
+		}
+
+		@Override
+		public Object visitByteSet(Nez.ByteSet e, Object fail) {
+			if (strategy.BinaryGrammar && e.byteset[0]) {
+				setAt(e.byteset, false);
+				mv.visitJumpInsn(IFEQ, (Label) fail);
+				eof();
+				mv.visitJumpInsn(IFNE, (Label) fail);
+				move(1);
+				return null;
+			}
+			setAt(e.byteset, true);
+			mv.visitJumpInsn(IFEQ, (Label) fail);
+			return null;
+		}
+
+		@Override
+		public Object visitAny(Nez.Any e, Object fail) {
+			eof();
+			mv.visitJumpInsn(IFNE, (Label) fail);
+			move(1);
+			return null;
+		}
+
+		@Override
+		public Object visitMultiByte(Nez.MultiByte e, Object fail) {
+			match(e.byteseq);
+			mv.visitJumpInsn(IFEQ, (Label) fail);
+			return null;
+		}
+
+		@Override
+		public Object visitPair(Nez.Pair e, Object fail) {
+			Expression next = e;
+			int w = 0;
+			while (next instanceof Nez.Pair) {
+				if (w > OutlineWeight) {
+					outline(next, (Label) fail);
+					return null;
+				}
+				Expression first = ((Nez.Pair) next).first;
+				compile(first, (Label) fail);
+				w += Math.min(weight(first), OutlineWeight);
+				next = ((Nez.Pair) next).next;
+			}
+			compile(next, (Label) fail);
+			return null;
+		}
+
+		@Override
+		public Object visitSequence(Nez.Sequence e, Object fail) {
+			for (Expression sub : e) {
+				compile(sub, (Label) fail);
+			}
+			return null;
+		}
+
+		@Override
+		public Object visitChoice(Nez.Choice e, Object fail) {
+			if (e.predicted != null) {
+				visitPredictedChoice(e, e.predicted, (Label) fail);
+			} else {
+				visitUnoptimizedChoice(e, (Label) fail);
+			}
+			return null;
+		}
+
+		private void visitUnoptimizedChoice(Nez.Choice e, Label fail) {
+			Label end = new Label();
+			for (int i = 0; i < e.size() - 1; i++) {
+				Label next = new Label();
+				int[] state = saveState();
+				compileAlternative(e.get(i), next);
+				mv.visitJumpInsn(GOTO, end);
+				mv.visitLabel(next);
+				backtrack(state);
+			}
+			compileAlternative(e.get(e.size() - 1), fail);
+			mv.visitLabel(end);
+		}
+
+		private void visitPredictedChoice(Nez.Choice choice, Nez.ChoicePrediction p, Label fail) {
+			Label end = new Label();
+			Label[] cases = new Label[choice.size()];
+			for (int i = 0; i < cases.length; i++) {
+				cases[i] = new Label();
+			}
+			constant(p.indexMap);
+			prefetch();
+			mv.visitInsn(BALOAD);
+			mv.visitTableSwitchInsn(1, cases.length, fail, cases);
+			for (int i = 0; i < choice.size(); i++) {
+				mv.visitLabel(cases[i]);
+				Expression predicted = choice.get(i);
+				if (p.striped[i]) {
+					move(1);
+				}
+				if (predicted instanceof Nez.Choice) {
+					visitUnoptimizedChoice((Nez.Choice) predicted, fail);
+				} else {
+					compileAlternative(predicted, fail);
+				}
+				mv.visitJumpInsn(GOTO, end);
+			}
+			mv.visitLabel(end);
+		}
+
+		@Override
+		public Object visitDispatch(Nez.Dispatch e, Object fail) {
+			Label end = new Label();
+			Label[] cases = new Label[e.size()];
+			cases[0] = (Label) fail; // jump table entry 1 is the common failure
+			for (int i = 1; i < cases.length; i++) {
+				cases[i] = new Label();
+			}
+			constant(e.indexMap);
+			prefetch();
+			mv.visitInsn(BALOAD);
+			mv.visitTableSwitchInsn(1, cases.length, (Label) fail, cases);
+			for (int i = 1; i < e.size(); i++) {
+				mv.visitLabel(cases[i]);
+				Expression predicted = e.get(i);
+				if (predicted instanceof Nez.Choice) {
+					visitUnoptimizedChoice((Nez.Choice) predicted, (Label) fail);
+				} else {
+					compileAlternative(predicted, (Label) fail);
+				}
+				mv.visitJumpInsn(GOTO, end);
+			}
+			mv.visitLabel(end);
+			return null;
+		}
+
+		@Override
+		public Object visitOption(Nez.Option e, Object fail) {
+			if (strategy.Olex) {
+				Expression inner = getInnerExpression(e);
+				Label end = new Label();
+				if (inner instanceof Nez.Byte) {
+					int byteChar = ((Nez.Byte) inner).byteChar;
+					if (strategy.BinaryGrammar && byteChar == 0) {
+						prefetch();
+						mv.visitJumpInsn(IFNE, end);
+						eof();
+						mv.visitJumpInsn(IFNE, end);
+					} else {
+						if (byteChar == 0) {
+							return null; // OByte does not consume NUL
+						}
+						prefetch();
+						push(byteChar);
+						mv.visitJumpInsn(IF_ICMPNE, end);
+					}
+					move(1);
+					mv.visitLabel(end);
+					return null;
+				}
+				if (inner instanceof Nez.ByteSet) {
+					boolean[] byteset = ((Nez.ByteSet) inner).byteset;
+					setAt(byteset, false);
+					mv.visitJumpInsn(IFEQ, end);
+					if (strategy.BinaryGrammar && byteset[0]) {
+						eof(); // as BinaryOSet
+						mv.visitJumpInsn(IFEQ, end);
+					}
+					move(1);
+					mv.visitLabel(end);
+					return null;
+				}
+				if (inner instanceof Nez.MultiByte) {
+					match(((Nez.MultiByte) inner).byteseq);
+					mv.visitInsn(POP);
+					return null;
+				}
+			}
+			Label next = new Label();
+			Label end = new Label();
+			int[] state = saveState();
+			compile(e.get(0), next);
+			mv.visitJumpInsn(GOTO, end);
+			mv.visitLabel(next);
+			backtrack(state);
+			mv.visitLabel(end);
+			return null;
+		}
+
+		@Override
+		public Object visitZeroMore(Nez.ZeroMore e, Object fail) {
+			visitRepetition(e);
+			return null;
+		}
+
+		@Override
+		public Object visitOneMore(Nez.OneMore e, Object fail) {
+			compile(e.get(0), (Label) fail);
+			visitRepetition(e);
+			return null;
+		}
+
+		private void visitRepetition(Expression e) {
+			Label loop = new Label();
+			Label end = new Label();
+			if (strategy.Olex) {
+				Expression inner = getInnerExpression(e);
+				if (inner instanceof Nez.Byte) {
+					int byteChar = ((Nez.Byte) inner).byteChar;
+					mv.visitLabel(loop);
+					prefetch();
+					if (strategy.BinaryGrammar && byteChar == 0) {
+						mv.visitJumpInsn(IFNE, end);
+						eof();
+						mv.visitJumpInsn(IFNE, end);
+					} else {
+						push(byteChar);
+						mv.visitJumpInsn(IF_ICMPNE, end);
+					}
+					move(1);
+					mv.visitJumpInsn(GOTO, loop);
+					mv.visitLabel(end);
+					return;
+				}
+				if (inner instanceof Nez.ByteSet) {
+					boolean[] byteset = ((Nez.ByteSet) inner).byteset;
+					ByteScanner scanner = ByteScanner.newScanner(byteset);
+					if (scanner != null) {
+						ctx();
+						constant(scanner);
+						call("skip", "(" + ScannerDesc + ")V");
+					}
+					mv.visitLabel(loop);
+					setAt(byteset, false);
+					mv.visitJumpInsn(IFEQ, end);
+					if (strategy.BinaryGrammar && byteset[0]) {
+						eof();
+						mv.visitJumpInsn(IFNE, end);
+					}
+					move(1);
+					mv.visitJumpInsn(GOTO, loop);
+					mv.visitLabel(end);
+					return;
+				}
+				if (inner instanceof Nez.MultiByte) {
+					mv.visitLabel(loop);
+					match(((Nez.MultiByte) inner).byteseq);
+					mv.visitJumpInsn(IFNE, loop);
+					return;
+				}
+			}
+			Label next = new Label();
+			mv.visitLabel(loop);
+			int[] state = saveState();
+			compile(e.get(0), next);
+			ctx();
+			mv.visitFieldInsn(GETFIELD, Context, "pos", "J");
+			mv.visitVarInsn(LLOAD, state[0]);
+			mv.visitInsn(LCMP);
+			mv.visitJumpInsn(IFNE, loop); // Step
+			mv.visitLabel(next);
+			backtrack(state);
+		}
+
+		@Override
+		public Object visitAnd(Nez.And e, Object fail) {
+			int ppos = savePos();
+			compile(e.get(0), (Label) fail);
+			ctx();
+			mv.visitVarInsn(LLOAD, ppos);
+			call("back", "(J)V");
+			return null;
+		}
+
+		@Override
+		public Object visitNot(Nez.Not e, Object fail) {
+			if (strategy.Olex) {
+				Expression inner = getInnerExpression(e);
+				if (inner instanceof Nez.Byte) {
+					int byteChar = ((Nez.Byte) inner).byteChar;
+					prefetch();
+					push(byteChar);
+					if (strategy.BinaryGrammar && byteChar != 0) {
+						mv.visitJumpInsn(IF_ICMPEQ, (Label) fail);
+						eof();
+						mv.visitJumpInsn(IFNE, (Label) fail);
+					} else {
+						mv.visitJumpInsn(IF_ICMPEQ, (Label) fail);
+					}
+					return null;
+				}
+				if (inner instanceof Nez.ByteSet) {
+					boolean[] byteset = ((Nez.ByteSet) inner).byteset;
+					setAt(byteset, false);
+					mv.visitJumpInsn(IFNE, (Label) fail);
+					if (strategy.BinaryGrammar && !byteset[0]) {
+						eof();
+						mv.visitJumpInsn(IFNE, (Label) fail);
+					}
+					return null;
+				}
+				if (inner instanceof Nez.MultiByte) {
+					match(((Nez.MultiByte) inner).byteseq);
+					mv.visitJumpInsn(IFNE, (Label) fail);
+					return null;
+				}
+				if (inner instanceof Nez.Any) {
+					eof();
+					mv.visitJumpInsn(IFEQ, (Label) fail);
+					return null;
+				}
+			}
+			Label next = new Label();
+			int[] state = saveState();
+			compile(e.get(0), next);
+			mv.visitJumpInsn(GOTO, (Label) fail);
+			mv.visitLabel(next);
+			backtrack(state);
+			return null;
+		}
+
+		/* Tree */
+
+		@Override
+		public Object visitBeginTree(Nez.BeginTree e, Object fail) {
+			if (strategy.TreeConstruction) {
+				ctx();
+				push(e.shift);
+				call("beginTree", "(I)V");
+			}
+			return null;
+		}
+
+		@Override
+		public Object visitFoldTree(Nez.FoldTree e, Object fail) {
+			if (strategy.TreeConstruction) {
+				ctx();
+				push(e.shift);
+				constant(e.label);
+				call("foldTree", "(I" + SymbolDesc + ")V");
+			}
+			return null;
+		}
+
+		@Override
+		public Object visitEndTree(Nez.EndTree e, Object fail) {
+			if (strategy.TreeConstruction) {
+				ctx();
+				push(e.shift);
+				constant(e.tag);
+				string(e.value);
+				call("endTree", "(I" + SymbolDesc + "Ljava/lang/String;)V");
+			}
+			return null;
+		}
+
+		@Override
+		public Object visitTag(Nez.Tag e, Object fail) {
+			if (strategy.TreeConstruction) {
+				ctx();
+				constant(e.tag);
+				call("tagTree", "(" + SymbolDesc + ")V");
+			}
+			return null;
+		}
+
+		@Override
+		public Object visitReplace(Nez.Replace e, Object fail) {
+			if (strategy.TreeConstruction) {
+				ctx();
+				string(e.value);
+				call("valueTree", "(Ljava/lang/String;)V");
+			}
+			return null;
+		}
+
+		/* TPush, inner, TLink or TPop */
+
+		private int[] pushTree() {
+			int parent = newLocal();
+			ctx();
+			mv.visitFieldInsn(GETFIELD, Context, "left", TreeDesc);
+			mv.visitVarInsn(ASTORE, parent);
+			return new int[] { parent, saveInt("saveLog") };
+		}
+
+		private void popTree(int[] saved, Symbol label, boolean link) {
+			ctx();
+			mv.visitVarInsn(ILOAD, saved[1]);
+			call("backLog", "(I)V");
+			if (link) {
+				ctx();
+				mv.visitVarInsn(ALOAD, saved[0]);
+				constant(label);
+				call("linkTree", "(" + TreeDesc + SymbolDesc + ")V");
+			}
+			ctx();
+			mv.visitVarInsn(ALOAD, saved[0]);
+			mv.visitFieldInsn(PUTFIELD, Context, "left", TreeDesc);
+		}
+
+		@Override
+		public Object visitLinkTree(Nez.LinkTree e, Object fail) {
+			if (strategy.TreeConstruction) {
+				int[] saved = pushTree();
+				compile(e.get(0), (Label) fail);
+				popTree(saved, e.label, true);
+				return null;
+			}
+			compile(e.get(0), (Label) fail);
+			return null;
+		}
+
+		@Override
+		public Object visitDetree(Nez.Detree e, Object fail) {
+			if (strategy.TreeConstruction) {
+				int[] saved = pushTree();
+				compile(e.get(0), (Label) fail);
+				popTree(saved, null, false);
+				return null;
+			}
+			compile(e.get(0), (Label) fail);
+			return null;
+		}
+
+		/* Symbol */
+
+		private void closeScope(int symbolPoint) {
+			ctx();
+			mv.visitVarInsn(ILOAD, symbolPoint);
+			call("backSymbolPoint", "(I)V");
+		}
+
+		@Override
+		public Object visitBlockScope(Nez.BlockScope e, Object fail) {
+			int symbolPoint = saveInt("saveSymbolPoint");
+			compile(e.get(0), (Label) fail);
+			closeScope(symbolPoint);
+			return null;
+		}
+
+		@Override
+		public Object visitLocalScope(Nez.LocalScope e, Object fail) {
+			int symbolPoint = saveInt("saveSymbolPoint");
+			ctx();
+			constant(e.tableName);
+			call("addSymbolMask", "(" + SymbolDesc + ")V");
+			compile(e.get(0), (Label) fail);
+			closeScope(symbolPoint);
+			return null;
+		}
+
+		@Override
+		public Object visitSymbolAction(Nez.SymbolAction e, Object fail) {
+			int ppos = savePos();
+			compile(e.get(0), (Label) fail);
+			ctx();
+			constant(e.tableName);
+			mv.visitVarInsn(LLOAD, ppos);
+			call("addSymbol", "(" + SymbolDesc + "J)V");
+			return null;
+		}
+
+		@Override
+		public Object visitSymbolPredicate(Nez.SymbolPredicate e, Object fail) {
+			int ppos = savePos();
+			compile(e.get(0), (Label) fail);
+			ctx();
+			constant(e.tableName);
+			mv.visitVarInsn(LLOAD, ppos);
+			call(e.op == FunctionName.is ? "equals" : "contains", "(" + SymbolDesc + "J)Z");
+			mv.visitJumpInsn(IFEQ, (Label) fail);
+			return null;
+		}
+
+		@Override
+		public Object visitSymbolMatch(Nez.SymbolMatch e, Object fail) {
+			ctx();
+			constant(e.tableName);
+			call("matchSymbol", "(" + SymbolDesc + ")Z");
+			mv.visitJumpInsn(IFEQ, (Label) fail);
+			return null;
+		}
+
+		@Override
+		public Object visitSymbolExists(Nez.SymbolExists e, Object fail) {
+			ctx();
+			constant(e.tableName);
+			if (e.symbol == null) {
+				call("exists", "(" + SymbolDesc + ")Z");
+			} else {
+				constant(StringUtils.utf8(e.symbol));
+				call("existsSymbol", "(" + SymbolDesc + "[B)Z");
+			}
+			mv.visitJumpInsn(IFEQ, (Label) fail);
+			return null;
+		}
+
+		@Override
+		public Object visitScan(Nez.Scan e, Object fail) {
+			int ppos = savePos();
+			compile(e.get(0), (Label) fail);
+			ctx();
+			mv.visitVarInsn(LLOAD, ppos);
+			mv.visitLdcInsn(e.mask);
+			push(e.shift);
+			call("scanCount", "(JJI)V");
+			return null;
+		}
+
+		@Override
+		public Object visitRepeat(Nez.Repeat e, Object fail) {
+			Label loop = new Label();
+			Label end = new Label();
+			mv.visitLabel(loop);
+			ctx();
+			call("decCount", "()Z");
+			mv.visitJumpInsn(IFEQ, end);
+			compile(e.get(0), (Label) fail);
+			mv.visitJumpInsn(GOTO, loop);
+			mv.visitLabel(end);
+			return null;
+		}
+
+		@Override
+		public Object visitIf(Nez.IfCondition e, Object fail) {
+			return null;
+		}
+
+		@Override
+		public Object visitOn(Nez.OnCondition e, Object fail) {
+			return null;
+		}
+
+		@Override
+		public Object visitLabel(Nez.Label e, Object fail) {
+			return null; // coverage is not compiled
+		}
+	}
+}
@@ -36,6 +36,9 @@ public class ParserMachineCompiler implements ParserCompiler {
 		}
 		code.initCoverage(strategy);
 		new CompilerVisitor(code, grammar).compile();
+		if (strategy.Opeephole && !strategy.Moz && !strategy.Profiling) { // fused calls skip the profiler
+			new MozPeephole(code).optimize();
+		}
 		long t2 = System.nanoTime();
 		Verbose.printElapsedTime("CompilingTime", t, t2);
 		return code;
@@ -93,19 +96,33 @@ public class ParserMachineCompiler implements ParserCompiler {
 			if (memoPoint != null) {
 				if (memoPoint.typeState == Typestate.Unit) {
 					MozInst memo = new Moz86.Memo(null, memoPoint, next);
-					MozInst inside = compile(p, memo);
+					MozInst inside = compileBody(p, memo);
 					MozInst failmemo = new Moz86.MemoFail(null, memoPoint);
 					inside = new Moz86.Alt(failmemo, inside);
 					return new Moz86.Lookup(null, memoPoint, inside, next);
 				} else {
 					MozInst memo = new Moz86.TMemo(null, memoPoint, next);
-					MozInst inside = compile(p, memo);
+					MozInst inside = compileBody(p, memo);
 					MozInst failmemo = new Moz86.MemoFail(null, memoPoint);
 					inside = new Moz86.Alt(failmemo, inside);
 					return new Moz86.TLookup(memoPoint, inside, next);
 				}
 			}
-			return compile(p, next);
+			return compileBody(p, next);
+		}
+
+		/* a regular production runs as a DFA table with the code as fallback */
+
+		private MozInst compileBody(Expression p, MozInst next) {
+			MozInst inst = compile(p, next);
+			if (strategy.Odfa && !strategy.Profiling) {
+				int[] table = MozDFA.compile(p, strategy);
+				if (table != null) {
+					Verbose.println("dfa: %s %d states", getEncodingProduction().getLocalName(), table.length / 257);
+					return new Moz86.DFA(p, table, next, inst);
+				}
+			}
+			return inst;
 		}
 
 		// encoding
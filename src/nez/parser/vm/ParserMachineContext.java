@@ -4,6 +4,8 @@ import nez.ast.Source;
 import nez.ast.Symbol;
 import nez.ast.Tree;
 import nez.parser.ParserContext;
+import nez.parser.io.ByteScanner;
+import nez.parser.io.CommonSource;
 
 public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 
@@ -40,20 +42,60 @@ public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 		return false;
 	}
 
+	/* skips the bulk of a run; the caller checks the remaining bytes */
+
+	public final void skip(ByteScanner scanner) {
+		if (source instanceof CommonSource) {
+			this.pos = ((CommonSource) source).skip(pos, scanner);
+		}
+	}
+
+	/* runs a table of MozDFA; a failure moves past the failed byte like read() */
+
+	public final int runDFA(int[] table) {
+		Source s = source;
+		long p = pos;
+		int state = 0;
+		while (true) {
+			int ch = s.byteAt(p);
+			if (ch == 0 && s.eof(p)) {
+				ch = 256;
+			}
+			int t = table[state * 257 + ch];
+			if (t < 0) {
+				if (t == MozDFA.Accept) {
+					this.pos = p;
+				} else if (t == MozDFA.Fail) {
+					this.pos = p + 1;
+				}
+				return t;
+			}
+			state = t;
+			p++;
+		}
+	}
+
 	@Override
-	public final byte[] subByte(int start, int end) {
+	public final byte[] subByte(long start, long end) {
 		return source.subByte(start, end);
 	}
 
 	@Override
-	public final byte byteAt(int pos) {
+	public final byte byteAt(long pos) {
 		return (byte) source.byteAt(pos);
 	}
 
-	private int head_pos;
+	private long head_pos;
+
+	@Override
+	public final void reset(Source source, T proto) {
+		super.reset(source, proto);
+		this.head_pos = 0;
+		initVM();
+	}
 
 	@Override
-	public final void back(int pos) {
+	public final void back(long pos) {
 		if (head_pos < this.pos) {
 			this.head_pos = this.pos;
 		}
@@ -68,39 +110,56 @@ public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 		return head_pos;
 	}
 
+	@Override
+	protected final long examined() {
+		return Math.max(head_pos, super.examined());
+	}
+
 	public final void setPosition(long pos) {
-		this.pos = (int) pos;
+		this.pos = pos;
 	}
 
 	// ----------------------------------------------------------------------
 
 	public static class StackData {
 		public Object ref;
-		public int value;
+		public long value;
 	}
 
+	private static final MozInst ExitFailure = new Moz86.Exit(false);
+	private static final MozInst ExitSuccess = new Moz86.Exit(true);
 	private static final int StackSize = 64;
 	private StackData[] stacks;
-	private int usedStackTop;
+	int usedStackTop; // see ParserMachineProfiler
 	private int catchStackTop;
 
 	public final void initVM() {
-		this.stacks = new StackData[StackSize];
-		for (int i = 0; i < StackSize; i++) {
-			stacks[i] = new StackData();
+		if (stacks == null) {
+			this.stacks = new StackData[StackSize];
+			for (int i = 0; i < StackSize; i++) {
+				stacks[i] = new StackData();
+			}
 		}
 		stacks[0].ref = null;
 		stacks[0].value = 0;
-		stacks[1].ref = new Moz86.Exit(false);
+		stacks[1].ref = ExitFailure;
 		stacks[1].value = pos;
 		stacks[2].ref = saveLog();
 		stacks[2].value = saveSymbolPoint();
-		stacks[3].ref = new Moz86.Exit(true);
+		stacks[3].ref = ExitSuccess;
 		stacks[3].value = 0;
 		this.catchStackTop = 0;
 		this.usedStackTop = 3;
 	}
 
+	/* called around each run of the code; see ParserMachineProfiler */
+
+	public void startParse() {
+	}
+
+	public void endParse(boolean matched) {
+	}
+
 	public final StackData getUsedStackTop() {
 		return stacks[usedStackTop];
 	}
@@ -132,7 +191,7 @@ public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 		s.value = pos;
 	}
 
-	public final int xPPos() {
+	public final long xPPos() {
 		StackData s = popStack();
 		return s.value;
 	}
@@ -142,12 +201,12 @@ public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 		back(s.value);
 	}
 
-	public final void xCall(String name, MozInst jump) {
+	public void xCall(String name, MozInst jump) {
 		StackData s = newUnusedStack();
 		s.ref = jump;
 	}
 
-	public final MozInst xRet() {
+	public MozInst xRet() {
 		StackData s = popStack();
 		return (MozInst) s.ref;
 	}
@@ -168,32 +227,42 @@ public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 		StackData s0 = stacks[catchStackTop];
 		// StackData s1 = stacks[catchStackTop + 1];
 		usedStackTop = catchStackTop - 1;
-		catchStackTop = s0.value;
+		catchStackTop = (int) s0.value;
 	}
 
-	public final int xSuccPos() {
+	public final long xSuccPos() {
 		StackData s0 = stacks[catchStackTop];
 		StackData s1 = stacks[catchStackTop + 1];
 		usedStackTop = catchStackTop - 1;
-		catchStackTop = s0.value;
+		catchStackTop = (int) s0.value;
 		return s1.value;
 	}
 
-	public final MozInst xFail() {
+	public MozInst xFail() {
 		StackData s0 = stacks[catchStackTop];
 		StackData s1 = stacks[catchStackTop + 1];
 		StackData s2 = stacks[catchStackTop + 2];
 		usedStackTop = catchStackTop - 1;
-		catchStackTop = s0.value;
+		catchStackTop = (int) s0.value;
 		if (s1.value < pos) {
 			back(s1.value);
 		}
-		backLog(s2.value);
+		backLog((int) s2.value);
 		backSymbolPoint((Integer) s2.ref); // FIXME slow
 		assert (s1.ref != null);
 		return (MozInst) s1.ref;
 	}
 
+	/* restores what xFail restores from an Alt frame */
+
+	public final void backtrack(long pos, int log, int symbolPoint) {
+		if (pos < this.pos) {
+			back(pos);
+		}
+		backLog(log);
+		backSymbolPoint(symbolPoint);
+	}
+
 	public final MozInst xStep(MozInst next) {
 		StackData s1 = stacks[catchStackTop + 1];
 		if (s1.value == pos) {
@@ -215,7 +284,7 @@ public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 	@SuppressWarnings("unchecked")
 	public final void xTLink(Symbol label) {
 		StackData s = popStack();
-		backLog(s.value);
+		backLog((int) s.value);
 		linkTree((T) s.ref, label);
 		this.left = (T) s.ref;
 	}
@@ -223,7 +292,7 @@ public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 	@SuppressWarnings("unchecked")
 	public final void xTPop() {
 		StackData s = popStack();
-		backLog(s.value);
+		backLog((int) s.value);
 		this.left = (T) s.ref;
 	}
 
@@ -234,7 +303,7 @@ public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 
 	public final void xSClose() {
 		StackData s = popStack();
-		backSymbolPoint(s.value);
+		backSymbolPoint((int) s.value);
 	}
 
 	/* ----------------------------------------------------------------- */
@@ -1,12 +1,118 @@
 package nez.parser.vm;
 
+import java.util.Arrays;
+
 import nez.ast.Source;
 import nez.ast.Tree;
+import nez.parser.ProductionProfiler;
+import nez.parser.ProductionProfiler.Node;
+
+/**
+ * ParserMachineProfiler is a context that times each production call. Its
+ * frames follow the call frames of the machine; those discarded by a failure
+ * are closed as failed calls. Bytes that a failure gives back are counted to
+ * the production whose choice catches it.
+ */
 
 public class ParserMachineProfiler<T extends Tree<T>> extends ParserMachineContext<T> {
+	private final ProductionProfiler profiler;
+	private Node root;
+	private long startTime;
+	private long startPosition;
+	private long rootTime; // spent in callees of the root
+
+	private Node[] nodes = new Node[64];
+	private int[] depths = new int[64];
+	private long[] positions = new long[64];
+	private long[] startTimes = new long[64];
+	private long[] calleeTimes = new long[64];
+	private int size;
 
-	public ParserMachineProfiler(Source source, T proto) {
+	public ParserMachineProfiler(Source source, T proto, ProductionProfiler profiler) {
 		super(source, proto);
+		this.profiler = profiler;
+		this.root = profiler.newRoot();
+	}
+
+	@Override
+	public void startParse() {
+		this.size = 0;
+		this.rootTime = 0;
+		this.startPosition = pos;
+		this.startTime = System.nanoTime();
+	}
+
+	@Override
+	public void endParse(boolean matched) {
+		long now = System.nanoTime();
+		while (size > 0) {
+			exit(now, true);
+		}
+		long t = now - startTime;
+		root.exit(pos - startPosition, t, t - rootTime, !matched);
+	}
+
+	/* merges what has been recorded into the profiler */
+
+	public final void flush() {
+		profiler.merge(root);
+		this.root = profiler.newRoot();
+	}
+
+	@Override
+	public void xCall(String name, MozInst jump) {
+		super.xCall(name, jump);
+		if (size == nodes.length) {
+			int n = size * 2;
+			nodes = Arrays.copyOf(nodes, n);
+			depths = Arrays.copyOf(depths, n);
+			positions = Arrays.copyOf(positions, n);
+			startTimes = Arrays.copyOf(startTimes, n);
+			calleeTimes = Arrays.copyOf(calleeTimes, n);
+		}
+		nodes[size] = (size == 0 ? root : nodes[size - 1]).child(name);
+		depths[size] = usedStackTop;
+		positions[size] = pos;
+		calleeTimes[size] = 0;
+		startTimes[size] = System.nanoTime();
+		size++;
+	}
+
+	@Override
+	public MozInst xRet() {
+		int depth = usedStackTop;
+		MozInst next = super.xRet();
+		if (size > 0 && depths[size - 1] == depth) {
+			exit(System.nanoTime(), false);
+		}
+		return next;
+	}
+
+	@Override
+	public MozInst xFail() {
+		long failed = pos;
+		MozInst next = super.xFail();
+		if (size > 0 && depths[size - 1] > usedStackTop) {
+			long now = System.nanoTime();
+			while (size > 0 && depths[size - 1] > usedStackTop) {
+				exit(now, true);
+			}
+		}
+		if (failed > pos) {
+			(size == 0 ? root : nodes[size - 1]).backtrack(failed - pos);
+		}
+		return next;
+	}
+
+	private void exit(long now, boolean failed) {
+		size--;
+		long t = now - startTimes[size];
+		nodes[size].exit(pos - positions[size], t, t - calleeTimes[size], failed);
+		if (size > 0) {
+			calleeTimes[size - 1] += t;
+		} else {
+			rootTime += t;
+		}
 	}
 
 }
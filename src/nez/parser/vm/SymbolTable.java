@@ -1,5 +1,7 @@
 package nez.parser.vm;
 
+import java.util.Arrays;
+
 import nez.ast.Symbol;
 
 public class SymbolTable {
@@ -8,6 +10,8 @@ public class SymbolTable {
 	private SymbolTableEntry[] tables;
 	private int tableSize;
 	private int maxTableSize;
+	private int[] tops = new int[0]; // by table id, the top entry or -1
+	private int[] buckets; // by table and code, the top entry or -1
 
 	private int stateValue;
 	private int stateCount;
@@ -17,6 +21,9 @@ public class SymbolTable {
 		Symbol table;
 		long code;
 		byte[] symbol; // if uft8 is null, hidden
+		int below; // the entry of the same table below, or -1
+		int masked; // the top mask of the table up to this entry, or -1
+		int chain; // the entry below in the same bucket, or -1
 
 		@Override
 		public String toString() {
@@ -71,9 +78,9 @@ public class SymbolTable {
 				this.tables = newtable;
 				initEntry(tables.length / 2, maxTableSize);
 			}
+			rehash();
 		}
 		SymbolTableEntry entry = tables[tableSize];
-		tableSize++;
 		if (entry.table == table && equalsBytes(entry.symbol, utf8)) {
 			// reuse state value
 			entry.code = code;
@@ -86,6 +93,57 @@ public class SymbolTable {
 			this.stateValue = stateCount;
 			entry.stateValue = stateCount;
 		}
+		link(entry, tableSize);
+		tableSize++;
+	}
+
+	/* Index */
+
+	private int top(Symbol table) {
+		int id = table.id();
+		return id < tops.length ? tops[id] : -1;
+	}
+
+	private int bucket(Symbol table, long code) {
+		int h = (int) (code ^ code >>> 32) * 31 + table.id();
+		return (h ^ h >>> 16) & (buckets.length - 1);
+	}
+
+	private void link(SymbolTableEntry entry, int index) {
+		int id = entry.table.id();
+		if (!(id < tops.length)) {
+			int size = tops.length;
+			this.tops = Arrays.copyOf(tops, Math.max(id + 1, size * 2));
+			Arrays.fill(tops, size, tops.length, -1);
+		}
+		entry.below = tops[id];
+		if (entry.symbol == NullSymbol) {
+			entry.masked = index;
+		} else {
+			entry.masked = entry.below == -1 ? -1 : tables[entry.below].masked;
+			int b = bucket(entry.table, entry.code);
+			entry.chain = buckets[b];
+			buckets[b] = index;
+		}
+		tops[id] = index;
+	}
+
+	private void unlink(SymbolTableEntry entry) {
+		tops[entry.table.id()] = entry.below;
+		if (entry.symbol != NullSymbol) {
+			buckets[bucket(entry.table, entry.code)] = entry.chain;
+		}
+	}
+
+	/* buckets grow with the entries, and are relinked in push order */
+
+	private void rehash() {
+		this.buckets = new int[maxTableSize];
+		Arrays.fill(buckets, -1);
+		Arrays.fill(tops, -1);
+		for (int i = 0; i < tableSize; i++) {
+			link(tables[i], i);
+		}
 	}
 
 	public final int saveSymbolPoint() {
@@ -94,6 +152,9 @@ public class SymbolTable {
 
 	public final void backSymbolPoint(int savePoint) {
 		if (tableSize != savePoint) {
+			for (int i = tableSize - 1; i >= savePoint; i--) {
+				unlink(tables[i]);
+			}
 			this.tableSize = savePoint;
 			if (tableSize == 0) {
 				this.stateValue = 0;
@@ -116,52 +177,29 @@ public class SymbolTable {
 	}
 
 	public final boolean exists(Symbol table) {
-		for (int i = tableSize - 1; i >= 0; i--) {
-			SymbolTableEntry entry = tables[i];
-			if (entry.table == table) {
-				return entry.symbol != NullSymbol;
-			}
-		}
-		return false;
+		int top = top(table);
+		return top != -1 && tables[top].symbol != NullSymbol;
 	}
 
 	public final boolean exists(Symbol table, byte[] symbol) {
-		long code = hash(symbol);
-		for (int i = tableSize - 1; i >= 0; i--) {
-			SymbolTableEntry entry = tables[i];
-			if (entry.table == table) {
-				if (entry.symbol == NullSymbol) {
-					return false; // masked
-				}
-				if (entry.code == code && equalsBytes(entry.symbol, symbol)) {
-					return true;
-				}
-			}
-		}
-		return false;
+		return contains(table, symbol);
 	}
 
 	public final byte[] getSymbol(Symbol table) {
-		for (int i = tableSize - 1; i >= 0; i--) {
-			SymbolTableEntry entry = tables[i];
-			if (entry.table == table) {
-				return entry.symbol;
-			}
-		}
-		return null;
+		int top = top(table);
+		return top == -1 ? null : tables[top].symbol;
 	}
 
 	public final boolean contains(Symbol table, byte[] symbol) {
+		int top = top(table);
+		if (top == -1) {
+			return false;
+		}
 		long code = hash(symbol);
-		for (int i = tableSize - 1; i >= 0; i--) {
+		for (int i = buckets[bucket(table, code)]; i > tables[top].masked; i = tables[i].chain) {
 			SymbolTableEntry entry = tables[i];
-			if (entry.table == table) {
-				if (entry.symbol == NullSymbol) {
-					return false; // masked
-				}
-				if (entry.code == code && equalsBytes(entry.symbol, symbol)) {
-					return true;
-				}
+			if (entry.table == table && entry.code == code && equalsBytes(entry.symbol, symbol)) {
+				return true;
 			}
 		}
 		return false;
@@ -1,10 +1,15 @@
 package nez.main;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import nez.ast.CommonTree;
 import nez.ast.Source;
 import nez.ast.Tree;
 import nez.parser.Parser;
+import nez.parser.ParserResult;
+import nez.parser.ProductionProfiler;
 import nez.util.ConsoleUtils;
 import nez.util.FileBuilder;
 
@@ -15,6 +20,10 @@ public class Cbench extends Command {
 		Parser parser = newParser();
 		parser.setDisabledUnconsumed(true);
 		parser.compile();
+		if (jobs > 1) {
+			execParallel(parser);
+			return;
+		}
 		long len = 0;
 		double total = 0.0;
 		while (hasInputSource()) {
@@ -49,5 +58,54 @@ public class Cbench extends Command {
 		}
 		double s = (total / 1000);
 		ConsoleUtils.println("Throughput %.2f [B/s] %.2f [KiB/s] %.2f [MiB/s]", (len / s), (len / 1024 / s), (len / (1024 * 1024) / s));
+		reportProfile(parser);
+	}
+
+	private void reportProfile(Parser parser) throws IOException {
+		if (strategy.Profiling) {
+			ProductionProfiler prof = parser.getProductionProfiler();
+			prof.report(parser.getParserCode(), -1);
+			String file = FileBuilder.toFileName(grammarFile, outputDirectory, "folded");
+			prof.writeCollapsedStacks(file);
+			ConsoleUtils.println("collapsed stacks: " + file);
+		}
+	}
+
+	private void execParallel(Parser parser) throws IOException {
+		List<Source> inputs = new ArrayList<>();
+		long len = 0;
+		while (hasInputSource()) {
+			Source input = nextInputSource();
+			inputs.add(input);
+			len += input.length();
+		}
+		ConsoleUtils.print(inputs.size() + " files, " + jobs + " jobs: ");
+		double dsum = 0.0;
+		double prev = 10000.0;
+		boolean JIT = true;
+		for (int c = 0; c < 5; c++) {
+			long t1 = System.nanoTime();
+			for (ParserResult<CommonTree> result : parser.parseAll(inputs, getForkJoinPool())) {
+				if (result.showErrors()) {
+					return;
+				}
+			}
+			long t2 = System.nanoTime();
+			double d = (t2 - t1) / 1000000.0;
+			ConsoleUtils.print("%.2f ", d);
+			if (JIT) {
+				if ((prev - d) > 0.0) {
+					prev = d;
+					c--;
+					continue;
+				}
+				JIT = false;
+			}
+			dsum += d;
+		}
+		ConsoleUtils.println("(ave) %.2f [ms]", dsum / 5);
+		double s = (dsum / 5 / 1000);
+		ConsoleUtils.println("Throughput %.2f [B/s] %.2f [KiB/s] %.2f [MiB/s]", (len / s), (len / 1024 / s), (len / (1024 * 1024) / s));
+		reportProfile(parser);
 	}
 }
@@ -4,12 +4,19 @@ import java.io.IOException;
 
 import nez.parser.Parser;
 import nez.parser.ParserCode;
+import nez.parser.vm.MozImage;
+import nez.util.FileBuilder;
+import nez.util.Verbose;
 
 public class Ccompile extends Command {
 	@Override
 	public void exec() throws IOException {
 		Parser parser = newParser();
 		ParserCode<?> code = parser.compile();
-		code.dump();
+		if (Verbose.enabled) {
+			code.dump();
+		}
+		String path = FileBuilder.toFileName(grammarFile, outputDirectory, MozImage.Extension);
+		MozImage.write(parser, path);
 	}
 }
@@ -0,0 +1,58 @@
+package nez.main;
+
+import java.io.IOException;
+
+import nez.ast.CommonTree;
+import nez.ast.Source;
+import nez.parser.Parser;
+import nez.tool.ast.TreeWriter;
+import nez.util.ConsoleUtils;
+import nez.util.StringUtils;
+import nez.util.Verbose;
+
+public class Cgrep extends Command {
+	@Override
+	public void exec() throws IOException {
+		checkInputSource();
+		TreeWriter tw = null;
+		if (outputFormat != null) {
+			tw = getTreeWriter("ast xml json", "line");
+		} else {
+			strategy.TreeConstruction = false;
+		}
+		Parser parser = newParser();
+		Verbose.println("prefilter: %s", parser.getPrefilter());
+
+		long matched = 0;
+		long consumed = 0;
+		long time = 0;
+		while (hasInputSource()) {
+			Source input = nextInputSource();
+			TreeWriter w = tw;
+			long t = System.nanoTime();
+			matched += parser.findAll(input, null, new CommonTree(), (node) -> {
+				if (w != null) {
+					w.writeTree(node);
+				} else {
+					printMatch(input, node);
+				}
+			});
+			time += System.nanoTime() - t;
+			consumed += input.length();
+		}
+		Verbose.println(matched + " matches, " + StringUtils.formatMPS(consumed, time) + " MiB/s");
+		if (matched == 0) {
+			ConsoleUtils.exit(1, "no match");
+		}
+	}
+
+	private void printMatch(Source input, CommonTree node) {
+		long pos = node.getSourcePosition();
+		String text = input.subString(pos, pos + node.getLength()).trim();
+		int eol = text.indexOf('\n');
+		if (eol >= 0) {
+			text = text.substring(0, eol) + " ...";
+		}
+		ConsoleUtils.println(input.getResourceName() + ":" + input.linenum(pos) + ": " + text);
+	}
+}
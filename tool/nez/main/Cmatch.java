@@ -2,8 +2,10 @@ package nez.main;
 
 import java.io.IOException;
 
+import nez.ast.CommonTree;
 import nez.ast.Source;
 import nez.parser.Parser;
+import nez.parser.ParserResult;
 import nez.util.ConsoleUtils;
 import nez.util.StringUtils;
 import nez.util.UList;
@@ -22,6 +24,20 @@ public class Cmatch extends Command {
 		long time = 0;
 
 		while (hasInputSource()) {
+			if (jobs > 1) {
+				long t = System.nanoTime();
+				for (ParserResult<CommonTree> result : parseInputSources(parser)) {
+					totalCount++;
+					if (result.showErrors()) {
+						failedInputs.add(result.getSource().getResourceName());
+						failureCount++;
+					}
+					consumed += result.getSource().length();
+				}
+				long t2 = System.nanoTime();
+				time += (t2 - t);
+				continue;
+			}
 			Source file = nextInputSource();
 			totalCount++;
 
@@ -45,4 +61,4 @@ public class Cmatch extends Command {
 			ConsoleUtils.exit(1, "failed: " + failedInputs);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -2,25 +2,32 @@ package nez.main;
 
 import nez.ParserGenerator;
 import nez.Version;
+import nez.ast.CommonTree;
 import nez.ast.Source;
 import nez.lang.Grammar;
 import nez.lang.Production;
 import nez.lang.ast.NezGrammarCombinator;
 import nez.parser.Parser;
+import nez.parser.ParserResult;
 import nez.parser.ParserStrategy;
 import nez.parser.io.CommonSource;
+import nez.parser.vm.MozImage;
 import nez.tool.ast.TreeJSONWriter;
 import nez.tool.ast.TreeWriter;
 import nez.tool.ast.TreeXMLWriter;
 import nez.util.ConsoleUtils;
 import nez.util.FileBuilder;
+import nez.util.StringUtils;
 import nez.util.UList;
 import nez.util.Verbose;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Supplier;
 
 import static java.util.Optional.ofNullable;
@@ -41,6 +48,7 @@ public abstract class Command {
 		COMMANDS.put("cnez", Ccnez::new);
 		COMMANDS.put("dump", Cdump::new);
 		COMMANDS.put("format", Cformat::new);
+		COMMANDS.put("grep", Cgrep::new);
 		COMMANDS.put("match", Cmatch::new);
 		COMMANDS.put("parse", Cparse::new);
 		COMMANDS.put("test", Ctest::new);
@@ -58,6 +66,9 @@ public abstract class Command {
 				Verbose.println("strategy: %s", com.strategy);
 			}
 			com.exec();
+			if (com.pool != null) {
+				com.pool.shutdown();
+			}
 		} catch (IOException e) {
 			ConsoleUtils.println(e);
 			Verbose.traceException(e);
@@ -96,6 +107,18 @@ public abstract class Command {
 	protected UList<String> inputFiles = new UList<>(new String[4]);
 	protected String outputFormat;
 	protected String outputDirectory;
+	protected int jobs = 1;
+	protected boolean streaming;
+	private ForkJoinPool pool;
+
+	/* one pool of -j workers for all batches, so that they keep their contexts */
+
+	protected final ForkJoinPool getForkJoinPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(jobs);
+		}
+		return pool;
+	}
 
 	private void parseCommandOption(String[] args) {
 		for (int index = 1; index < args.length; index++) {
@@ -139,11 +162,24 @@ public abstract class Command {
 					index++;
 					continue;
 				}
+				if (as.equals("-j") || as.equals("--jobs")) {
+					jobs = Math.max(1, StringUtils.parseInt(args[index + 1], 1));
+					index++;
+					continue;
+				}
 			}
 			if (as.equals("--verbose")) {
 				Verbose.enabled = true;
 				continue;
 			}
+			if (as.equals("--stream")) {
+				streaming = true;
+				continue;
+			}
+			if (as.equals("--profile")) {
+				strategy.Profiling = true;
+				continue;
+			}
 			if (!strategy.setOption(as)) {
 				if (as.startsWith("-") && as.length() > 1) {
 					showUsage("undefined option: " + as);
@@ -167,20 +203,25 @@ public abstract class Command {
 		ConsoleUtils.println("  -f | --format <string>     Specify an output format");
 		ConsoleUtils.println("  -s | --start <NAME>        Specify a starting production");
 		ConsoleUtils.println("  -d | --dir <dirname>       Specify an output dir");
+		ConsoleUtils.println("  -j | --jobs <num>          Parse inputs in parallel (parse, match, bench), or a single input in chunks of records");
+		ConsoleUtils.println("  --stream                   Write records as they are parsed (parse --format json|xml); each record is built whole");
+		ConsoleUtils.println("  --profile                  Profile productions and write collapsed stacks (bench)");
 		ConsoleUtils.println("Example:");
 		ConsoleUtils.println("  nez parse -g js.nez jquery.js --format json");
 		ConsoleUtils.println("  nez match -g js.nez *.js");
+		ConsoleUtils.println("  nez grep -g java.nez -s ImportDeclaration *.java");
 		ConsoleUtils.println("  nez parser -g math.nez --format c");
 		ConsoleUtils.println("");
 
 		ConsoleUtils.println("The most commonly used nez commands are:");
 		ConsoleUtils.println("  parse      parse inputs and construct ASTs");
 		ConsoleUtils.println("  match      match inputs without ASTs");
+		ConsoleUtils.println("  grep       find every match of the start production (-s)");
 		ConsoleUtils.println("  inez       an interactive parser");
 		ConsoleUtils.println("  code       generate a parser source code for --format");
 		ConsoleUtils.println("  cnez       generate a C-based fast parser");
 		ConsoleUtils.println("  peg        translate a grammar into PEG specified with --format");
-		ConsoleUtils.println("  compile    compile a grammar into Nez bytecode .moz");
+		ConsoleUtils.println("  compile    compile a grammar into a parser image .nezc");
 		ConsoleUtils.println("  bench      perform benchmark tests");
 		ConsoleUtils.println("  example    display examples in a grammar");
 		ConsoleUtils.println("  test       perform grammar tests");
@@ -215,6 +256,9 @@ public abstract class Command {
 	}
 
 	public final Parser newParser() throws IOException {
+		if (MozImage.isImage(grammarFile)) {
+			return MozImage.load(grammarFile);
+		}
 		return strategy.newParser(getSpecifiedGrammar());
 	}
 
@@ -249,6 +293,26 @@ public abstract class Command {
 		return CommonSource.newStringSource(""); // empty input
 	}
 
+	public final List<Source> nextInputSources(int size) throws IOException {
+		List<Source> inputs = new ArrayList<>(size);
+		while (hasInputSource() && inputs.size() < size) {
+			inputs.add(nextInputSource());
+		}
+		return inputs;
+	}
+
+	/* a single input is split into chunks of records instead */
+
+	public final List<ParserResult<CommonTree>> parseInputSources(Parser parser) throws IOException {
+		List<Source> inputs = nextInputSources(jobs * 64);
+		if (inputs.size() == 1) {
+			List<ParserResult<CommonTree>> results = new ArrayList<>(1);
+			results.add(parser.parseChunked(inputs.get(0), new CommonTree(), getForkJoinPool()));
+			return results;
+		}
+		return parser.parseAll(inputs, getForkJoinPool());
+	}
+
 	public final String getOutputFileName(Source input, String ext) {
 		if (outputDirectory != null) {
 			return FileBuilder.toFileName(input.getResourceName(), outputDirectory, ext);
@@ -2,9 +2,12 @@ package nez.main;
 
 import java.io.IOException;
 
+import nez.ast.CommonTree;
 import nez.ast.Source;
 import nez.ast.Tree;
+import nez.ast.TreeEventHandler;
 import nez.parser.Parser;
+import nez.parser.ParserResult;
 import nez.tool.ast.TreeWriter;
 
 public class Cparse extends Command {
@@ -13,6 +16,29 @@ public class Cparse extends Command {
 		checkInputSource();
 		Parser parser = newParser();
 		TreeWriter tw = getTreeWriter("ast xml json", "line");
+		if (jobs > 1) {
+			while (hasInputSource()) {
+				for (ParserResult<CommonTree> result : parseInputSources(parser)) {
+					if (result.showErrors() && !result.isMatched()) {
+						continue;
+					}
+					writeTree(tw, result.getSource(), result.getTree());
+				}
+			}
+			return;
+		}
+		if (streaming && tw instanceof TreeEventHandler) {
+			while (hasInputSource()) {
+				Source input = nextInputSource();
+				if (outputDirectory != null) {
+					tw.init(getOutputFileName(input, tw.getFileExtension()));
+				}
+				if (!parser.parseEvents(input, (TreeEventHandler) tw)) {
+					parser.showErrors();
+				}
+			}
+			return;
+		}
 		while (hasInputSource()) {
 			Source input = nextInputSource();
 			Tree<?> node = parser.parse(input);
@@ -20,10 +46,14 @@ public class Cparse extends Command {
 				parser.showErrors();
 				continue;
 			}
-			if (outputDirectory != null) {
-				tw.init(getOutputFileName(input, tw.getFileExtension()));
-			}
-			tw.writeTree(node);
+			writeTree(tw, input, node);
+		}
+	}
+
+	private void writeTree(TreeWriter tw, Source input, Tree<?> node) {
+		if (outputDirectory != null) {
+			tw.init(getOutputFileName(input, tw.getFileExtension()));
 		}
+		tw.writeTree(node);
 	}
 }
@@ -1,9 +1,15 @@
 package nez.tool.ast;
 
+import java.util.Arrays;
+
+import nez.ast.Source;
+import nez.ast.Symbol;
 import nez.ast.Tree;
+import nez.ast.TreeEventHandler;
+import nez.ast.TreeUtils;
 import nez.util.StringUtils;
 
-public class TreeJSONWriter extends TreeWriter {
+public class TreeJSONWriter extends TreeWriter implements TreeEventHandler {
 
 	public TreeJSONWriter() {
 		super(".json");
@@ -11,71 +17,106 @@ public class TreeJSONWriter extends TreeWriter {
 
 	@Override
 	public void writeTree(Tree<?> node) {
-		writeJSON(node);
-		file.writeNewLine();
+		startTree(node.getSource());
+		TreeUtils.fireEvents(null, node, this);
+		endTree();
 	}
 
-	private void writeJSON(Tree<?> node) {
-		if (node.size() == 0) {
-			String text = node.toText();
-			if (dataOption) {
-				try {
-					double v = Double.parseDouble(text);
-					file.write(Double.toString(v));
-					return;
-				} catch (NumberFormatException e) {
-					//Ignored
-				}
-				try {
-					long v = Long.parseLong(text);
-					file.write(Long.toString(v));
-					return;
-				} catch (NumberFormatException e) {
-					//Ignored
-				}
-				file.write(StringUtils.quoteString('"', text, '"'));
-			} else {
-				file.write("{");
-				file.write("\"type\":");
-				file.write(StringUtils.quoteString('"', node.getTag().toString(), '"'));
-				file.write(",\"pos\":");
-				file.write("" + node.getSourcePosition());
-				file.write(",\"line\":");
-				file.write("" + node.getLineNum());
-				file.write(",\"column\":");
-				file.write("" + node.getColumn());
-				file.write(",\"text\":");
-				file.write(StringUtils.quoteString('"', text, '"'));
-				file.write("}");
+	/* TreeEventHandler */
+
+	private Source source;
+	private boolean[] objects = new boolean[32];
+	private int[] counts = new int[32];
+	private int depth;
+
+	@Override
+	public void startTree(Source source) {
+		this.source = source;
+		this.depth = 0;
+	}
+
+	@Override
+	public void startNode(Symbol label, Symbol tag, long pos, int size, boolean labeled) {
+		if (depth > 0) {
+			if (counts[depth - 1]++ > 0) {
+				file.write(",");
+			}
+			if (objects[depth - 1]) {
+				file.write(StringUtils.quoteString('"', label.toString(), '"'));
+				file.write(":");
 			}
+		}
+		if (depth == objects.length) {
+			objects = Arrays.copyOf(objects, depth * 2);
+			counts = Arrays.copyOf(counts, depth * 2);
+		}
+		objects[depth] = labeled;
+		counts[depth] = 0;
+		depth++;
+		if (size == 0) {
 			return;
 		}
-		if (node.isAllLabeled()) {
+		if (labeled) {
 			file.write("{");
 			if (!dataOption) {
 				file.write("\"type\":");
-				file.write(StringUtils.quoteString('"', node.getTag().toString(), '"'));
+				file.write(StringUtils.quoteString('"', tag.toString(), '"'));
 				file.write(",");
 			}
-			for (int i = 0; i < node.size(); i++) {
-				if (i > 0) {
-					file.write(",");
-				}
-				file.write(StringUtils.quoteString('"', node.getLabel(i).toString(), '"'));
-				file.write(":");
-				writeJSON(node.get(i));
-			}
-			file.write("}");
-			return;
+		} else {
+			file.write("[");
 		}
-		file.write("[");
-		for (int i = 0; i < node.size(); i++) {
-			if (i > 0) {
-				file.write(",");
+	}
+
+	@Override
+	public void endNode(Symbol label, Symbol tag, long pos, long length, String text) {
+		depth--;
+		if (text != null) {
+			writeLeaf(tag, pos, text);
+		} else {
+			file.write(objects[depth] ? "}" : "]");
+		}
+		if (depth == 0) {
+			file.writeNewLine();
+		}
+	}
+
+	@Override
+	public void endTree() {
+		file.flush();
+	}
+
+	private void writeLeaf(Symbol tag, long pos, String text) {
+		if (dataOption) {
+			try {
+				double v = Double.parseDouble(text);
+				file.write(Double.toString(v));
+				return;
+			} catch (NumberFormatException e) {
+				//Ignored
 			}
-			writeJSON(node.get(i));
+			try {
+				long v = Long.parseLong(text);
+				file.write(Long.toString(v));
+				return;
+			} catch (NumberFormatException e) {
+				//Ignored
+			}
+			file.write(StringUtils.quoteString('"', text, '"'));
+		} else {
+			file.write("{");
+			file.write("\"type\":");
+			file.write(StringUtils.quoteString('"', tag.toString(), '"'));
+			file.write(",\"pos\":");
+			file.write("" + pos);
+			file.write(",\"line\":");
+			file.write("" + (int) source.linenum(pos));
+			file.write(",\"column\":");
+			file.write("" + source.column(pos));
+			file.write(",\"text\":");
+			file.write(StringUtils.quoteString('"', text, '"'));
+			file.write("}");
 		}
-		file.write("]");
 	}
 
 }
@@ -1,10 +1,14 @@
 package nez.tool.ast;
 
+import java.util.Arrays;
+
+import nez.ast.Source;
 import nez.ast.Symbol;
 import nez.ast.Tree;
+import nez.ast.TreeEventHandler;
 import nez.util.StringUtils;
 
-public class TreeXMLWriter extends TreeWriter {
+public class TreeXMLWriter extends TreeWriter implements TreeEventHandler {
 	public TreeXMLWriter() {
 		super(".xml");
 	}
@@ -59,4 +63,101 @@ public class TreeXMLWriter extends TreeWriter {
 		file.writeIndent("</" + tag + ">");
 	}
 
+	/* TreeEventHandler */
+
+	// @-tagged children are written as attributes of the parent. Since the
+	// start tag is closed at the first element child, an @-child that comes
+	// later is written as an element instead; writeTree() sees the whole
+	// node first and writes every @-child as an attribute.
+
+	private Source source;
+	private boolean[] opened = new boolean[32]; // start tag not yet closed
+	private int depth;
+	private int attribute = -1; // depth of the @-child being captured
+
+	@Override
+	public void startTree(Source source) {
+		this.source = source;
+		this.depth = 0;
+		this.attribute = -1;
+	}
+
+	@Override
+	public void startNode(Symbol label, Symbol tag, long pos, int size, boolean labeled) {
+		if (depth == opened.length) {
+			opened = Arrays.copyOf(opened, depth * 2);
+		}
+		opened[depth] = false;
+		depth++;
+		if (attribute != -1) {
+			return;
+		}
+		String stag = tag.toString();
+		if (depth > 1 && opened[depth - 2]) {
+			if (stag.startsWith("@")) {
+				attribute = depth - 1;
+				return;
+			}
+			file.write(">");
+			file.incIndent();
+			opened[depth - 2] = false;
+		}
+		if (stag.startsWith("@")) {
+			stag = stag.substring(1);
+		}
+		file.writeIndent("<" + stag);
+		if (label != null) {
+			file.write(" label=\"" + label + "\"");
+		}
+		opened[depth - 1] = size > 0;
+	}
+
+	@Override
+	public void endNode(Symbol label, Symbol tag, long pos, long length, String text) {
+		depth--;
+		if (attribute != -1) {
+			if (attribute == depth) {
+				attribute = -1;
+				file.write(" ");
+				file.write(tag.toString().substring(1));
+				file.write("=");
+				file.write(StringUtils.quoteString('"', text != null ? text : source.subString(pos, pos + length), '"'));
+			}
+			return;
+		}
+		String stag = tag.toString();
+		if (stag.startsWith("@")) {
+			stag = stag.substring(1);
+		}
+		if (text != null) {
+			if (text.equals("")) {
+				file.write("/>");
+			} else {
+				if (!dataOption) {
+					file.write(" pos=\"" + pos + "\"");
+					file.write(" line=\"" + (int) source.linenum(pos) + "\"");
+					file.write(" column=\"" + source.column(pos) + "\"");
+				}
+				file.write(">");
+				file.write(text);
+				file.write("</" + stag + ">");
+			}
+		} else {
+			if (opened[depth]) {
+				file.write(">");
+				file.incIndent();
+			}
+			file.decIndent();
+			file.writeIndent("</" + stag + ">");
+		}
+		if (depth == 0) {
+			file.writeNewLine();
+		}
+	}
+
+	@Override
+	public void endTree() {
+		file.flush();
+	}
+
 }
@@ -0,0 +1,79 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.ast.Tree;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+/**
+ * Parses the inputs of test-nez/memofail, where a failure memoized under
+ * one left tree is reused under another, and checks that packrat parsing
+ * gives the same tree as parsing without memoization.
+ */
+
+public class MemoFailTest {
+	private static final File Dir = new File("test-nez/memofail");
+
+	private static Parser newParser(boolean packrat, boolean offHeap) throws IOException {
+		ParserStrategy strategy = new ParserStrategy();
+		strategy.PackratParsing = packrat;
+		strategy.OffHeapMemo = offHeap;
+		return new ParserGenerator().newParser(Dir.getPath() + ".nez", strategy);
+	}
+
+	@Test
+	public void packrat() throws IOException {
+		parse(newParser(true, false));
+	}
+
+	@Test
+	public void offHeapPackrat() throws IOException {
+		parse(newParser(true, true));
+	}
+
+	@Test
+	public void noMemo() throws IOException {
+		parse(newParser(false, false));
+	}
+
+	private static void parse(Parser p) throws IOException {
+		for (int i = 1;; i++) {
+			File in = new File(Dir, i + ".in");
+			if (!in.exists()) {
+				assertEquals(4, i);
+				return;
+			}
+			String text = new String(Files.readAllBytes(in.toPath()), "UTF-8");
+			String expected = new String(Files.readAllBytes(new File(Dir, i + ".out").toPath()), "UTF-8").trim();
+			CommonTree t = p.parseResult(CommonSource.newStringSource(in.getName(), 1, text), new CommonTree()).getTree();
+			StringBuilder sb = new StringBuilder();
+			format(sb, t);
+			assertEquals(in.getName(), expected, sb.toString());
+		}
+	}
+
+	/* the bracket form of the .out files */
+
+	private static void format(StringBuilder sb, Tree<?> t) {
+		sb.append("[#").append(t.getTag());
+		if (t.size() == 0) {
+			sb.append(" '").append(t.toText()).append("'");
+		}
+		for (int i = 0; i < t.size(); i++) {
+			sb.append(" ");
+			if (t.getLabel(i) != null) {
+				sb.append("$").append(t.getLabel(i)).append("=");
+			}
+			format(sb, t.get(i));
+		}
+		sb.append("]");
+	}
+}
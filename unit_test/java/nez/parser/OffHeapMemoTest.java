@@ -0,0 +1,44 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import nez.ast.CommonTree;
+import nez.parser.vm.ParserMachineContext;
+
+import org.junit.Test;
+
+/**
+ * Windows times memo points beyond the size of one direct buffer must be
+ * capped rather than overflow the capacity of the buffer.
+ */
+
+public class OffHeapMemoTest {
+
+	private static void memo(int w, int n) {
+		ParserMachineContext<CommonTree> ctx = new ParserMachineContext<>("", new CommonTree());
+		ctx.initMemoTable(w, n, true);
+		long ppos = 3L * w;
+		ctx.setPosition(ppos + 5);
+		ctx.memoSucc(n - 1, ppos);
+		ctx.setPosition(ppos);
+		assertEquals(ParserContext.SuccFound, ctx.lookupMemo(n - 1));
+		assertEquals(ppos + 5, ctx.getPosition());
+	}
+
+	@Test
+	public void largeWindow() {
+		memo(65536, 600);
+		memo(1048576, 300);
+		memo(1 << 22, 600); // the window alone overflows an int in slots
+	}
+
+	@Test
+	public void largeOffHeapTable() {
+		MemoTable table = MemoTable.newTable(1048576, 300, true, true);
+		table.setMemo(1L << 30, 299, false, null, 7, -1);
+		MemoEntry m = table.getMemo(1L << 30, 299);
+		assertTrue(m != null && !m.failed);
+		assertEquals(7, m.consumed);
+	}
+}
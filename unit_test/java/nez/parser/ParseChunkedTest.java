@@ -0,0 +1,119 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.ast.FlatTree;
+import nez.ast.Source;
+import nez.lang.Grammar;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class ParseChunkedTest {
+
+	private static Parser newParser() throws IOException {
+		Parser p = new ParserGenerator().newParser("csv.nez", new ParserStrategy());
+		p.setDisabledUnconsumed(true);
+		return p;
+	}
+
+	/* enough lines for several chunks */
+
+	private static Source csv() {
+		return csv(",\"a, b\",");
+	}
+
+	/* quoted values that hold the separator make some chunks fail */
+
+	private static Source csv(String quoted) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < 512 * 1024; i++) {
+			sb.append(i).append(",name").append(i % 97).append(quoted).append(i * 7 % 1000).append(".00\n");
+		}
+		return CommonSource.newStringSource("chunked.csv", 1, sb.toString());
+	}
+
+	@Test
+	public void chunkedCommonTree() throws IOException {
+		Parser p = newParser();
+		Source s = csv();
+		String expected = p.parseResult(s, new CommonTree()).getTree().toString();
+		ParserResult<CommonTree> r = p.parseChunked(s, new CommonTree(), 4);
+		assertEquals(expected, r.getTree().toString());
+	}
+
+	@Test
+	public void chunkedFlatTree() throws IOException {
+		Parser p = newParser();
+		Source s = csv();
+		String expected = p.parseResult(s, new FlatTree()).getTree().toString();
+		FlatTree t = p.parseChunked(s, new FlatTree(), 4).getTree();
+		assertEquals(expected, t.toString());
+		assertTrue(t.size() > 1000);
+	}
+
+	@Test
+	public void chunkedReusedFlatTree() throws IOException {
+		Parser p = newParser();
+		Source s = csv();
+		String expected = p.parseResult(s, new CommonTree()).getTree().toString();
+		FlatTree proto = new FlatTree(true);
+		assertEquals(expected, p.parseChunked(s, proto, 4).getTree().toString());
+		assertEquals(expected, p.parseChunked(s, proto, 4).getTree().toString());
+	}
+
+	@Test
+	public void chunkedAcrossRecords() throws IOException {
+		Parser p = newParser();
+		Source s = csv(",\"a, b\nc\",");
+		String expected = p.parseResult(s, new CommonTree()).getTree().toString();
+		assertEquals(expected, p.parseChunked(s, new CommonTree(), 4).getTree().toString());
+		assertEquals(expected, p.parseChunked(s, new FlatTree(), 4).getTree().toString());
+	}
+
+	/* the csv grammar with a predicate in front of or behind the records */
+
+	private static Parser newParser(String root) throws IOException {
+		ParserGenerator g = new ParserGenerator();
+		Grammar grammar = g.loadGrammar("csv.nez");
+		g.updateGrammar(grammar, CommonSource.newStringSource("root.nez", 1, "public Root = " + root + "\n"), "nez");
+		Parser p = grammar.newParser("Root", new ParserStrategy());
+		p.setDisabledUnconsumed(true);
+		return p;
+	}
+
+	@Test
+	public void chunkedPredicate() throws IOException {
+		Parser p = newParser("{ !'#' ($(Line))* #CSV }");
+		Source csv = csv();
+		Source s = CommonSource.newStringSource("chunked.csv", 1, "#" + csv.subString(0, csv.length()));
+		ParserResult<CommonTree> r = p.parseChunked(s, new CommonTree(), 4);
+		assertEquals(p.parseResult(s, new CommonTree()).isMatched(), r.isMatched());
+		assertFalse(r.isMatched());
+	}
+
+	@Test
+	public void chunkedEndOfInput() throws IOException {
+		Parser p = newParser("{ ($(Line))* !. #CSV }");
+		Source s = csv();
+		String expected = p.parseResult(s, new CommonTree()).getTree().toString();
+		assertEquals(expected, p.parseChunked(s, new CommonTree(), 4).getTree().toString());
+	}
+
+	@Test
+	public void parseAllSingleFlatTree() throws IOException {
+		Parser p = newParser();
+		Source s = csv();
+		String expected = p.parseResult(s, new FlatTree()).getTree().toString();
+		List<ParserResult<FlatTree>> l = p.parseAll(Collections.singletonList(s), new FlatTree(), 4);
+		assertEquals(expected, l.get(0).getTree().toString());
+	}
+}
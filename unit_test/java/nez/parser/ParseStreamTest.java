@@ -0,0 +1,58 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class ParseStreamTest {
+
+	private static Parser newParser() throws IOException {
+		return new ParserGenerator().newParser("csv.nez", new ParserStrategy());
+	}
+
+	/* several buffers of lines; quoted values span lines */
+
+	private static String csv() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < 256 * 1024; i++) {
+			sb.append(i).append(",\"x").append(i % 13).append("\ny\",").append(i * 3).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/* returns a few bytes per read, as a pipe does */
+
+	private static InputStream trickle(byte[] b) {
+		return new ByteArrayInputStream(b) {
+			@Override
+			public synchronized int read(byte[] buf, int off, int len) {
+				return super.read(buf, off, Math.min(len, 1000));
+			}
+		};
+	}
+
+	@Test
+	public void recordsOfStream() throws IOException {
+		Parser p = newParser();
+		String text = csv();
+		CommonTree tree = p.parse(CommonSource.newStringSource(text));
+		List<String> records = new ArrayList<>();
+		assertTrue(p.parseStream(trickle(text.getBytes(StandardCharsets.UTF_8)), (node) -> records.add(node.toString())));
+		assertEquals(tree.size(), records.size());
+		for (int i = 0; i < records.size(); i++) {
+			assertEquals(tree.get(i).toString(), records.get(i));
+		}
+	}
+}
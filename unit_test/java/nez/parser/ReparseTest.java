@@ -0,0 +1,69 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.ast.FlatTree;
+import nez.ast.Source;
+import nez.ast.Tree;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+/**
+ * Applies random edits to the sources of this repository and checks that
+ * each reparse builds the same tree as a fresh parse of the edited source.
+ */
+
+public class ReparseTest {
+	private static final long Seed = 20160501L;
+	private static final int Edits = 20;
+
+	private static Parser newParser() throws IOException {
+		return new ParserGenerator().newParser("java.nez", new ParserStrategy());
+	}
+
+	private static File[] sources() {
+		File[] files = new File("src/nez/ast").listFiles((dir, name) -> name.endsWith(".java"));
+		Arrays.sort(files);
+		return files;
+	}
+
+	@Test
+	public void reparseCommonTree() throws IOException {
+		reparse(new CommonTree());
+	}
+
+	@Test
+	public void reparseFlatTree() throws IOException {
+		reparse(new FlatTree());
+	}
+
+	private static <T extends Tree<T>> void reparse(T proto) throws IOException {
+		Parser p = newParser();
+		Random r = new Random(Seed);
+		for (File f : sources()) {
+			byte[] text = Files.readAllBytes(f.toPath());
+			ParserResult<T> result = p.parseIncremental(CommonSource.newStringSource(f.getName(), 1, new String(text, "UTF-8")), proto);
+			for (int i = 0; i < Edits; i++) {
+				Source s = result.getSource();
+				int length = (int) s.length();
+				int offset = r.nextInt(length);
+				int removed = Math.min(r.nextInt(8), length - offset);
+				int from = r.nextInt(length);
+				byte[] inserted = s.subByte(from, Math.min(from + r.nextInt(8), length));
+				result = p.reparse(result, offset, removed, inserted);
+				T fresh = p.parseResult(result.getSource(), proto).getTree();
+				String edit = f.getName() + " edit " + i + " at " + offset;
+				assertEquals(edit, String.valueOf(fresh), String.valueOf(result.getTree()));
+			}
+		}
+	}
+}
@@ -0,0 +1,13 @@
+# parse -j with a single input parses it in chunks of records; the tree
+# must be the same as that of a sequential parse. Only sources that can be
+# read from several threads are chunked, so the input is large enough to
+# be memory-mapped (see CommonSource.MappedFileThreshold).
+awk 'BEGIN { for (i = 0; i < 210000; i++) printf "%d,\"lorem, ipsum, dolor, sit, amet, consectetur, adipiscing, elit, sed, do %d\"\n", i, i % 97 }' > chunked.csv
+java -jar nez.jar parse -g csv.nez --format json chunked.csv > chunked.expected
+java -jar nez.jar parse -g csv.nez --format json -j 4 chunked.csv > chunked.actual
+
+if cmp -s chunked.expected chunked.actual; then
+	rm chunked.csv chunked.expected chunked.actual
+else
+	exit 1
+fi
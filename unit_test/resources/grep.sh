@@ -0,0 +1,18 @@
+# nez grep must report nonempty matches from left to right without overlaps
+R=unit_test/resources
+for p in Key Pair Digits Call Tagged; do
+	echo "# $p"
+	java -jar nez.jar grep -g $R/grep.nez -s $p $R/grep.txt
+	java -jar nez.jar grep -g $R/grep.nez -s $p $R/grep.txt --verbose 2>&1 | grep '^prefilter:'
+done > grep.actual
+
+if ! cmp -s $R/grep.expected grep.actual; then
+	exit 1
+fi
+rm grep.actual
+
+# and exit with 1 if there is none
+java -jar nez.jar grep -g $R/grep.nez -s Tagged $R/sample.txt > /dev/null
+if [ $? -ne 1 ]; then
+	exit 1
+fi
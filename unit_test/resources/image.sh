@@ -0,0 +1,10 @@
+# a parser image must parse like the grammar it was compiled from
+java -jar nez.jar compile -g json.nez
+java -jar nez.jar parse -g json.nez --format json unit_test/resources/sample.json > image.expected
+java -jar nez.jar parse -g json.nezc --format json unit_test/resources/sample.json > image.actual
+
+if cmp -s image.expected image.actual; then
+	rm image.expected image.actual json.nezc
+else
+	exit 1
+fi
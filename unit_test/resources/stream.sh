@@ -0,0 +1,10 @@
+# parse --stream must emit each record of the start production as it is
+# parsed, at the positions of the whole input
+R=unit_test/resources
+java -jar nez.jar parse -g csv.nez --stream --format json $R/stream.csv > stream.actual
+
+if cmp -s $R/stream.expected stream.actual; then
+	rm stream.actual
+else
+	exit 1
+fi